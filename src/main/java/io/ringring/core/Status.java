@@ -14,5 +14,7 @@ public enum Status {
     INTERNAL_DATABASE_ERROR,
     INTERNAL_SMTP_ERROR,
     INTERNAL_APPLICATION_ERROR,
-    BAD_REQUEST
+    BAD_REQUEST,
+    INTERNAL_TIMEOUT_ERROR,
+    SERVER_BUSY
 }
@@ -0,0 +1,63 @@
+package io.ringring.core;
+
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import java.util.List;
+
+/**
+ * The contacts changed since the posted cursor. Post the returned cursor on the next sync, and right
+ * away while hasMore is set.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class UserChangesResult {
+    private List<User> users;
+    private String cursor;
+    private boolean hasMore;
+    private Status status;
+
+    public UserChangesResult() {
+    }
+
+    public UserChangesResult(List<User> users, String cursor, boolean hasMore, Status status) {
+        this.users = users;
+        this.cursor = cursor;
+        this.hasMore = hasMore;
+        this.status = status;
+    }
+
+    public List<User> getUsers() {
+        return this.users;
+    }
+
+    public void setUsers(List<User> users) {
+        this.users = users;
+    }
+
+    public String getCursor() {
+        return this.cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public boolean getHasMore() {
+        return this.hasMore;
+    }
+
+    public void setHasMore(boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public boolean isSuccess() {
+        return Status.OKAY.equals(this.getStatus());
+    }
+}
@@ -0,0 +1,9 @@
+package io.ringring.core.exceptions;
+
+public class ServerBusyException extends Exception {
+
+    public ServerBusyException() { super(); }
+    public ServerBusyException(String message) { super(message); }
+    public ServerBusyException(String message, Throwable cause) { super(message, cause); }
+    public ServerBusyException(Throwable cause) { super(cause); }
+}
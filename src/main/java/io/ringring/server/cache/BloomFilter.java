@@ -0,0 +1,118 @@
+package io.ringring.server.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bloom filter over strings. mightContain() never misses a string that was put, it answers
+ * true for a string that was not put with about the false positive rate the filter was sized for.
+ *
+ * Bits are set with compare-and-set, so puts and lookups run concurrently without locks. The bit
+ * positions come from one 64-bit hash of the string by double hashing.
+ */
+public class BloomFilter {
+    private static final int MAX_HASH_COUNT = 16;
+
+    private final AtomicLongArray words;
+    private final long bitSize;
+    private final int hashCount;
+
+    private final AtomicLong setBitCount = new AtomicLong();
+
+    /**
+     * Sizes the filter for expectedInsertions strings at falsePositiveRate, but never larger than
+     * maxBytes. A filter capped by maxBytes or holding more strings has a higher false positive rate.
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate, long maxBytes) {
+        long insertions = Math.max(expectedInsertions, 1);
+        double rate = Math.min(Math.max(falsePositiveRate, Double.MIN_VALUE), 0.5);
+
+        long bits = (long) Math.ceil(-insertions * Math.log(rate) / (Math.log(2) * Math.log(2)));
+        bits = Math.min(bits, Math.max(maxBytes, 8) * 8);
+        bits = Math.min(bits, (long) Integer.MAX_VALUE * 64);
+
+        int wordCount = (int) Math.max((bits + 63) / 64, 1);
+        this.words = new AtomicLongArray(wordCount);
+        this.bitSize = wordCount * 64L;
+
+        int hashes = (int) Math.round((double) bitSize / insertions * Math.log(2));
+        this.hashCount = Math.min(Math.max(hashes, 1), MAX_HASH_COUNT);
+    }
+
+    public void put(String value) {
+        long hash = hash(value);
+        long step = mix(hash) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((hash + i * step) & Long.MAX_VALUE) % bitSize;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+
+            long word;
+            do {
+                word = words.get(index);
+                if ((word & mask) != 0) break;
+            } while (!words.compareAndSet(index, word, word | mask));
+
+            if ((word & mask) == 0) {
+                setBitCount.incrementAndGet();
+            }
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        long step = mix(hash) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((hash + i * step) & Long.MAX_VALUE) % bitSize;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Empties the filter. Strings put while it runs may be lost, use it only when nothing else writes.
+     */
+    public void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+        setBitCount.set(0);
+    }
+
+    public long getBitSize() { return bitSize; }
+
+    public int getHashCount() { return hashCount; }
+
+    // Share of the bits set, the filter is saturated well before it reaches 1
+    public double getFillRatio() {
+        return (double) setBitCount.get() / bitSize;
+    }
+
+    // Chance that a string never put is reported as contained at the current fill
+    public double getFalsePositiveRate() {
+        return Math.pow(getFillRatio(), hashCount);
+    }
+
+    // FNV-1a over the chars, finished with the MurmurHash3 mixer so every bit depends on every char
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,199 @@
+package io.ringring.server.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe cache with least-recently-used eviction and a time to live per entry.
+ *
+ * Keys are spread over independently locked segments, so concurrent readers of different
+ * keys rarely wait for each other. Each segment holds an equal share of the maximum size.
+ *
+ * A segment also remembers when its recently invalidated keys were invalidated, so a load that raced an
+ * invalidation of its key is not stored. Once a segment forgets a key, loads started before that key's
+ * invalidation are dropped for every key of the segment.
+ */
+public class LruCache<K, V> {
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment<K, V>[] segments;
+    private final long ttlNanos;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+    // Orders invalidations against the stamps taken for loads
+    private final AtomicLong invalidationSequence = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize, long ttl, TimeUnit unit) {
+        int segmentSize = Math.max(1, maxSize / SEGMENT_COUNT);
+
+        this.segments = (Segment<K, V>[]) new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<K, V>(segmentSize, evictionCount);
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Returns the cached value or null if the key is missing or expired.
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        long now = System.nanoTime();
+
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null) {
+                if (now - entry.createdAt < ttlNanos) {
+                    hitCount.incrementAndGet();
+                    return entry.value;
+                }
+
+                segment.remove(key);
+                expirationCount.incrementAndGet();
+            }
+        }
+
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns a stamp to pass to {@link #put(Object, Object, long)} when the value is loaded afterwards.
+     */
+    public long stamp() {
+        return invalidationSequence.get();
+    }
+
+    /**
+     * Stores a value loaded after {@link #stamp()} was taken. The value is dropped if its key has been
+     * invalidated in the meantime, because it might have been read before that change. Invalidations of
+     * other keys do not matter.
+     */
+    public void put(K key, V value, long stamp) {
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment) {
+            if (segment.invalidatedSince(key, stamp)) return;
+
+            segment.put(key, new Entry<V>(value, System.nanoTime()));
+        }
+    }
+
+    public void invalidate(K key) {
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment) {
+            segment.remove(key);
+            // Moves the key to the newest end, so the oldest invalidation is forgotten first
+            segment.invalidations.remove(key);
+            segment.invalidations.put(key, invalidationSequence.incrementAndGet());
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.invalidations.clear();
+                segment.forgottenInvalidation = invalidationSequence.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+
+        return size;
+    }
+
+    public long getHitCount() { return hitCount.get(); }
+
+    public long getMissCount() { return missCount.get(); }
+
+    public long getEvictionCount() { return evictionCount.get(); }
+
+    public long getExpirationCount() { return expirationCount.get(); }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long createdAt;
+
+        Entry(V value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+        private final int capacity;
+        private final AtomicLong evictionCount;
+
+        // Sequence of the last invalidation of the recently invalidated keys, as many as the segment holds
+        private final Invalidations<K> invalidations;
+        // Newest invalidation that is no longer in invalidations, loads stamped before it are dropped
+        private long forgottenInvalidation;
+
+        Segment(int capacity, AtomicLong evictionCount) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictionCount = evictionCount;
+            this.invalidations = new Invalidations<K>(capacity, this);
+        }
+
+        boolean invalidatedSince(K key, long stamp) {
+            Long invalidation = invalidations.get(key);
+
+            return (invalidation != null && invalidation > stamp) || forgottenInvalidation > stamp;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() > capacity) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private static class Invalidations<K> extends LinkedHashMap<K, Long> {
+        private final int capacity;
+        private final Segment<K, ?> segment;
+
+        Invalidations(int capacity, Segment<K, ?> segment) {
+            super(16, 0.75f, false);
+            this.capacity = capacity;
+            this.segment = segment;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+            if (size() > capacity) {
+                segment.forgottenInvalidation = Math.max(segment.forgottenInvalidation, eldest.getValue());
+                return true;
+            }
+
+            return false;
+        }
+    }
+}
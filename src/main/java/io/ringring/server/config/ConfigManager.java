@@ -22,6 +22,7 @@ public interface ConfigManager {
     String getDatabaseUrl();
     String getDatabaseUser();
     String getDatabasePassword();
+    int getBulkLookupChunkSize();
 
     String getSipDomain();
     String getSipContext();
@@ -45,4 +46,93 @@ public interface ConfigManager {
     String getRenewActivationCodeBody();
 
     int getActivationCodeLength();
+
+    boolean getUserCacheEnabled();
+    int getUserCacheMaxSize();
+    int getUserCacheTtl();
+
+    boolean getPresenceEnabled();
+    int getPresenceRefreshInterval();
+    int getPresenceFullRefreshInterval();
+    int getPresenceMaxStaleness();
+
+    boolean getMailOutboxEnabled();
+    int getMailOutboxThreads();
+    int getMailOutboxBatchSize();
+    int getMailOutboxPollInterval();
+    int getMailOutboxLease();
+    int getMailOutboxMaxAttempts();
+    int getMailOutboxRetryBackoff();
+
+    int getMailPoolSize();
+    int getMailPoolMaxIdle();
+    int getMailPoolMaxMessages();
+    int getMailPoolBorrowTimeout();
+
+    int getInvitationSenderLimit();
+    int getInvitationSenderWindow();
+
+    int getDatabasePoolPartitions();
+    int getDatabasePoolMinConnections();
+    int getDatabasePoolMaxConnections();
+    int getDatabasePoolAcquireIncrement();
+    int getDatabasePoolStatementCache();
+    int getDatabasePoolAcquireTimeout();
+
+    int getServerAcceptors();
+    int getServerAcceptQueueSize();
+    int getServerIdleTimeout();
+    int getServerMinThreads();
+    int getServerMaxThreads();
+
+    int getEndpointReadThreads();
+    int getEndpointReadQueueSize();
+    int getEndpointWriteThreads();
+    int getEndpointWriteQueueSize();
+    int getEndpointGetUserTimeout();
+    int getEndpointGetUsersTimeout();
+    int getEndpointGetChangesTimeout();
+    int getEndpointRegisterTimeout();
+    int getEndpointActivateTimeout();
+    int getEndpointRenewActivationCodeTimeout();
+    int getEndpointInviteTimeout();
+
+    boolean getDatabaseTrackingEnabled();
+    boolean getDatabaseTrackingStrict();
+    long getDatabaseTrackingLongHold();
+
+    int getDatabasePrepareThreshold();
+
+    boolean getServerTimingEnabled();
+
+    boolean getJfrEventsEnabled();
+
+    boolean getUserSingleFlightEnabled();
+    long getUserSingleFlightMaxWait();
+
+    boolean getUserBatchEnabled();
+    long getUserBatchWindow();
+    int getUserBatchMaxSize();
+    long getUserBatchMaxWait();
+
+    int getUserChangesPageSize();
+    long getUserChangesSettle();
+
+    boolean getEventsEnabled();
+    long getEventsInterval();
+    long getEventsHeartbeat();
+    int getEventsMaxSubscriptions();
+    int getEventsQueueSize();
+    int getEventsWriterThreads();
+
+    boolean getUserBloomEnabled();
+    int getUserBloomExpectedUsers();
+    double getUserBloomFalsePositiveRate();
+    long getUserBloomMaxBytes();
+    int getUserBloomRebuildInterval();
+
+    int getMailOutboxRetention();
+    long getMailOutboxPurgeInterval();
+
+    long getEventsWriteTimeout();
 }
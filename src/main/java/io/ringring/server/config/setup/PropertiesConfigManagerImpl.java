@@ -27,6 +27,7 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
     private String databaseUrl;
     private String databaseUser;
     private String databasePassword;
+    private int bulkLookupChunkSize;
 
     private String sipDomain;
     private String sipContext;
@@ -51,6 +52,95 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
 
     private int activationCodeLength;
 
+    private boolean userCacheEnabled;
+    private int userCacheMaxSize;
+    private int userCacheTtl;
+
+    private boolean presenceEnabled;
+    private int presenceRefreshInterval;
+    private int presenceFullRefreshInterval;
+    private int presenceMaxStaleness;
+
+    private boolean mailOutboxEnabled;
+    private int mailOutboxThreads;
+    private int mailOutboxBatchSize;
+    private int mailOutboxPollInterval;
+    private int mailOutboxLease;
+    private int mailOutboxMaxAttempts;
+    private int mailOutboxRetryBackoff;
+
+    private int mailPoolSize;
+    private int mailPoolMaxIdle;
+    private int mailPoolMaxMessages;
+    private int mailPoolBorrowTimeout;
+
+    private int invitationSenderLimit;
+    private int invitationSenderWindow;
+
+    private int databasePoolPartitions;
+    private int databasePoolMinConnections;
+    private int databasePoolMaxConnections;
+    private int databasePoolAcquireIncrement;
+    private int databasePoolStatementCache;
+    private int databasePoolAcquireTimeout;
+
+    private int serverAcceptors;
+    private int serverAcceptQueueSize;
+    private int serverIdleTimeout;
+    private int serverMinThreads;
+    private int serverMaxThreads;
+
+    private int endpointReadThreads;
+    private int endpointReadQueueSize;
+    private int endpointWriteThreads;
+    private int endpointWriteQueueSize;
+    private int endpointGetUserTimeout;
+    private int endpointGetUsersTimeout;
+    private int endpointGetChangesTimeout;
+    private int endpointRegisterTimeout;
+    private int endpointActivateTimeout;
+    private int endpointRenewActivationCodeTimeout;
+    private int endpointInviteTimeout;
+
+    private boolean databaseTrackingEnabled;
+    private boolean databaseTrackingStrict;
+    private long databaseTrackingLongHold;
+
+    private int databasePrepareThreshold;
+
+    private boolean serverTimingEnabled;
+
+    private boolean jfrEventsEnabled;
+
+    private boolean userSingleFlightEnabled;
+    private long userSingleFlightMaxWait;
+
+    private boolean userBatchEnabled;
+    private long userBatchWindow;
+    private int userBatchMaxSize;
+    private long userBatchMaxWait;
+
+    private int userChangesPageSize;
+    private long userChangesSettle;
+
+    private boolean eventsEnabled;
+    private long eventsInterval;
+    private long eventsHeartbeat;
+    private int eventsMaxSubscriptions;
+    private int eventsQueueSize;
+    private int eventsWriterThreads;
+
+    private boolean userBloomEnabled;
+    private int userBloomExpectedUsers;
+    private double userBloomFalsePositiveRate;
+    private long userBloomMaxBytes;
+    private int userBloomRebuildInterval;
+
+    private int mailOutboxRetention;
+    private long mailOutboxPurgeInterval;
+
+    private long eventsWriteTimeout;
+
     public PropertiesConfigManagerImpl() {
         properties = new Properties();
 
@@ -61,6 +151,12 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
             throw new Error("Unable find resource", e);
         }
 
+        // System properties override the file, e.g. -Ddb.tracking.enabled=false
+        for (String name : properties.stringPropertyNames()) {
+            String value = System.getProperty(name);
+            if (value != null) properties.setProperty(name, value);
+        }
+
         try {
             serverHost = properties.getProperty("server.host");
             serverPort = Integer.parseInt(properties.getProperty("server.port"));
@@ -75,6 +171,7 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
             databaseUrl = properties.getProperty("db.url");
             databaseUser = properties.getProperty("db.user");
             databasePassword = properties.getProperty("db.password");
+            bulkLookupChunkSize = Integer.parseInt(properties.getProperty("db.bulklookup.chunksize"));
 
             sipDomain = properties.getProperty("sip.domain");
             sipContext = properties.getProperty("sip.context");
@@ -99,6 +196,95 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
 
             activationCodeLength = Integer.parseInt(properties.getProperty("misc.activationcode.length"));
 
+            userCacheEnabled = "true".equals(properties.getProperty("cache.user.enabled"));
+            userCacheMaxSize = Integer.parseInt(properties.getProperty("cache.user.maxsize"));
+            userCacheTtl = Integer.parseInt(properties.getProperty("cache.user.ttl"));
+
+            presenceEnabled = "true".equals(properties.getProperty("presence.enabled"));
+            presenceRefreshInterval = Integer.parseInt(properties.getProperty("presence.refresh.interval"));
+            presenceFullRefreshInterval = Integer.parseInt(properties.getProperty("presence.fullrefresh.interval"));
+            presenceMaxStaleness = Integer.parseInt(properties.getProperty("presence.maxstaleness"));
+
+            mailOutboxEnabled = "true".equals(properties.getProperty("mail.outbox.enabled"));
+            mailOutboxThreads = Integer.parseInt(properties.getProperty("mail.outbox.threads"));
+            mailOutboxBatchSize = Integer.parseInt(properties.getProperty("mail.outbox.batchsize"));
+            mailOutboxPollInterval = Integer.parseInt(properties.getProperty("mail.outbox.pollinterval"));
+            mailOutboxLease = Integer.parseInt(properties.getProperty("mail.outbox.lease"));
+            mailOutboxMaxAttempts = Integer.parseInt(properties.getProperty("mail.outbox.maxattempts"));
+            mailOutboxRetryBackoff = Integer.parseInt(properties.getProperty("mail.outbox.retrybackoff"));
+
+            mailPoolSize = Integer.parseInt(properties.getProperty("mail.pool.size"));
+            mailPoolMaxIdle = Integer.parseInt(properties.getProperty("mail.pool.maxidle"));
+            mailPoolMaxMessages = Integer.parseInt(properties.getProperty("mail.pool.maxmessages"));
+            mailPoolBorrowTimeout = Integer.parseInt(properties.getProperty("mail.pool.borrowtimeout"));
+
+            invitationSenderLimit = Integer.parseInt(properties.getProperty("mail.invitation.sender.limit"));
+            invitationSenderWindow = Integer.parseInt(properties.getProperty("mail.invitation.sender.window"));
+
+            databasePoolPartitions = Integer.parseInt(properties.getProperty("db.pool.partitions"));
+            databasePoolMinConnections = Integer.parseInt(properties.getProperty("db.pool.minconnections"));
+            databasePoolMaxConnections = Integer.parseInt(properties.getProperty("db.pool.maxconnections"));
+            databasePoolAcquireIncrement = Integer.parseInt(properties.getProperty("db.pool.acquireincrement"));
+            databasePoolStatementCache = Integer.parseInt(properties.getProperty("db.pool.statementcache"));
+            databasePoolAcquireTimeout = Integer.parseInt(properties.getProperty("db.pool.acquiretimeout"));
+
+            serverAcceptors = Integer.parseInt(properties.getProperty("server.acceptors"));
+            serverAcceptQueueSize = Integer.parseInt(properties.getProperty("server.acceptqueue"));
+            serverIdleTimeout = Integer.parseInt(properties.getProperty("server.idletimeout"));
+            serverMinThreads = Integer.parseInt(properties.getProperty("server.threads.min"));
+            serverMaxThreads = Integer.parseInt(properties.getProperty("server.threads.max"));
+
+            endpointReadThreads = Integer.parseInt(properties.getProperty("endpoint.read.threads"));
+            endpointReadQueueSize = Integer.parseInt(properties.getProperty("endpoint.read.queue"));
+            endpointWriteThreads = Integer.parseInt(properties.getProperty("endpoint.write.threads"));
+            endpointWriteQueueSize = Integer.parseInt(properties.getProperty("endpoint.write.queue"));
+            endpointGetUserTimeout = Integer.parseInt(properties.getProperty("endpoint.getuser.timeout"));
+            endpointGetUsersTimeout = Integer.parseInt(properties.getProperty("endpoint.getusers.timeout"));
+            endpointGetChangesTimeout = Integer.parseInt(properties.getProperty("endpoint.getchanges.timeout"));
+            endpointRegisterTimeout = Integer.parseInt(properties.getProperty("endpoint.register.timeout"));
+            endpointActivateTimeout = Integer.parseInt(properties.getProperty("endpoint.activate.timeout"));
+            endpointRenewActivationCodeTimeout = Integer.parseInt(properties.getProperty("endpoint.renewactivationcode.timeout"));
+            endpointInviteTimeout = Integer.parseInt(properties.getProperty("endpoint.invite.timeout"));
+
+            databaseTrackingEnabled = "true".equals(properties.getProperty("db.tracking.enabled"));
+            databaseTrackingStrict = "true".equals(properties.getProperty("db.tracking.strict"));
+            databaseTrackingLongHold = Long.parseLong(properties.getProperty("db.tracking.longhold"));
+
+            databasePrepareThreshold = Integer.parseInt(properties.getProperty("db.preparethreshold"));
+
+            serverTimingEnabled = "true".equals(properties.getProperty("server.timing.enabled"));
+
+            jfrEventsEnabled = "true".equals(properties.getProperty("jfr.events.enabled"));
+
+            userSingleFlightEnabled = "true".equals(properties.getProperty("singleflight.user.enabled"));
+            userSingleFlightMaxWait = Long.parseLong(properties.getProperty("singleflight.user.maxwait"));
+
+            userBatchEnabled = "true".equals(properties.getProperty("batch.user.enabled"));
+            userBatchWindow = Long.parseLong(properties.getProperty("batch.user.window"));
+            userBatchMaxSize = Integer.parseInt(properties.getProperty("batch.user.maxsize"));
+            userBatchMaxWait = Long.parseLong(properties.getProperty("batch.user.maxwait"));
+
+            userChangesPageSize = Integer.parseInt(properties.getProperty("changes.user.pagesize"));
+            userChangesSettle = Long.parseLong(properties.getProperty("changes.user.settle"));
+
+            eventsEnabled = "true".equals(properties.getProperty("events.enabled"));
+            eventsInterval = Long.parseLong(properties.getProperty("events.interval"));
+            eventsHeartbeat = Long.parseLong(properties.getProperty("events.heartbeat"));
+            eventsMaxSubscriptions = Integer.parseInt(properties.getProperty("events.maxsubscriptions"));
+            eventsQueueSize = Integer.parseInt(properties.getProperty("events.queue"));
+            eventsWriterThreads = Integer.parseInt(properties.getProperty("events.writer.threads"));
+
+            userBloomEnabled = "true".equals(properties.getProperty("bloom.user.enabled"));
+            userBloomExpectedUsers = Integer.parseInt(properties.getProperty("bloom.user.expected"));
+            userBloomFalsePositiveRate = Double.parseDouble(properties.getProperty("bloom.user.fpp"));
+            userBloomMaxBytes = Long.parseLong(properties.getProperty("bloom.user.maxbytes"));
+            userBloomRebuildInterval = Integer.parseInt(properties.getProperty("bloom.user.rebuild"));
+
+            mailOutboxRetention = Integer.parseInt(properties.getProperty("mail.outbox.retention"));
+            mailOutboxPurgeInterval = Long.parseLong(properties.getProperty("mail.outbox.purgeinterval"));
+
+            eventsWriteTimeout = Long.parseLong(properties.getProperty("events.write.timeout"));
+
         } catch (Exception e) {
             throw new Error("Error during reading properties from " + properties, e);
         }
@@ -152,6 +338,9 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
         return databasePassword;
     }
 
+    @Override
+    public int getBulkLookupChunkSize() { return bulkLookupChunkSize; }
+
     @Override
     public String getSipDomain() { return sipDomain; }
 
@@ -203,6 +392,216 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
     @Override
     public int getActivationCodeLength() { return activationCodeLength; }
 
+    @Override
+    public boolean getUserCacheEnabled() { return userCacheEnabled; }
+
+    @Override
+    public int getUserCacheMaxSize() { return userCacheMaxSize; }
+
+    @Override
+    public int getUserCacheTtl() { return userCacheTtl; }
+
+    @Override
+    public boolean getPresenceEnabled() { return presenceEnabled; }
+
+    @Override
+    public int getPresenceRefreshInterval() { return presenceRefreshInterval; }
+
+    @Override
+    public int getPresenceFullRefreshInterval() { return presenceFullRefreshInterval; }
+
+    @Override
+    public int getPresenceMaxStaleness() { return presenceMaxStaleness; }
+
+    @Override
+    public boolean getMailOutboxEnabled() { return mailOutboxEnabled; }
+
+    @Override
+    public int getMailOutboxThreads() { return mailOutboxThreads; }
+
+    @Override
+    public int getMailOutboxBatchSize() { return mailOutboxBatchSize; }
+
+    @Override
+    public int getMailOutboxPollInterval() { return mailOutboxPollInterval; }
+
+    @Override
+    public int getMailOutboxLease() { return mailOutboxLease; }
+
+    @Override
+    public int getMailOutboxMaxAttempts() { return mailOutboxMaxAttempts; }
+
+    @Override
+    public int getMailOutboxRetryBackoff() { return mailOutboxRetryBackoff; }
+
+    @Override
+    public int getMailPoolSize() { return mailPoolSize; }
+
+    @Override
+    public int getMailPoolMaxIdle() { return mailPoolMaxIdle; }
+
+    @Override
+    public int getMailPoolMaxMessages() { return mailPoolMaxMessages; }
+
+    @Override
+    public int getMailPoolBorrowTimeout() { return mailPoolBorrowTimeout; }
+
+    @Override
+    public int getInvitationSenderLimit() { return invitationSenderLimit; }
+
+    @Override
+    public int getInvitationSenderWindow() { return invitationSenderWindow; }
+
+    @Override
+    public int getDatabasePoolPartitions() { return databasePoolPartitions; }
+
+    @Override
+    public int getDatabasePoolMinConnections() { return databasePoolMinConnections; }
+
+    @Override
+    public int getDatabasePoolMaxConnections() { return databasePoolMaxConnections; }
+
+    @Override
+    public int getDatabasePoolAcquireIncrement() { return databasePoolAcquireIncrement; }
+
+    @Override
+    public int getDatabasePoolStatementCache() { return databasePoolStatementCache; }
+
+    @Override
+    public int getDatabasePoolAcquireTimeout() { return databasePoolAcquireTimeout; }
+
+    @Override
+    public int getServerAcceptors() { return serverAcceptors; }
+
+    @Override
+    public int getServerAcceptQueueSize() { return serverAcceptQueueSize; }
+
+    @Override
+    public int getServerIdleTimeout() { return serverIdleTimeout; }
+
+    @Override
+    public int getServerMinThreads() { return serverMinThreads; }
+
+    @Override
+    public int getServerMaxThreads() { return serverMaxThreads; }
+
+    @Override
+    public int getEndpointReadThreads() { return endpointReadThreads; }
+
+    @Override
+    public int getEndpointReadQueueSize() { return endpointReadQueueSize; }
+
+    @Override
+    public int getEndpointWriteThreads() { return endpointWriteThreads; }
+
+    @Override
+    public int getEndpointWriteQueueSize() { return endpointWriteQueueSize; }
+
+    @Override
+    public int getEndpointGetUserTimeout() { return endpointGetUserTimeout; }
+
+    @Override
+    public int getEndpointGetUsersTimeout() { return endpointGetUsersTimeout; }
+
+    @Override
+    public int getEndpointGetChangesTimeout() { return endpointGetChangesTimeout; }
+
+    @Override
+    public int getEndpointRegisterTimeout() { return endpointRegisterTimeout; }
+
+    @Override
+    public int getEndpointActivateTimeout() { return endpointActivateTimeout; }
+
+    @Override
+    public int getEndpointRenewActivationCodeTimeout() { return endpointRenewActivationCodeTimeout; }
+
+    @Override
+    public int getEndpointInviteTimeout() { return endpointInviteTimeout; }
+
+    @Override
+    public boolean getDatabaseTrackingEnabled() { return databaseTrackingEnabled; }
+
+    @Override
+    public boolean getDatabaseTrackingStrict() { return databaseTrackingStrict; }
+
+    @Override
+    public long getDatabaseTrackingLongHold() { return databaseTrackingLongHold; }
+
+    @Override
+    public int getDatabasePrepareThreshold() { return databasePrepareThreshold; }
+
+    @Override
+    public boolean getServerTimingEnabled() { return serverTimingEnabled; }
+
+    @Override
+    public boolean getJfrEventsEnabled() { return jfrEventsEnabled; }
+
+    @Override
+    public boolean getUserSingleFlightEnabled() { return userSingleFlightEnabled; }
+
+    @Override
+    public long getUserSingleFlightMaxWait() { return userSingleFlightMaxWait; }
+
+    @Override
+    public boolean getUserBatchEnabled() { return userBatchEnabled; }
+
+    @Override
+    public long getUserBatchWindow() { return userBatchWindow; }
+
+    @Override
+    public int getUserBatchMaxSize() { return userBatchMaxSize; }
+
+    @Override
+    public long getUserBatchMaxWait() { return userBatchMaxWait; }
+
+    @Override
+    public int getUserChangesPageSize() { return userChangesPageSize; }
+
+    @Override
+    public long getUserChangesSettle() { return userChangesSettle; }
+
+    @Override
+    public boolean getEventsEnabled() { return eventsEnabled; }
+
+    @Override
+    public long getEventsInterval() { return eventsInterval; }
+
+    @Override
+    public long getEventsHeartbeat() { return eventsHeartbeat; }
+
+    @Override
+    public int getEventsMaxSubscriptions() { return eventsMaxSubscriptions; }
+
+    @Override
+    public int getEventsQueueSize() { return eventsQueueSize; }
+
+    @Override
+    public int getEventsWriterThreads() { return eventsWriterThreads; }
+
+    @Override
+    public boolean getUserBloomEnabled() { return userBloomEnabled; }
+
+    @Override
+    public int getUserBloomExpectedUsers() { return userBloomExpectedUsers; }
+
+    @Override
+    public double getUserBloomFalsePositiveRate() { return userBloomFalsePositiveRate; }
+
+    @Override
+    public long getUserBloomMaxBytes() { return userBloomMaxBytes; }
+
+    @Override
+    public int getUserBloomRebuildInterval() { return userBloomRebuildInterval; }
+
+    @Override
+    public int getMailOutboxRetention() { return mailOutboxRetention; }
+
+    @Override
+    public long getMailOutboxPurgeInterval() { return mailOutboxPurgeInterval; }
+
+    @Override
+    public long getEventsWriteTimeout() { return eventsWriteTimeout; }
+
     @Override
     public String toString() {
         return "ConfigManager{" + '\n'
@@ -217,6 +616,7 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
                 + ",db.url=" + databaseUrl + '\n'
                 + ",db.user=" + databaseUser + '\n'
                 + ",db.password=XXX" + '\n'
+                + ",db.bulklookup.chunksize=" + bulkLookupChunkSize + '\n'
                 + ",sip.domain=" + sipDomain + '\n'
                 + ",sip.context=" + sipContext + '\n'
                 + ",smtp.host=" + smtpHost + '\n'
@@ -234,6 +634,76 @@ public class PropertiesConfigManagerImpl implements ConfigManager {
                 + ",mail.renewactivationcode.subject=" + renewActivationCodeSubject + '\n'
                 + ",mail.renewactivationcode.body=" + renewActivationCodeBody + '\n'
                 + ",misc.activationcode.length=" + activationCodeLength + '\n'
+                + ",cache.user.enabled=" + userCacheEnabled + '\n'
+                + ",cache.user.maxsize=" + userCacheMaxSize + '\n'
+                + ",cache.user.ttl=" + userCacheTtl + '\n'
+                + ",presence.enabled=" + presenceEnabled + '\n'
+                + ",presence.refresh.interval=" + presenceRefreshInterval + '\n'
+                + ",presence.fullrefresh.interval=" + presenceFullRefreshInterval + '\n'
+                + ",presence.maxstaleness=" + presenceMaxStaleness + '\n'
+                + ",mail.outbox.enabled=" + mailOutboxEnabled + '\n'
+                + ",mail.outbox.threads=" + mailOutboxThreads + '\n'
+                + ",mail.outbox.batchsize=" + mailOutboxBatchSize + '\n'
+                + ",mail.outbox.pollinterval=" + mailOutboxPollInterval + '\n'
+                + ",mail.outbox.lease=" + mailOutboxLease + '\n'
+                + ",mail.outbox.maxattempts=" + mailOutboxMaxAttempts + '\n'
+                + ",mail.outbox.retrybackoff=" + mailOutboxRetryBackoff + '\n'
+                + ",mail.pool.size=" + mailPoolSize + '\n'
+                + ",mail.pool.maxidle=" + mailPoolMaxIdle + '\n'
+                + ",mail.pool.maxmessages=" + mailPoolMaxMessages + '\n'
+                + ",mail.pool.borrowtimeout=" + mailPoolBorrowTimeout + '\n'
+                + ",mail.invitation.sender.limit=" + invitationSenderLimit + '\n'
+                + ",mail.invitation.sender.window=" + invitationSenderWindow + '\n'
+                + ",db.pool.partitions=" + databasePoolPartitions + '\n'
+                + ",db.pool.minconnections=" + databasePoolMinConnections + '\n'
+                + ",db.pool.maxconnections=" + databasePoolMaxConnections + '\n'
+                + ",db.pool.acquireincrement=" + databasePoolAcquireIncrement + '\n'
+                + ",db.pool.statementcache=" + databasePoolStatementCache + '\n'
+                + ",db.pool.acquiretimeout=" + databasePoolAcquireTimeout + '\n'
+                + ",server.acceptors=" + serverAcceptors + '\n'
+                + ",server.acceptqueue=" + serverAcceptQueueSize + '\n'
+                + ",server.idletimeout=" + serverIdleTimeout + '\n'
+                + ",server.threads.min=" + serverMinThreads + '\n'
+                + ",server.threads.max=" + serverMaxThreads + '\n'
+                + ",endpoint.read.threads=" + endpointReadThreads + '\n'
+                + ",endpoint.read.queue=" + endpointReadQueueSize + '\n'
+                + ",endpoint.write.threads=" + endpointWriteThreads + '\n'
+                + ",endpoint.write.queue=" + endpointWriteQueueSize + '\n'
+                + ",endpoint.getuser.timeout=" + endpointGetUserTimeout + '\n'
+                + ",endpoint.getusers.timeout=" + endpointGetUsersTimeout + '\n'
+                + ",endpoint.getchanges.timeout=" + endpointGetChangesTimeout + '\n'
+                + ",endpoint.register.timeout=" + endpointRegisterTimeout + '\n'
+                + ",endpoint.activate.timeout=" + endpointActivateTimeout + '\n'
+                + ",endpoint.renewactivationcode.timeout=" + endpointRenewActivationCodeTimeout + '\n'
+                + ",endpoint.invite.timeout=" + endpointInviteTimeout + '\n'
+                + ",db.tracking.enabled=" + databaseTrackingEnabled + '\n'
+                + ",db.tracking.strict=" + databaseTrackingStrict + '\n'
+                + ",db.tracking.longhold=" + databaseTrackingLongHold + '\n'
+                + ",db.preparethreshold=" + databasePrepareThreshold + '\n'
+                + ",server.timing.enabled=" + serverTimingEnabled + '\n'
+                + ",jfr.events.enabled=" + jfrEventsEnabled + '\n'
+                + ",singleflight.user.enabled=" + userSingleFlightEnabled + '\n'
+                + ",singleflight.user.maxwait=" + userSingleFlightMaxWait + '\n'
+                + ",batch.user.enabled=" + userBatchEnabled + '\n'
+                + ",batch.user.window=" + userBatchWindow + '\n'
+                + ",batch.user.maxsize=" + userBatchMaxSize + '\n'
+                + ",batch.user.maxwait=" + userBatchMaxWait + '\n'
+                + ",changes.user.pagesize=" + userChangesPageSize + '\n'
+                + ",changes.user.settle=" + userChangesSettle + '\n'
+                + ",events.enabled=" + eventsEnabled + '\n'
+                + ",events.interval=" + eventsInterval + '\n'
+                + ",events.heartbeat=" + eventsHeartbeat + '\n'
+                + ",events.maxsubscriptions=" + eventsMaxSubscriptions + '\n'
+                + ",events.queue=" + eventsQueueSize + '\n'
+                + ",events.writer.threads=" + eventsWriterThreads + '\n'
+                + ",bloom.user.enabled=" + userBloomEnabled + '\n'
+                + ",bloom.user.expected=" + userBloomExpectedUsers + '\n'
+                + ",bloom.user.fpp=" + userBloomFalsePositiveRate + '\n'
+                + ",bloom.user.maxbytes=" + userBloomMaxBytes + '\n'
+                + ",bloom.user.rebuild=" + userBloomRebuildInterval + '\n'
+                + ",mail.outbox.retention=" + mailOutboxRetention + '\n'
+                + ",mail.outbox.purgeinterval=" + mailOutboxPurgeInterval + '\n'
+                + ",events.write.timeout=" + eventsWriteTimeout + '\n'
                 + "}";
     }
 }
@@ -0,0 +1,21 @@
+package io.ringring.server.events;
+
+import java.util.Collection;
+
+/**
+ * Pushes the activation and presence changes of users to the subscribers that have them as contacts.
+ * The changes are detected once for all subscribers and fanned out to their streams.
+ */
+public interface ContactEventBroker {
+
+    void start();
+    void stop();
+
+    // False when events are disabled or the subscription limit is reached
+    boolean subscribe(Collection<String> emails, EventSink sink);
+    void unsubscribe(EventSink sink);
+
+    int getSubscriptionCount();
+    long getEventCount();
+    long getDroppedCount();
+}
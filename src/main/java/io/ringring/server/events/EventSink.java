@@ -0,0 +1,19 @@
+package io.ringring.server.events;
+
+import java.io.IOException;
+
+/**
+ * The stream of one subscription to the {@link ContactEventBroker}. Only one thread writes to a sink
+ * at a time.
+ */
+public interface EventSink {
+
+    void write(String event) throws IOException;
+    void flush() throws IOException;
+
+    // Ends the stream, the broker dropped the subscription
+    void close();
+
+    // Breaks the connection, a write blocked on a stalled client fails instead of waiting for it
+    void abort();
+}
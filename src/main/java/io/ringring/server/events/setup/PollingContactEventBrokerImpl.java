@@ -0,0 +1,452 @@
+package io.ringring.server.events.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.User;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.events.ContactEventBroker;
+import io.ringring.server.events.EventSink;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+import io.ringring.server.presence.PresenceManager;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.ringring.server.persistence.repositories.setup.PlainSqlUserRepositoryImpl.sipDecode;
+import static io.ringring.server.persistence.repositories.setup.PlainSqlUserRepositoryImpl.sipEncode;
+
+/**
+ * Detects the activation and presence changes of users every events.interval milliseconds and queues
+ * them as Server-Sent Events for the subscribers that have the changed users as contacts.
+ *
+ * Activations are walked along the (updated_at, id) index of ringring_users from the last change seen,
+ * presence changes come from the presence index. A small pool of writer threads drains the queues, a
+ * subscriber whose queue grows beyond events.queue is disconnected and has to sync again.
+ *
+ * The writes block. A write that takes longer than events.write.timeout is aborted by the publisher and
+ * the subscriber disconnected, so a stalled client holds a writer thread for a bounded time only.
+ */
+@Singleton
+public class PollingContactEventBrokerImpl implements ContactEventBroker {
+    private static final Logger logger = LoggerFactory.getLogger(PollingContactEventBrokerImpl.class);
+
+    // 0001-01-01, the position before any update when ringring_users is empty
+    private static final long BEFORE_ANY_UPDATE = -62135596800000000L;
+
+    // A refresh of the presence index may still be noting a change this old
+    private static final long PRESENCE_GUARD = 100;
+
+    private static final String SUBSCRIBED = ": subscribed\n\n";
+    private static final String HEARTBEAT = ": heartbeat\n\n";
+
+    private final ConnectionManager connectionManager;
+    private final StatementCatalog statementCatalog;
+    private final PresenceManager presenceManager;
+    private final ConfigManager configManager;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final boolean enabled;
+    private final long interval;
+    private final long heartbeatNanos;
+    private final int maxSubscriptions;
+    private final int queueSize;
+    private final int writerThreads;
+    private final long writeTimeoutNanos;
+
+    private final ConcurrentHashMap<EventSink, Subscription> subscriptions = new ConcurrentHashMap<EventSink, Subscription>();
+    // Contact email -> subscriptions, changed under its own lock and read without it
+    private final ConcurrentHashMap<String, Set<Subscription>> subscriptionsByEmail = new ConcurrentHashMap<String, Set<Subscription>>();
+
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    // Only touched by the publishing thread
+    private long lastUpdatedAt = BEFORE_ANY_UPDATE;
+    private int lastId;
+    private boolean positioned;
+    private long presenceFrom;
+    private long lastHeartbeatAt = System.nanoTime();
+
+    private volatile ScheduledExecutorService publisher;
+    private volatile ExecutorService writers;
+
+    @Inject
+    public PollingContactEventBrokerImpl(ConnectionManager connectionManager, StatementCatalog statementCatalog, PresenceManager presenceManager, ConfigManager configManager) {
+        this.connectionManager = connectionManager;
+        this.statementCatalog = statementCatalog;
+        this.presenceManager = presenceManager;
+        this.configManager = configManager;
+
+        this.enabled = configManager.getEventsEnabled();
+        this.interval = configManager.getEventsInterval();
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getEventsHeartbeat());
+        this.maxSubscriptions = configManager.getEventsMaxSubscriptions();
+        this.queueSize = configManager.getEventsQueueSize();
+        this.writerThreads = configManager.getEventsWriterThreads();
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getEventsWriteTimeout());
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled || publisher != null) return;
+
+        writers = Executors.newFixedThreadPool(writerThreads, threadFactory("contact-events-writer-"));
+        publisher = Executors.newSingleThreadScheduledExecutor(threadFactory("contact-events-"));
+        publisher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (publisher == null) return;
+
+        publisher.shutdownNow();
+        writers.shutdownNow();
+        publisher = null;
+        writers = null;
+
+        for (Subscription subscription : subscriptions.values()) {
+            drop(subscription);
+        }
+    }
+
+    @Override
+    public boolean subscribe(Collection<String> emails, EventSink sink) {
+        if (publisher == null || subscriptions.size() >= maxSubscriptions) return false;
+
+        Set<String> emailSet = new LinkedHashSet<String>();
+        for (String email : emails) {
+            if (email != null) {
+                emailSet.add(email.trim().toLowerCase());
+            }
+        }
+
+        Subscription subscription = new Subscription(sink, emailSet);
+        synchronized (subscriptionsByEmail) {
+            subscriptions.put(sink, subscription);
+            for (String email : emailSet) {
+                Set<Subscription> subscribers = subscriptionsByEmail.get(email);
+                if (subscribers == null) {
+                    subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+                    subscriptionsByEmail.put(email, subscribers);
+                }
+                subscribers.add(subscription);
+            }
+        }
+
+        // Every stream starts with a comment, the client knows it is subscribed
+        subscription.offer(SUBSCRIBED);
+        return true;
+    }
+
+    @Override
+    public void unsubscribe(EventSink sink) {
+        synchronized (subscriptionsByEmail) {
+            Subscription subscription = subscriptions.remove(sink);
+            if (subscription == null) return;
+
+            subscription.closed = true;
+            for (String email : subscription.emails) {
+                Set<Subscription> subscribers = subscriptionsByEmail.get(email);
+                if (subscribers != null) {
+                    subscribers.remove(subscription);
+                    if (subscribers.isEmpty()) {
+                        subscriptionsByEmail.remove(email);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getSubscriptionCount() { return subscriptions.size(); }
+
+    @Override
+    public long getEventCount() { return eventCount.get(); }
+
+    @Override
+    public long getDroppedCount() { return droppedCount.get(); }
+
+    void publish() {
+        try {
+            abortStalledWrites();
+
+            Map<String, User> changedUsers = new LinkedHashMap<String, User>();
+            readActivations(changedUsers);
+            readPresenceChanges(changedUsers);
+
+            // One event per changed user, shared by all of its subscribers
+            for (User user : changedUsers.values()) {
+                Set<Subscription> subscribers = subscriptionsByEmail.get(user.getEmail());
+                if (subscribers == null) continue;
+
+                String event = "event: user\ndata: " + objectMapper.writeValueAsString(user) + "\n\n";
+                for (Subscription subscription : subscribers) {
+                    subscription.offer(event);
+                    eventCount.incrementAndGet();
+                }
+            }
+
+            // Idle streams would be closed by the connector, broken ones are only noticed on a write
+            if (System.nanoTime() - lastHeartbeatAt >= heartbeatNanos) {
+                lastHeartbeatAt = System.nanoTime();
+                for (Subscription subscription : subscriptions.values()) {
+                    subscription.offer(HEARTBEAT);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to publish contact events", e);
+        }
+    }
+
+    // Changes are walked even without subscribers, a new subscriber gets everything after subscribing
+    private void readActivations(Map<String, User> changedUsers) throws SQLException {
+        Connection connection = connectionManager.getConnection();
+        try {
+            if (!positioned) {
+                readLastChange(connection);
+                positioned = true;
+                return;
+            }
+
+            int pageSize = configManager.getUserChangesPageSize();
+            int rows;
+            do {
+                PreparedStatement query = null;
+                try {
+                    query = statementCatalog.prepare(connection, SqlStatement.GET_ACTIVATED_USER_CHANGES);
+                    query.setLong(1, lastUpdatedAt);
+                    query.setInt(2, lastId);
+                    query.setLong(3, configManager.getUserChangesSettle());
+                    query.setInt(4, pageSize);
+
+                    long started = System.nanoTime();
+                    ResultSet rs = query.executeQuery();
+                    rows = 0;
+                    while (rs.next()) {
+                        String email = rs.getString(1);
+                        if (subscriptionsByEmail.containsKey(email)) {
+                            changedUsers.put(email, currentUser(email));
+                        }
+                        lastUpdatedAt = rs.getLong(2);
+                        lastId = rs.getInt(3);
+                        rows++;
+                    }
+                    rs.close();
+                    statementCatalog.recordExecution(SqlStatement.GET_ACTIVATED_USER_CHANGES, rows, started);
+                } finally {
+                    close(query);
+                }
+            } while (rows == pageSize);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void readLastChange(Connection connection) throws SQLException {
+        PreparedStatement query = null;
+        try {
+            query = statementCatalog.prepare(connection, SqlStatement.GET_LAST_USER_CHANGE);
+
+            long started = System.nanoTime();
+            ResultSet rs = query.executeQuery();
+            int rows = 0;
+            if (rs.next()) {
+                lastUpdatedAt = rs.getLong(1);
+                lastId = rs.getInt(2);
+                rows++;
+            }
+            rs.close();
+            statementCatalog.recordExecution(SqlStatement.GET_LAST_USER_CHANGE, rows, started);
+        } finally {
+            close(query);
+        }
+    }
+
+    private void readPresenceChanges(Map<String, User> changedUsers) {
+        long presenceTo = System.currentTimeMillis() - PRESENCE_GUARD;
+
+        if (presenceFrom != 0 && presenceManager.isFresh()) {
+            for (String sipUser : presenceManager.getChanges(presenceFrom, presenceTo)) {
+                String email = sipDecode(sipUser);
+                if (subscriptionsByEmail.containsKey(email) && !changedUsers.containsKey(email)) {
+                    changedUsers.put(email, currentUser(email));
+                }
+            }
+        }
+
+        presenceFrom = presenceTo;
+    }
+
+    // Both kinds of changes are about activated users, only they have a SIP user
+    private User currentUser(String email) {
+        return new User(email, "XXXXX", true, presenceManager.isOnline(sipEncode(email)));
+    }
+
+    // Closing a statement also closes its result set
+    private static void close(Statement stmt) {
+        if (stmt == null) return;
+
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            logger.warn("Unable to close statement", e);
+        }
+    }
+
+    private void abortStalledWrites() {
+        long now = System.nanoTime();
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.isStalled(now)) {
+                droppedCount.incrementAndGet();
+                drop(subscription);
+                subscription.abort();
+            }
+        }
+    }
+
+    private void drop(Subscription subscription) {
+        unsubscribe(subscription.sink);
+        subscription.sink.close();
+    }
+
+    private static ThreadFactory threadFactory(final String prefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private class Subscription implements Runnable {
+        private final EventSink sink;
+        private final Set<String> emails;
+
+        private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        // When the running write started, 0 between writes
+        private volatile long writeStartedAt;
+        // The writer thread while it drains the queue, guarded by this
+        private Thread writer;
+
+        Subscription(EventSink sink, Set<String> emails) {
+            this.sink = sink;
+            this.emails = emails;
+        }
+
+        void offer(String event) {
+            if (closed) return;
+
+            if (queued.incrementAndGet() > queueSize) {
+                droppedCount.incrementAndGet();
+                drop(this);
+                return;
+            }
+
+            queue.offer(event);
+            schedule();
+        }
+
+        // At most one writer drains a queue at a time
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true)) return;
+
+            try {
+                ExecutorService executor = writers;
+                if (executor == null) throw new RejectedExecutionException();
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                drop(this);
+            }
+        }
+
+        boolean isStalled(long now) {
+            long started = writeStartedAt;
+
+            return started != 0 && now - started > writeTimeoutNanos;
+        }
+
+        // The interrupt wakes the writer up, the broken connection makes its write fail
+        void abort() {
+            sink.abort();
+            synchronized (this) {
+                if (writer != null) writer.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                writer = Thread.currentThread();
+            }
+
+            try {
+                String event;
+                while (!closed && (event = queue.poll()) != null) {
+                    queued.decrementAndGet();
+                    writeStartedAt = System.nanoTime();
+                    sink.write(event);
+                }
+                writeStartedAt = System.nanoTime();
+                sink.flush();
+            } catch (IOException e) {
+                // The client went away
+                drop(this);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to write contact events", e);
+                drop(this);
+            } finally {
+                writeStartedAt = 0;
+                synchronized (this) {
+                    writer = null;
+                }
+                // An abort may land after the write, it must not reach the next task of the thread
+                Thread.interrupted();
+                scheduled.set(false);
+            }
+
+            // Events offered while the flag was still set
+            if (!closed && !queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
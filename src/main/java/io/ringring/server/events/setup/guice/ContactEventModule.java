@@ -0,0 +1,18 @@
+package io.ringring.server.events.setup.guice;
+
+import com.google.inject.AbstractModule;
+import io.ringring.server.events.ContactEventBroker;
+import io.ringring.server.events.setup.PollingContactEventBrokerImpl;
+import io.ringring.server.presence.setup.guice.PresenceModule;
+
+/**
+ * Binds the contact event broker.
+ */
+public class ContactEventModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(ContactEventBroker.class).to(PollingContactEventBrokerImpl.class);
+        install(new PresenceModule());
+    }
+}
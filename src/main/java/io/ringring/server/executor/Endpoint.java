@@ -0,0 +1,25 @@
+package io.ringring.server.executor;
+
+/**
+ * The API endpoints that run on the {@link EndpointExecutor}. Reads and writes use separate pools,
+ * so a burst of slow writes cannot take the threads of the cheap lookups.
+ */
+public enum Endpoint {
+    GET_USER(false),
+    GET_USERS(false),
+    GET_CHANGES(false),
+    REGISTER(true),
+    ACTIVATE(true),
+    RENEW_ACTIVATION_CODE(true),
+    INVITE(true);
+
+    private final boolean write;
+
+    Endpoint(boolean write) {
+        this.write = write;
+    }
+
+    public boolean isWrite() {
+        return write;
+    }
+}
@@ -0,0 +1,30 @@
+package io.ringring.server.executor;
+
+import io.ringring.core.exceptions.ServerBusyException;
+
+/**
+ * Runs the requests of an endpoint on a bounded pool with the timeout of the endpoint.
+ */
+public interface EndpointExecutor {
+
+    /**
+     * Queues the task without waiting for it. If the task has not completed within the endpoint timeout
+     * it is interrupted and onTimeout runs instead, on a thread of the executor.
+     *
+     * @throws ServerBusyException if the pool of the endpoint is saturated
+     */
+    void execute(Endpoint endpoint, Runnable task, Runnable onTimeout) throws ServerBusyException;
+
+    /**
+     * Completes the task running on the current thread, so it can no longer time out. Returns false if
+     * it has timed out already and its onTimeout has taken over, true outside of a task.
+     */
+    boolean complete();
+
+    void stop();
+
+    int getActiveCount(Endpoint endpoint);
+    int getQueueSize(Endpoint endpoint);
+    long getRejectedCount(Endpoint endpoint);
+    long getTimeoutCount(Endpoint endpoint);
+}
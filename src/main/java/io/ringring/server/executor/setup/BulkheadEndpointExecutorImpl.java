@@ -0,0 +1,212 @@
+package io.ringring.server.executor.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.exceptions.ServerBusyException;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.executor.Endpoint;
+import io.ringring.server.executor.EndpointExecutor;
+import io.ringring.server.metrics.ServerTiming;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs reads and writes on two separate bounded thread pools with bounded queues.
+ *
+ * Nobody waits for the tasks, the HTTP request of a task is suspended until the task answers it, see
+ * {@link io.ringring.server.servlet.EndpointDispatchFilter}. A saturated pool rejects new work right away.
+ * A task that has not completed within the endpoint timeout is interrupted, or dropped from the queue,
+ * and its onTimeout answers instead. A write may still complete after the timeout.
+ */
+@Singleton
+public class BulkheadEndpointExecutorImpl implements EndpointExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(BulkheadEndpointExecutorImpl.class);
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // The task running on the current pool thread
+    private static final ThreadLocal<EndpointTask> currentTask = new ThreadLocal<EndpointTask>();
+
+    private final ThreadPoolExecutor readExecutor;
+    private final ThreadPoolExecutor writeExecutor;
+    private final ScheduledThreadPoolExecutor timeoutExecutor;
+    private final long[] timeouts = new long[Endpoint.values().length];
+
+    private final AtomicLongArray rejectedCounts = new AtomicLongArray(Endpoint.values().length);
+    private final AtomicLongArray timeoutCounts = new AtomicLongArray(Endpoint.values().length);
+
+    @Inject
+    public BulkheadEndpointExecutorImpl(ConfigManager configManager) {
+        this.readExecutor = createExecutor("endpoint-read", configManager.getEndpointReadThreads(), configManager.getEndpointReadQueueSize());
+        this.writeExecutor = createExecutor("endpoint-write", configManager.getEndpointWriteThreads(), configManager.getEndpointWriteQueueSize());
+
+        // Completed tasks cancel their timeout, do not keep those around until they are due
+        this.timeoutExecutor = new ScheduledThreadPoolExecutor(1, createThreadFactory("endpoint-timeout"));
+        this.timeoutExecutor.setRemoveOnCancelPolicy(true);
+
+        timeouts[Endpoint.GET_USER.ordinal()] = configManager.getEndpointGetUserTimeout();
+        timeouts[Endpoint.GET_USERS.ordinal()] = configManager.getEndpointGetUsersTimeout();
+        timeouts[Endpoint.GET_CHANGES.ordinal()] = configManager.getEndpointGetChangesTimeout();
+        timeouts[Endpoint.REGISTER.ordinal()] = configManager.getEndpointRegisterTimeout();
+        timeouts[Endpoint.ACTIVATE.ordinal()] = configManager.getEndpointActivateTimeout();
+        timeouts[Endpoint.RENEW_ACTIVATION_CODE.ordinal()] = configManager.getEndpointRenewActivationCodeTimeout();
+        timeouts[Endpoint.INVITE.ordinal()] = configManager.getEndpointInviteTimeout();
+    }
+
+    @Override
+    public void execute(Endpoint endpoint, Runnable task, Runnable onTimeout) throws ServerBusyException {
+        final EndpointTask endpointTask = new EndpointTask(endpoint, withServerTiming(task), onTimeout);
+        try {
+            endpointTask.future = executorFor(endpoint).submit(endpointTask);
+        } catch (RejectedExecutionException e) {
+            rejectedCounts.incrementAndGet(endpoint.ordinal());
+            throw new ServerBusyException(endpoint + " is saturated", e);
+        }
+
+        endpointTask.timeout = timeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                endpointTask.timeOut();
+            }
+        }, timeouts[endpoint.ordinal()], TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean complete() {
+        EndpointTask task = currentTask.get();
+
+        return task == null || task.complete();
+    }
+
+    @Override
+    public void stop() {
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+        timeoutExecutor.shutdownNow();
+    }
+
+    @Override
+    public int getActiveCount(Endpoint endpoint) { return executorFor(endpoint).getActiveCount(); }
+
+    @Override
+    public int getQueueSize(Endpoint endpoint) { return executorFor(endpoint).getQueue().size(); }
+
+    @Override
+    public long getRejectedCount(Endpoint endpoint) { return rejectedCounts.get(endpoint.ordinal()); }
+
+    @Override
+    public long getTimeoutCount(Endpoint endpoint) { return timeoutCounts.get(endpoint.ordinal()); }
+
+    // The pool threads record into the timing of the request they work for
+    private static Runnable withServerTiming(final Runnable task) {
+        final ServerTiming timing = ServerTiming.current();
+        if (timing == null) return task;
+
+        final long submitted = System.nanoTime();
+        return new Runnable() {
+            @Override
+            public void run() {
+                ServerTiming previous = ServerTiming.attach(timing);
+                try {
+                    ServerTiming.record(ServerTiming.Phase.QUEUE, submitted);
+                    task.run();
+                } finally {
+                    ServerTiming.attach(previous);
+                }
+            }
+        };
+    }
+
+    private ThreadPoolExecutor executorFor(Endpoint endpoint) {
+        return endpoint.isWrite() ? writeExecutor : readExecutor;
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                createThreadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private class EndpointTask implements Runnable {
+        private static final int RUNNING = 0;
+        private static final int COMPLETED = 1;
+        private static final int TIMED_OUT = 2;
+
+        private final Endpoint endpoint;
+        private final Runnable task;
+        private final Runnable onTimeout;
+
+        // Leaves RUNNING once, whichever comes first decides who answers the request
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private volatile Future<?> future;
+        private volatile Future<?> timeout;
+
+        EndpointTask(Endpoint endpoint, Runnable task, Runnable onTimeout) {
+            this.endpoint = endpoint;
+            this.task = task;
+            this.onTimeout = onTimeout;
+        }
+
+        @Override
+        public void run() {
+            currentTask.set(this);
+            try {
+                task.run();
+            } finally {
+                currentTask.remove();
+                complete();
+            }
+        }
+
+        boolean complete() {
+            if (state.compareAndSet(RUNNING, COMPLETED)) {
+                Future<?> scheduledTimeout = timeout;
+                if (scheduledTimeout != null) scheduledTimeout.cancel(false);
+            }
+
+            return state.get() == COMPLETED;
+        }
+
+        void timeOut() {
+            if (!state.compareAndSet(RUNNING, TIMED_OUT)) return;
+
+            // A queued task gives its place in the queue back
+            future.cancel(true);
+            executorFor(endpoint).remove((Runnable) future);
+            timeoutCounts.incrementAndGet(endpoint.ordinal());
+
+            try {
+                onTimeout.run();
+            } catch (RuntimeException e) {
+                logger.warn("Unable to answer a timed out " + endpoint + " request", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package io.ringring.server.executor.setup.guice;
+
+import com.google.inject.AbstractModule;
+import io.ringring.server.config.setup.guice.ConfigManagerModule;
+import io.ringring.server.executor.EndpointExecutor;
+import io.ringring.server.executor.setup.BulkheadEndpointExecutorImpl;
+
+/**
+ * Binds the bounded executors of the API endpoints.
+ */
+public class EndpointExecutorModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(EndpointExecutor.class).to(BulkheadEndpointExecutorImpl.class);
+        install(new ConfigManagerModule());
+    }
+}
@@ -0,0 +1,17 @@
+package io.ringring.server.mail;
+
+/**
+ * Delivers the mails queued in the ringring_mail_outbox table in the background.
+ */
+public interface MailDispatcher {
+
+    void start();
+    void stop();
+
+    // Asks for a delivery round right away, e.g. after a mail has been queued
+    void wakeUp();
+
+    long getSentCount();
+    long getRetryCount();
+    long getFailedCount();
+}
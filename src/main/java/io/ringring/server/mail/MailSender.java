@@ -0,0 +1,27 @@
+package io.ringring.server.mail;
+
+import io.ringring.server.metrics.Histogram;
+
+import javax.mail.MessagingException;
+
+/**
+ * Delivers a plain text mail through the configured SMTP server.
+ */
+public interface MailSender {
+
+    void send(String to, String subject, String body) throws MessagingException;
+
+    // Closes the idle SMTP connections
+    void close();
+
+    int getOpenConnectionCount();
+    int getIdleConnectionCount();
+    long getSentCount();
+    long getCreatedConnectionCount();
+    long getReusedConnectionCount();
+    long getDiscardedConnectionCount();
+    long getBorrowTimeoutCount();
+
+    // Time spent in send(), including the wait for a connection, in microseconds
+    Histogram getSendTimeHistogram();
+}
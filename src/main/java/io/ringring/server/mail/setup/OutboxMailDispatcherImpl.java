@@ -0,0 +1,294 @@
+package io.ringring.server.mail.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.mail.MailDispatcher;
+import io.ringring.server.mail.MailSender;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the ringring_mail_outbox table with a pool of dispatcher threads.
+ *
+ * A dispatcher claims a batch of due mails by pushing their next attempt out by the lease time, so the
+ * other dispatchers (in this or another server) skip them. The database connection is released before
+ * talking to SMTP. Delivered mails are marked as sent, failed ones are retried with an exponential
+ * backoff until the maximum number of attempts is reached. Sent and failed mails are deleted once they
+ * are older than the retention time, the bodies carry activation codes.
+ */
+@Singleton
+public class OutboxMailDispatcherImpl implements MailDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(OutboxMailDispatcherImpl.class);
+
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final ConnectionManager connectionManager;
+    private final StatementCatalog statementCatalog;
+    private final MailSender mailSender;
+
+    private final boolean enabled;
+    private final int threads;
+    private final int batchSize;
+    private final long pollInterval;
+    private final long lease;
+    private final int maxAttempts;
+    private final long retryBackoff;
+    private final int retention;
+    private final long purgeInterval;
+
+    private final AtomicInteger pendingWakeUps = new AtomicInteger();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public OutboxMailDispatcherImpl(ConnectionManager connectionManager, StatementCatalog statementCatalog, MailSender mailSender, ConfigManager configManager) {
+        this.connectionManager = connectionManager;
+        this.statementCatalog = statementCatalog;
+        this.mailSender = mailSender;
+
+        this.enabled = configManager.getMailOutboxEnabled();
+        this.threads = configManager.getMailOutboxThreads();
+        this.batchSize = configManager.getMailOutboxBatchSize();
+        this.pollInterval = configManager.getMailOutboxPollInterval();
+        this.lease = configManager.getMailOutboxLease();
+        this.maxAttempts = configManager.getMailOutboxMaxAttempts();
+        this.retryBackoff = configManager.getMailOutboxRetryBackoff();
+        this.retention = configManager.getMailOutboxRetention();
+        this.purgeInterval = configManager.getMailOutboxPurgeInterval();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled || executor != null) return;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mail-dispatcher-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Every dispatcher polls on its own, spread over the interval
+        for (int i = 0; i < threads; i++) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, i * pollInterval / threads, pollInterval, TimeUnit.MILLISECONDS);
+        }
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                purge();
+            }
+        }, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        mailSender.close();
+    }
+
+    @Override
+    public synchronized void wakeUp() {
+        if (executor == null) return;
+
+        // More wake ups than dispatchers would only claim empty batches
+        if (pendingWakeUps.incrementAndGet() > threads) {
+            pendingWakeUps.decrementAndGet();
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pendingWakeUps.decrementAndGet();
+                dispatch();
+            }
+        });
+    }
+
+    @Override
+    public long getSentCount() { return sentCount.get(); }
+
+    @Override
+    public long getRetryCount() { return retryCount.get(); }
+
+    @Override
+    public long getFailedCount() { return failedCount.get(); }
+
+    void dispatch() {
+        try {
+            // Keep going while full batches are claimed, there is probably more waiting
+            List<OutboxMail> mails;
+            do {
+                mails = claim();
+                if (mails.size() > 0) {
+                    deliver(mails);
+                }
+            } while (mails.size() == batchSize && !Thread.currentThread().isInterrupted());
+        } catch (Exception e) {
+            logger.warn("Unable to dispatch mails from the outbox", e);
+        }
+    }
+
+    void purge() {
+        try {
+            Connection connection = connectionManager.getConnection();
+            PreparedStatement stmt = null;
+            try {
+                stmt = statementCatalog.prepare(connection, SqlStatement.PURGE_MAILS);
+                stmt.setInt(1, retention);
+                stmt.setInt(2, retention);
+
+                long started = System.nanoTime();
+                int rows = stmt.executeUpdate();
+                statementCatalog.recordExecution(SqlStatement.PURGE_MAILS, rows, started);
+
+                if (rows > 0) {
+                    logger.info("Purged " + rows + " mails older than " + retention + " hours from the outbox");
+                }
+            } finally {
+                if (stmt != null) stmt.close();
+                connection.close();
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to purge the mail outbox", e);
+        }
+    }
+
+    private List<OutboxMail> claim() throws SQLException {
+        List<OutboxMail> mails = new ArrayList<OutboxMail>();
+
+        Connection connection = connectionManager.getConnection();
+        try {
+            PreparedStatement stmt = statementCatalog.prepare(connection, SqlStatement.CLAIM_MAILS);
+            stmt.setLong(1, lease);
+            stmt.setInt(2, batchSize);
+
+            long started = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                mails.add(new OutboxMail(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getInt(5)));
+            }
+            rs.close();
+            statementCatalog.recordExecution(SqlStatement.CLAIM_MAILS, mails.size(), started);
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+
+        return mails;
+    }
+
+    private void deliver(List<OutboxMail> mails) throws SQLException {
+        for (OutboxMail mail : mails) {
+            try {
+                mailSender.send(mail.to, mail.subject, mail.body);
+            } catch (Exception e) {
+                mail.error = String.valueOf(e.getMessage());
+                logger.warn("Unable to send mail " + mail.id + " to " + mail.to + ", attempt " + mail.attempts, e);
+            }
+        }
+
+        Connection connection = connectionManager.getConnection();
+        try {
+            PreparedStatement sent = statementCatalog.prepare(connection, SqlStatement.MARK_MAIL_SENT);
+            PreparedStatement failed = statementCatalog.prepare(connection, SqlStatement.MARK_MAIL_FAILED);
+
+            for (OutboxMail mail : mails) {
+                if (mail.error == null) {
+                    sent.setInt(1, mail.id);
+                    sent.addBatch();
+                    sentCount.incrementAndGet();
+                } else {
+                    failed.setLong(1, backoff(mail.attempts));
+                    failed.setString(2, mail.error.length() > MAX_ERROR_LENGTH ? mail.error.substring(0, MAX_ERROR_LENGTH) : mail.error);
+                    failed.setInt(3, maxAttempts);
+                    failed.setInt(4, mail.id);
+                    failed.addBatch();
+
+                    if (mail.attempts >= maxAttempts) {
+                        failedCount.incrementAndGet();
+                        logger.error("Giving up on mail " + mail.id + " to " + mail.to + " after " + mail.attempts + " attempts");
+                    } else {
+                        retryCount.incrementAndGet();
+                    }
+                }
+            }
+
+            long started = System.nanoTime();
+            int[] sentRows = sent.executeBatch();
+            statementCatalog.recordExecution(SqlStatement.MARK_MAIL_SENT, sum(sentRows), started);
+            started = System.nanoTime();
+            int[] failedRows = failed.executeBatch();
+            statementCatalog.recordExecution(SqlStatement.MARK_MAIL_FAILED, sum(failedRows), started);
+            sent.close();
+            failed.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Statements without a known update count report a negative one
+    private static int sum(int[] updateCounts) {
+        int sum = 0;
+        for (int count : updateCounts) {
+            if (count > 0) sum += count;
+        }
+
+        return sum;
+    }
+
+    // Doubles the wait after every failed attempt
+    private long backoff(int attempts) {
+        return retryBackoff << Math.min(attempts - 1, 20);
+    }
+
+    private static class OutboxMail {
+        private final int id;
+        private final String to;
+        private final String subject;
+        private final String body;
+        private final int attempts;
+        private String error;
+
+        OutboxMail(int id, String to, String subject, String body, int attempts) {
+            this.id = id;
+            this.to = to;
+            this.subject = subject;
+            this.body = body;
+            this.attempts = attempts;
+        }
+    }
+}
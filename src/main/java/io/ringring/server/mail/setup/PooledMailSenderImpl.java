@@ -0,0 +1,213 @@
+package io.ringring.server.mail.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.Status;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.mail.MailSender;
+import io.ringring.server.metrics.EventRecorder;
+import io.ringring.server.metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends mails over a pool of open, authenticated SMTP connections.
+ *
+ * The session is created once. A connection is checked with an SMTP NOOP when it is borrowed and
+ * replaced if it is gone, has been idle for too long or has sent its maximum number of messages.
+ * At most mail.pool.size connections are open at the same time, further senders wait for one.
+ */
+@Singleton
+public class PooledMailSenderImpl implements MailSender {
+    private static final Logger logger = LoggerFactory.getLogger(PooledMailSenderImpl.class);
+
+    private final EventRecorder eventRecorder;
+    private final Session session;
+    private final InternetAddress from;
+
+    private final int poolSize;
+    private final long maxIdleNanos;
+    private final int maxMessages;
+    private final long borrowTimeout;
+
+    // Most recently returned connection first, so the others can go idle and be closed
+    private final LinkedBlockingDeque<PooledTransport> idleTransports = new LinkedBlockingDeque<PooledTransport>();
+    private final Semaphore permits;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    private final AtomicLong borrowTimeoutCount = new AtomicLong();
+    private final Histogram sendTimeHistogram = new Histogram();
+
+    @Inject
+    public PooledMailSenderImpl(final ConfigManager configManager, EventRecorder eventRecorder) throws MessagingException {
+        this.session = Session.getInstance(configManager.getProperties(),
+                new javax.mail.Authenticator() {
+                    protected PasswordAuthentication getPasswordAuthentication() {
+                        return new PasswordAuthentication(configManager.getSmtpUser(), configManager.getSmtpPassword());
+                    }
+                });
+        this.from = new InternetAddress(configManager.getSmtpFrom());
+
+        this.poolSize = configManager.getMailPoolSize();
+        this.permits = new Semaphore(poolSize, true);
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getMailPoolMaxIdle());
+        this.maxMessages = configManager.getMailPoolMaxMessages();
+        this.borrowTimeout = configManager.getMailPoolBorrowTimeout();
+        this.eventRecorder = eventRecorder;
+    }
+
+    @Override
+    public void send(String to, String subject, String body) throws MessagingException {
+        long started = System.nanoTime();
+
+        // Setup message properties
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(from);
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to));
+        message.setSubject(subject);
+        message.setText(body);
+        message.saveChanges();
+        int recipients = message.getAllRecipients().length;
+
+        Status status = Status.INTERNAL_SMTP_ERROR;
+        try {
+            PooledTransport transport = borrow();
+            boolean reusable = false;
+            try {
+                transport.transport.sendMessage(message, message.getAllRecipients());
+                transport.messageCount++;
+                sentCount.incrementAndGet();
+                reusable = true;
+                status = Status.OKAY;
+            } finally {
+                giveBack(transport, reusable);
+            }
+        } finally {
+            sendTimeHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+            eventRecorder.mailSend(status, recipients, started);
+        }
+    }
+
+    @Override
+    public void close() {
+        PooledTransport transport;
+        while ((transport = idleTransports.pollLast()) != null) {
+            discard(transport);
+        }
+    }
+
+    @Override
+    public int getOpenConnectionCount() {
+        // Connections in use hold a permit
+        return poolSize - permits.availablePermits() + idleTransports.size();
+    }
+
+    @Override
+    public int getIdleConnectionCount() { return idleTransports.size(); }
+
+    @Override
+    public long getSentCount() { return sentCount.get(); }
+
+    @Override
+    public long getCreatedConnectionCount() { return createdCount.get(); }
+
+    @Override
+    public long getReusedConnectionCount() { return reusedCount.get(); }
+
+    @Override
+    public long getDiscardedConnectionCount() { return discardedCount.get(); }
+
+    @Override
+    public long getBorrowTimeoutCount() { return borrowTimeoutCount.get(); }
+
+    @Override
+    public Histogram getSendTimeHistogram() { return sendTimeHistogram; }
+
+    private PooledTransport borrow() throws MessagingException {
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                borrowTimeoutCount.incrementAndGet();
+                throw new MessagingException("No SMTP connection available within " + borrowTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection", e);
+        }
+
+        try {
+            PooledTransport transport;
+            while ((transport = idleTransports.pollFirst()) != null) {
+                if (isUsable(transport)) {
+                    reusedCount.incrementAndGet();
+                    return transport;
+                }
+                discard(transport);
+            }
+
+            Transport newTransport = session.getTransport("smtp");
+            newTransport.connect();
+            createdCount.incrementAndGet();
+
+            return new PooledTransport(newTransport);
+        } catch (MessagingException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void giveBack(PooledTransport transport, boolean reusable) {
+        if (reusable && transport.messageCount < maxMessages) {
+            transport.idleSince = System.nanoTime();
+            idleTransports.offerFirst(transport);
+        } else {
+            discard(transport);
+        }
+
+        permits.release();
+    }
+
+    // isConnected() sends a NOOP to the SMTP server
+    private boolean isUsable(PooledTransport transport) {
+        if (System.nanoTime() - transport.idleSince > maxIdleNanos) return false;
+
+        return transport.transport.isConnected();
+    }
+
+    private void discard(PooledTransport transport) {
+        discardedCount.incrementAndGet();
+        try {
+            transport.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Unable to close SMTP connection", e);
+        }
+    }
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private int messageCount;
+        private long idleSince;
+
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+            this.idleSince = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.ringring.server.mail.setup.guice;
+
+import com.google.inject.AbstractModule;
+import io.ringring.server.mail.MailDispatcher;
+import io.ringring.server.mail.MailSender;
+import io.ringring.server.mail.setup.PooledMailSenderImpl;
+import io.ringring.server.mail.setup.OutboxMailDispatcherImpl;
+import io.ringring.server.persistence.setup.guice.PersistenceModule;
+
+/**
+ * Binds the SMTP sender and the outbox dispatcher.
+ */
+public class MailModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(MailSender.class).to(PooledMailSenderImpl.class);
+        bind(MailDispatcher.class).to(OutboxMailDispatcherImpl.class);
+        install(new PersistenceModule());
+    }
+}
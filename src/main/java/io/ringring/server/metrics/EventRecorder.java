@@ -0,0 +1,27 @@
+package io.ringring.server.metrics;
+
+import io.ringring.core.Status;
+import io.ringring.server.persistence.SqlStatement;
+
+/**
+ * Emits Java Flight Recorder events for the repository operations, the SQL statements, the pooled
+ * connections and the mails, so a recording lines them up with the GC and lock events of the JVM.
+ *
+ * The operations report when they are done, their duration is measured from startNanos, see
+ * System.nanoTime(). Nothing is recorded unless jfr.events.enabled is set and a recording is running.
+ */
+public interface EventRecorder {
+    boolean isEnabled();
+
+    // Users is the number of users the operation returned or wrote
+    void repositoryOperation(String operation, Status status, int users, long startNanos);
+
+    void sqlExecution(SqlStatement statement, int rows, long startNanos);
+
+    void connectionAcquire(Status status, long startNanos);
+
+    // Reported when the connection goes back to the pool, acquiredNanos is when it was taken
+    void connectionRelease(long acquiredNanos);
+
+    void mailSend(Status status, int recipients, long startNanos);
+}
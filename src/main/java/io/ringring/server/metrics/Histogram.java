@@ -0,0 +1,93 @@
+package io.ringring.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram with power of two buckets, cheap enough to record on every request.
+ *
+ * Bucket i counts the values up to 2^i, the last bucket everything larger. Percentiles are
+ * reported as the upper bound of the bucket they fall into, so they are accurate within a factor of two.
+ */
+public class Histogram {
+    private static final int BUCKET_COUNT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) break;
+        }
+    }
+
+    public long getCount() { return count.get(); }
+
+    public long getSum() { return sum.get(); }
+
+    public long getMax() { return max.get(); }
+
+    public double getMean() {
+        long n = count.get();
+
+        return n == 0 ? 0 : sum.get() / (double) n;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile (0-100), or 0 without values.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+
+        long total = 0;
+        for (long bucketCount : counts) total += bucketCount;
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return i < BUCKET_COUNT ? getBucketBound(i) : max.get();
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Number of values per bucket, the last element counts the values above the largest bound.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+
+        return counts;
+    }
+
+    public static long getBucketBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    private static int bucketOf(long value) {
+        if (value <= 1) return 0;
+
+        int bucket = 64 - Long.numberOfLeadingZeros(value - 1);
+        return Math.min(bucket, BUCKET_COUNT);
+    }
+}
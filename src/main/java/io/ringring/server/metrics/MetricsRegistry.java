@@ -0,0 +1,25 @@
+package io.ringring.server.metrics;
+
+import io.ringring.core.Status;
+import io.ringring.server.executor.Endpoint;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Collects the request metrics of the API and publishes them together with the statistics of the
+ * pools, caches and background services of the server.
+ */
+public interface MetricsRegistry {
+
+    // Records the outcome of an API call that started at startNanos, see System.nanoTime()
+    void recordRequest(Endpoint endpoint, Status status, long startNanos);
+
+    // Latencies of the endpoint, in microseconds
+    Histogram getRequestHistogram(Endpoint endpoint);
+
+    long getStatusCount(Endpoint endpoint, Status status);
+
+    // Writes every metric in the Prometheus text exposition format
+    void write(Writer writer) throws IOException;
+}
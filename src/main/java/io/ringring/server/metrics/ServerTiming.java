@@ -0,0 +1,100 @@
+package io.ringring.server.metrics;
+
+import io.ringring.server.persistence.SqlStatement;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times the phases of one API request for the Server-Timing response header.
+ *
+ * A timing is bound to the threads that work on the request with {@link #attach(ServerTiming)}, the
+ * static record methods do nothing on threads without one. The time of a phase is summed, so a
+ * statement executed twice shows up once with its total time.
+ */
+public final class ServerTiming {
+
+    public enum Phase {
+        PARSE("parse"),
+        QUEUE("queue"),
+        ACQUIRE("db-acquire"),
+        SERIALIZE("serialize");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private static final ThreadLocal<ServerTiming> current = new ThreadLocal<ServerTiming>();
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final SqlStatement[] STATEMENTS = SqlStatement.values();
+
+    private final long startNanos = System.nanoTime();
+
+    // The phases first, then one slot per statement. Timed out tasks may still record, hence atomic
+    private final AtomicLongArray nanos = new AtomicLongArray(PHASES.length + STATEMENTS.length);
+
+    public static ServerTiming current() {
+        return current.get();
+    }
+
+    /**
+     * Binds the timing to the current thread, null unbinds it.
+     *
+     * @return the timing bound before, to restore it when the work is done
+     */
+    public static ServerTiming attach(ServerTiming timing) {
+        ServerTiming previous = current.get();
+        if (timing == null) {
+            current.remove();
+        } else {
+            current.set(timing);
+        }
+
+        return previous;
+    }
+
+    // Adds the time since startNanos to the phase, see System.nanoTime()
+    public static void record(Phase phase, long startNanos) {
+        ServerTiming timing = current.get();
+        if (timing != null) {
+            timing.nanos.addAndGet(phase.ordinal(), System.nanoTime() - startNanos);
+        }
+    }
+
+    public static void record(SqlStatement statement, long startNanos) {
+        ServerTiming timing = current.get();
+        if (timing != null) {
+            timing.nanos.addAndGet(PHASES.length + statement.ordinal(), System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * The phases that took time so far and the total time of the request, in milliseconds.
+     */
+    public String toHeader() {
+        StringBuilder header = new StringBuilder();
+
+        for (Phase phase : PHASES) {
+            append(header, phase.metricName, nanos.get(phase.ordinal()));
+        }
+        for (SqlStatement statement : STATEMENTS) {
+            append(header, "sql-" + statement.name().toLowerCase(Locale.ROOT), nanos.get(PHASES.length + statement.ordinal()));
+        }
+        append(header, "total", System.nanoTime() - startNanos);
+
+        return header.toString();
+    }
+
+    private static void append(StringBuilder header, String metricName, long nanos) {
+        if (nanos <= 0) return;
+
+        if (header.length() > 0) header.append(", ");
+        header.append(metricName).append(";dur=")
+                .append(String.format(Locale.ROOT, "%.3f", TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0));
+    }
+}
@@ -0,0 +1,205 @@
+package io.ringring.server.metrics.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.Status;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.metrics.EventRecorder;
+import io.ringring.server.persistence.SqlStatement;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the events as custom Flight Recorder events in the "RingRing" category.
+ *
+ * JFR times an event from begin() to commit(), but the operations only report when they are done,
+ * so the events are committed at the end of the operation with its duration in the elapsed field.
+ * The event classes are only loaded when the events are enabled, the server keeps running on JVMs
+ * without Flight Recorder. Creating an event that is not part of a running recording is optimized
+ * away by the JIT.
+ */
+@Singleton
+public class FlightRecorderEventRecorderImpl implements EventRecorder {
+    private static final Logger logger = LoggerFactory.getLogger(FlightRecorderEventRecorderImpl.class);
+
+    private final boolean enabled;
+
+    @Inject
+    public FlightRecorderEventRecorderImpl(ConfigManager configManager) {
+        this.enabled = configManager.getJfrEventsEnabled() && isFlightRecorderAvailable();
+    }
+
+    @Override
+    public boolean isEnabled() { return enabled; }
+
+    @Override
+    public void repositoryOperation(String operation, Status status, int users, long startNanos) {
+        if (enabled) Events.repositoryOperation(operation, status, users, System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void sqlExecution(SqlStatement statement, int rows, long startNanos) {
+        if (enabled) Events.sqlExecution(statement, rows, System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void connectionAcquire(Status status, long startNanos) {
+        if (enabled) Events.connectionAcquire(status, System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void connectionRelease(long acquiredNanos) {
+        if (enabled) Events.connectionRelease(System.nanoTime() - acquiredNanos);
+    }
+
+    @Override
+    public void mailSend(Status status, int recipients, long startNanos) {
+        if (enabled) Events.mailSend(status, recipients, System.nanoTime() - startNanos);
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            logger.warn("Flight Recorder is not available in this JVM, jfr.events.enabled is ignored");
+            return false;
+        }
+    }
+
+    // Loaded on the first event, the only class that touches the Flight Recorder API
+    private static class Events {
+
+        static void repositoryOperation(String operation, Status status, int users, long elapsedNanos) {
+            RepositoryOperationEvent event = new RepositoryOperationEvent();
+            if (!event.isEnabled()) return;
+
+            event.operation = operation;
+            event.status = status.name();
+            event.users = users;
+            event.elapsed = elapsedNanos;
+            event.commit();
+        }
+
+        static void sqlExecution(SqlStatement statement, int rows, long elapsedNanos) {
+            SqlExecutionEvent event = new SqlExecutionEvent();
+            if (!event.isEnabled()) return;
+
+            event.statement = statement.name();
+            event.rows = rows;
+            event.elapsed = elapsedNanos;
+            event.commit();
+        }
+
+        static void connectionAcquire(Status status, long elapsedNanos) {
+            ConnectionAcquireEvent event = new ConnectionAcquireEvent();
+            if (!event.isEnabled()) return;
+
+            event.status = status.name();
+            event.elapsed = elapsedNanos;
+            event.commit();
+        }
+
+        static void connectionRelease(long heldNanos) {
+            ConnectionReleaseEvent event = new ConnectionReleaseEvent();
+            if (!event.isEnabled()) return;
+
+            event.held = heldNanos;
+            event.commit();
+        }
+
+        static void mailSend(Status status, int recipients, long elapsedNanos) {
+            MailSendEvent event = new MailSendEvent();
+            if (!event.isEnabled()) return;
+
+            event.status = status.name();
+            event.recipients = recipients;
+            event.elapsed = elapsedNanos;
+            event.commit();
+        }
+    }
+
+    @Name("io.ringring.RepositoryOperation")
+    @Label("Repository Operation")
+    @Category({ "RingRing", "Persistence" })
+    @StackTrace(false)
+    static class RepositoryOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Status")
+        String status;
+
+        @Label("Users")
+        @Description("Users returned or written")
+        int users;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("io.ringring.SqlExecution")
+    @Label("SQL Execution")
+    @Category({ "RingRing", "Persistence" })
+    @StackTrace(false)
+    static class SqlExecutionEvent extends Event {
+        @Label("Statement")
+        String statement;
+
+        @Label("Rows")
+        @Description("Rows returned or updated")
+        int rows;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("io.ringring.ConnectionAcquire")
+    @Label("Connection Acquire")
+    @Category({ "RingRing", "Persistence" })
+    @StackTrace(false)
+    static class ConnectionAcquireEvent extends Event {
+        @Label("Status")
+        String status;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("io.ringring.ConnectionRelease")
+    @Label("Connection Release")
+    @Category({ "RingRing", "Persistence" })
+    @StackTrace(false)
+    static class ConnectionReleaseEvent extends Event {
+        @Label("Held")
+        @Description("Time since the connection was taken from the pool")
+        @Timespan(Timespan.NANOSECONDS)
+        long held;
+    }
+
+    @Name("io.ringring.MailSend")
+    @Label("Mail Send")
+    @Category({ "RingRing", "Mail" })
+    @StackTrace(false)
+    static class MailSendEvent extends Event {
+        @Label("Status")
+        String status;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+}
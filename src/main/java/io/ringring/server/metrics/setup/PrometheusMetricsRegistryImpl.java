@@ -0,0 +1,326 @@
+package io.ringring.server.metrics.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.Status;
+import io.ringring.core.User;
+import io.ringring.server.cache.BloomFilter;
+import io.ringring.server.cache.LruCache;
+import io.ringring.server.events.ContactEventBroker;
+import io.ringring.server.executor.Endpoint;
+import io.ringring.server.executor.EndpointExecutor;
+import io.ringring.server.mail.MailDispatcher;
+import io.ringring.server.mail.MailSender;
+import io.ringring.server.metrics.Histogram;
+import io.ringring.server.metrics.MetricsRegistry;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+import io.ringring.server.persistence.repositories.setup.BloomFilterUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.CachingUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.MicroBatchingUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.SingleFlightUserRepositoryImpl;
+import io.ringring.server.presence.PresenceManager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Publishes the metrics in the Prometheus text exposition format, version 0.0.4.
+ *
+ * Recording a request only updates atomic counters, nothing is allocated on the request path. The
+ * statistics of the other components are read when the metrics are written. Durations are published
+ * in seconds, histograms with a fixed range of their power of two buckets.
+ */
+@Singleton
+public class PrometheusMetricsRegistryImpl implements MetricsRegistry {
+    private static final Endpoint[] ENDPOINTS = Endpoint.values();
+    private static final Status[] STATUSES = Status.values();
+
+    // Published histogram buckets, from 16 microseconds to about a minute
+    private static final int FIRST_BUCKET = 4;
+    private static final int LAST_BUCKET = 26;
+
+    private final ConnectionManager connectionManager;
+    private final StatementCatalog statementCatalog;
+    private final EndpointExecutor endpointExecutor;
+    private final MailSender mailSender;
+    private final MailDispatcher mailDispatcher;
+    private final PresenceManager presenceManager;
+    private final CachingUserRepositoryImpl userRepository;
+    private final SingleFlightUserRepositoryImpl singleFlightRepository;
+    private final MicroBatchingUserRepositoryImpl microBatchingRepository;
+    private final BloomFilterUserRepositoryImpl bloomFilterRepository;
+    private final ContactEventBroker contactEventBroker;
+
+    private final Histogram[] requestHistograms = new Histogram[ENDPOINTS.length];
+    private final AtomicLongArray statusCounts = new AtomicLongArray(ENDPOINTS.length * STATUSES.length);
+
+    @Inject
+    public PrometheusMetricsRegistryImpl(ConnectionManager connectionManager, StatementCatalog statementCatalog, EndpointExecutor endpointExecutor,
+                                         MailSender mailSender, MailDispatcher mailDispatcher, PresenceManager presenceManager,
+                                         CachingUserRepositoryImpl userRepository, SingleFlightUserRepositoryImpl singleFlightRepository,
+                                         MicroBatchingUserRepositoryImpl microBatchingRepository, BloomFilterUserRepositoryImpl bloomFilterRepository,
+                                         ContactEventBroker contactEventBroker) {
+        this.connectionManager = connectionManager;
+        this.statementCatalog = statementCatalog;
+        this.endpointExecutor = endpointExecutor;
+        this.mailSender = mailSender;
+        this.mailDispatcher = mailDispatcher;
+        this.presenceManager = presenceManager;
+        this.userRepository = userRepository;
+        this.singleFlightRepository = singleFlightRepository;
+        this.microBatchingRepository = microBatchingRepository;
+        this.bloomFilterRepository = bloomFilterRepository;
+        this.contactEventBroker = contactEventBroker;
+
+        for (int i = 0; i < requestHistograms.length; i++) {
+            requestHistograms[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void recordRequest(Endpoint endpoint, Status status, long startNanos) {
+        requestHistograms[endpoint.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        statusCounts.incrementAndGet(endpoint.ordinal() * STATUSES.length + status.ordinal());
+    }
+
+    @Override
+    public Histogram getRequestHistogram(Endpoint endpoint) { return requestHistograms[endpoint.ordinal()]; }
+
+    @Override
+    public long getStatusCount(Endpoint endpoint, Status status) {
+        return statusCounts.get(endpoint.ordinal() * STATUSES.length + status.ordinal());
+    }
+
+    @Override
+    public void write(Writer writer) throws IOException {
+        writeRequests(writer);
+        writeEndpointExecutor(writer);
+        writeStatements(writer);
+        writeConnectionPool(writer);
+        writeMail(writer);
+        writeUserCache(writer);
+        writeSingleFlight(writer);
+        writeBloomFilter(writer);
+        writePresence(writer);
+        writeContactEvents(writer);
+        writer.flush();
+    }
+
+    private void writeRequests(Writer writer) throws IOException {
+        header(writer, "ringring_request_duration_seconds", "histogram", "Latency of the API endpoints");
+        for (Endpoint endpoint : ENDPOINTS) {
+            histogram(writer, "ringring_request_duration_seconds", label("endpoint", endpoint), requestHistograms[endpoint.ordinal()]);
+        }
+
+        header(writer, "ringring_requests_total", "counter", "API calls by endpoint and returned status");
+        for (Endpoint endpoint : ENDPOINTS) {
+            for (Status status : STATUSES) {
+                sample(writer, "ringring_requests_total", label("endpoint", endpoint) + "," + label("status", status), getStatusCount(endpoint, status));
+            }
+        }
+    }
+
+    private void writeEndpointExecutor(Writer writer) throws IOException {
+        // The read and the write endpoints share a pool each
+        header(writer, "ringring_executor_active_threads", "gauge", "Threads running endpoint calls");
+        sample(writer, "ringring_executor_active_threads", "pool=\"read\"", endpointExecutor.getActiveCount(Endpoint.GET_USER));
+        sample(writer, "ringring_executor_active_threads", "pool=\"write\"", endpointExecutor.getActiveCount(Endpoint.REGISTER));
+
+        header(writer, "ringring_executor_queued_calls", "gauge", "Endpoint calls waiting for a thread");
+        sample(writer, "ringring_executor_queued_calls", "pool=\"read\"", endpointExecutor.getQueueSize(Endpoint.GET_USER));
+        sample(writer, "ringring_executor_queued_calls", "pool=\"write\"", endpointExecutor.getQueueSize(Endpoint.REGISTER));
+
+        header(writer, "ringring_executor_rejected_total", "counter", "Endpoint calls rejected with SERVER_BUSY");
+        for (Endpoint endpoint : ENDPOINTS) {
+            sample(writer, "ringring_executor_rejected_total", label("endpoint", endpoint), endpointExecutor.getRejectedCount(endpoint));
+        }
+
+        header(writer, "ringring_executor_timeouts_total", "counter", "Endpoint calls that ran into their timeout");
+        for (Endpoint endpoint : ENDPOINTS) {
+            sample(writer, "ringring_executor_timeouts_total", label("endpoint", endpoint), endpointExecutor.getTimeoutCount(endpoint));
+        }
+    }
+
+    private void writeStatements(Writer writer) throws IOException {
+        header(writer, "ringring_sql_duration_seconds", "histogram", "Execution time of the catalog statements");
+        for (SqlStatement statement : SqlStatement.values()) {
+            histogram(writer, "ringring_sql_duration_seconds", label("statement", statement), statementCatalog.getExecutionHistogram(statement));
+        }
+
+        header(writer, "ringring_sql_prepares_total", "counter", "Catalog statements prepared");
+        for (SqlStatement statement : SqlStatement.values()) {
+            sample(writer, "ringring_sql_prepares_total", label("statement", statement), statementCatalog.getPrepareCount(statement));
+        }
+
+        header(writer, "ringring_sql_parses_total", "counter", "Catalog statements parsed by the database");
+        for (SqlStatement statement : SqlStatement.values()) {
+            sample(writer, "ringring_sql_parses_total", label("statement", statement), statementCatalog.getParseCount(statement));
+        }
+    }
+
+    private void writeConnectionPool(Writer writer) throws IOException {
+        header(writer, "ringring_db_pool_leased_connections", "gauge", "Database connections in use");
+        sample(writer, "ringring_db_pool_leased_connections", null, connectionManager.getLeasedConnectionCount());
+
+        header(writer, "ringring_db_pool_free_connections", "gauge", "Idle database connections in the pool");
+        sample(writer, "ringring_db_pool_free_connections", null, connectionManager.getFreeConnectionCount());
+
+        header(writer, "ringring_db_pool_acquire_timeouts_total", "counter", "Database connections not available in time");
+        sample(writer, "ringring_db_pool_acquire_timeouts_total", null, connectionManager.getAcquireTimeoutCount());
+
+        header(writer, "ringring_db_pool_acquire_wait_seconds", "histogram", "Time spent waiting for a database connection");
+        histogram(writer, "ringring_db_pool_acquire_wait_seconds", null, connectionManager.getAcquireWaitHistogram());
+    }
+
+    private void writeMail(Writer writer) throws IOException {
+        header(writer, "ringring_smtp_send_duration_seconds", "histogram", "Time to send a mail, including the wait for an SMTP connection");
+        histogram(writer, "ringring_smtp_send_duration_seconds", null, mailSender.getSendTimeHistogram());
+
+        header(writer, "ringring_smtp_sent_total", "counter", "Mails accepted by the SMTP server");
+        sample(writer, "ringring_smtp_sent_total", null, mailSender.getSentCount());
+
+        header(writer, "ringring_smtp_open_connections", "gauge", "Open SMTP connections");
+        sample(writer, "ringring_smtp_open_connections", null, mailSender.getOpenConnectionCount());
+
+        header(writer, "ringring_smtp_idle_connections", "gauge", "Idle SMTP connections in the pool");
+        sample(writer, "ringring_smtp_idle_connections", null, mailSender.getIdleConnectionCount());
+
+        header(writer, "ringring_smtp_connections_total", "counter", "SMTP connections by what happened to them");
+        sample(writer, "ringring_smtp_connections_total", "event=\"created\"", mailSender.getCreatedConnectionCount());
+        sample(writer, "ringring_smtp_connections_total", "event=\"reused\"", mailSender.getReusedConnectionCount());
+        sample(writer, "ringring_smtp_connections_total", "event=\"discarded\"", mailSender.getDiscardedConnectionCount());
+
+        header(writer, "ringring_smtp_borrow_timeouts_total", "counter", "SMTP connections not available in time");
+        sample(writer, "ringring_smtp_borrow_timeouts_total", null, mailSender.getBorrowTimeoutCount());
+
+        header(writer, "ringring_outbox_mails_total", "counter", "Outbox deliveries by result");
+        sample(writer, "ringring_outbox_mails_total", "result=\"sent\"", mailDispatcher.getSentCount());
+        sample(writer, "ringring_outbox_mails_total", "result=\"retry\"", mailDispatcher.getRetryCount());
+        sample(writer, "ringring_outbox_mails_total", "result=\"failed\"", mailDispatcher.getFailedCount());
+    }
+
+    private void writeUserCache(Writer writer) throws IOException {
+        LruCache<String, User> cache = userRepository.getCache();
+        if (cache == null) return;
+
+        header(writer, "ringring_user_cache_lookups_total", "counter", "User cache lookups by result");
+        sample(writer, "ringring_user_cache_lookups_total", "result=\"hit\"", cache.getHitCount());
+        sample(writer, "ringring_user_cache_lookups_total", "result=\"miss\"", cache.getMissCount());
+
+        header(writer, "ringring_user_cache_removals_total", "counter", "Users dropped from the cache by cause");
+        sample(writer, "ringring_user_cache_removals_total", "cause=\"eviction\"", cache.getEvictionCount());
+        sample(writer, "ringring_user_cache_removals_total", "cause=\"expiration\"", cache.getExpirationCount());
+
+        header(writer, "ringring_user_cache_size", "gauge", "Users in the cache");
+        sample(writer, "ringring_user_cache_size", null, cache.size());
+    }
+
+    private void writeSingleFlight(Writer writer) throws IOException {
+        header(writer, "ringring_user_lookups_total", "counter", "User lookups that reached the database layer by how they were served");
+        sample(writer, "ringring_user_lookups_total", "result=\"flight\"", singleFlightRepository.getFlightCount());
+        sample(writer, "ringring_user_lookups_total", "result=\"coalesced\"", singleFlightRepository.getCoalescedCount());
+        sample(writer, "ringring_user_lookups_total", "result=\"timeout\"", singleFlightRepository.getTimeoutCount());
+
+        // A count, not a duration, so no buckets in seconds
+        Histogram savedCalls = singleFlightRepository.getSavedCallsHistogram();
+        header(writer, "ringring_user_flight_saved_calls", "summary", "Callers served by each user lookup query besides the first one");
+        sample(writer, "ringring_user_flight_saved_calls_sum", null, savedCalls.getSum());
+        sample(writer, "ringring_user_flight_saved_calls_count", null, savedCalls.getCount());
+
+        Histogram batchSizes = microBatchingRepository.getBatchSizeHistogram();
+        header(writer, "ringring_user_batch_size", "summary", "Single user lookups resolved by each batched query");
+        sample(writer, "ringring_user_batch_size_sum", null, batchSizes.getSum());
+        sample(writer, "ringring_user_batch_size_count", null, batchSizes.getCount());
+    }
+
+    private void writeBloomFilter(Writer writer) throws IOException {
+        header(writer, "ringring_user_bloom_lookups_total", "counter", "Emails looked up by whether the Bloom filter ruled them out");
+        sample(writer, "ringring_user_bloom_lookups_total", "result=\"skipped\"", bloomFilterRepository.getSkippedCount());
+        sample(writer, "ringring_user_bloom_lookups_total", "result=\"passed\"", bloomFilterRepository.getPassedCount());
+
+        // Not built yet, the lookups go through
+        BloomFilter filter = bloomFilterRepository.getFilter();
+        if (filter == null) return;
+
+        header(writer, "ringring_user_bloom_bits", "gauge", "Size of the user Bloom filter in bits");
+        sample(writer, "ringring_user_bloom_bits", null, filter.getBitSize());
+
+        header(writer, "ringring_user_bloom_fill_ratio", "gauge", "Share of the bits set in the user Bloom filter");
+        sample(writer, "ringring_user_bloom_fill_ratio", null, Double.toString(filter.getFillRatio()));
+
+        header(writer, "ringring_user_bloom_false_positive_rate", "gauge", "Expected share of unregistered emails the user Bloom filter lets through at its current fill");
+        sample(writer, "ringring_user_bloom_false_positive_rate", null, Double.toString(filter.getFalsePositiveRate()));
+    }
+
+    private void writePresence(Writer writer) throws IOException {
+        header(writer, "ringring_presence_online_users", "gauge", "SIP users registered in FreeSWITCH");
+        sample(writer, "ringring_presence_online_users", null, presenceManager.getOnlineCount());
+
+        header(writer, "ringring_presence_refresh_lag_seconds", "gauge", "Age of the presence index, -1 before the first refresh");
+        long refreshLag = presenceManager.getRefreshLag();
+        sample(writer, "ringring_presence_refresh_lag_seconds", null, refreshLag < 0 ? "-1" : seconds(TimeUnit.MILLISECONDS.toMicros(refreshLag)));
+
+        header(writer, "ringring_presence_refreshes_total", "counter", "Presence index refreshes by result");
+        sample(writer, "ringring_presence_refreshes_total", "result=\"success\"", presenceManager.getRefreshCount());
+        sample(writer, "ringring_presence_refreshes_total", "result=\"failure\"", presenceManager.getRefreshFailureCount());
+    }
+
+    private void writeContactEvents(Writer writer) throws IOException {
+        header(writer, "ringring_events_subscriptions", "gauge", "Open contact event streams");
+        sample(writer, "ringring_events_subscriptions", null, contactEventBroker.getSubscriptionCount());
+
+        header(writer, "ringring_events_sent_total", "counter", "Contact events queued for the open streams");
+        sample(writer, "ringring_events_sent_total", null, contactEventBroker.getEventCount());
+
+        header(writer, "ringring_events_dropped_subscriptions_total", "counter", "Streams closed because the client did not keep up");
+        sample(writer, "ringring_events_dropped_subscriptions_total", null, contactEventBroker.getDroppedCount());
+    }
+
+    // Buckets are cumulative, the counts are taken from one snapshot so they add up
+    private static void histogram(Writer writer, String name, String labels, Histogram histogram) throws IOException {
+        String prefix = labels == null ? "" : labels + ",";
+        long[] counts = histogram.getBucketCounts();
+
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (i >= FIRST_BUCKET && i <= LAST_BUCKET) {
+                sample(writer, name + "_bucket", prefix + "le=\"" + seconds(Histogram.getBucketBound(i)) + "\"", cumulative);
+            }
+        }
+
+        sample(writer, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        sample(writer, name + "_sum", labels, seconds(histogram.getSum()));
+        sample(writer, name + "_count", labels, cumulative);
+    }
+
+    private static void header(Writer writer, String name, String type, String help) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer writer, String name, String labels, long value) throws IOException {
+        sample(writer, name, labels, Long.toString(value));
+    }
+
+    private static void sample(Writer writer, String name, String labels, String value) throws IOException {
+        writer.write(name);
+        if (labels != null) {
+            writer.write("{" + labels + "}");
+        }
+        writer.write(" " + value + "\n");
+    }
+
+    // Enum constants are valid label values as they are
+    private static String label(String name, Enum<?> value) {
+        return name + "=\"" + value.name() + "\"";
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1000000.0);
+    }
+}
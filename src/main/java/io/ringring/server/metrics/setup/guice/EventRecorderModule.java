@@ -0,0 +1,18 @@
+package io.ringring.server.metrics.setup.guice;
+
+import com.google.inject.AbstractModule;
+import io.ringring.server.config.setup.guice.ConfigManagerModule;
+import io.ringring.server.metrics.EventRecorder;
+import io.ringring.server.metrics.setup.FlightRecorderEventRecorderImpl;
+
+/**
+ * Binds the Flight Recorder events.
+ */
+public class EventRecorderModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(EventRecorder.class).to(FlightRecorderEventRecorderImpl.class);
+        install(new ConfigManagerModule());
+    }
+}
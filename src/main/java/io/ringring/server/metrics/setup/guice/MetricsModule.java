@@ -0,0 +1,20 @@
+package io.ringring.server.metrics.setup.guice;
+
+import com.google.inject.AbstractModule;
+import io.ringring.server.executor.setup.guice.EndpointExecutorModule;
+import io.ringring.server.metrics.MetricsRegistry;
+import io.ringring.server.metrics.setup.PrometheusMetricsRegistryImpl;
+import io.ringring.server.persistence.repositories.setup.guice.UserRepositoryModule;
+
+/**
+ * Binds the metrics registry of the /metrics endpoint.
+ */
+public class MetricsModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(MetricsRegistry.class).to(PrometheusMetricsRegistryImpl.class);
+        install(new UserRepositoryModule());
+        install(new EndpointExecutorModule());
+    }
+}
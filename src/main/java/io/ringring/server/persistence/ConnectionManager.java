@@ -1,10 +1,24 @@
 package io.ringring.server.persistence;
 
+import io.ringring.server.metrics.Histogram;
+
 import java.sql.Connection;
 
 /**
  * Created by kosztope on 23/01/14.
  */
 public interface ConnectionManager {
+    // Nested calls on the same thread share the connection of the outermost call, see UnitOfWorkConnectionManager
     Connection getConnection();
+
+    // Builds and warms up the pool, otherwise the first getConnection() does it
+    void start();
+    void stop();
+
+    int getLeasedConnectionCount();
+    int getFreeConnectionCount();
+    long getAcquireTimeoutCount();
+
+    // Time spent waiting in getConnection(), in microseconds
+    Histogram getAcquireWaitHistogram();
 }
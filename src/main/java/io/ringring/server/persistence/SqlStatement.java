@@ -0,0 +1,158 @@
+package io.ringring.server.persistence;
+
+/**
+ * Catalog of the SQL run by the server. Every statement has one fixed text, so the pool can cache it
+ * per connection and the database plans it once. Prepare them with {@link StatementCatalog}.
+ */
+public enum SqlStatement {
+
+    // Users
+    GET_ACTIVATION_CODE("SELECT activation_code FROM ringring_users WHERE email = LOWER(?)"),
+    UPDATE_USER("UPDATE ringring_users SET activation_code=?, is_activated=? WHERE email=LOWER(?)"),
+
+    // With a fresh presence index the fourth column is the SIP user, otherwise the joined isLoggedIn flag
+    GET_USER(Users.SELECT_WITH_SIP_USER + " WHERE zu.email = LOWER(?)"),
+    GET_ACTIVATED_USER(Users.SELECT_WITH_SIP_USER + " WHERE zu.email = LOWER(?)" + Users.ONLY_ACTIVATED),
+    GET_USER_WITH_REGISTRATION(Users.SELECT_WITH_REGISTRATION + " WHERE zu.email = LOWER(?)"),
+    GET_ACTIVATED_USER_WITH_REGISTRATION(Users.SELECT_WITH_REGISTRATION + " WHERE zu.email = LOWER(?)" + Users.ONLY_ACTIVATED),
+
+    // The emails are bound as one array parameter, so every chunk runs the same statement and plan
+    GET_USERS(Users.SELECT_WITH_SIP_USER + " WHERE zu.email = ANY(?)"),
+    GET_ACTIVATED_USERS(Users.SELECT_WITH_SIP_USER + " WHERE zu.email = ANY(?)" + Users.ONLY_ACTIVATED),
+    GET_USERS_WITH_REGISTRATION(Users.SELECT_WITH_REGISTRATION + " WHERE zu.email = ANY(?)"),
+    GET_ACTIVATED_USERS_WITH_REGISTRATION(Users.SELECT_WITH_REGISTRATION + " WHERE zu.email = ANY(?)" + Users.ONLY_ACTIVATED),
+
+    // Every registered email, read in fetch size chunks to fill the Bloom filter of the lookups
+    GET_USER_EMAILS("SELECT email FROM ringring_users"),
+
+    // Keyset page of the activated contacts changed after the (updated_at, id) of the cursor, walked along
+    // their index. Rows younger than the settle time are left for the next page, their transaction may still
+    // be open while later rows are already visible
+    GET_USER_CHANGES(
+            "SELECT zu.email, zu.activation_code, zu.is_activated, d.username, " + Users.CHANGE_KEY +
+            " FROM ringring_users zu LEFT JOIN directory d ON d.ringring_user_id = zu.id" + Users.CHANGED_AFTER),
+
+    // The same walk over all activated users for the contact events, started from the last change
+    GET_ACTIVATED_USER_CHANGES("SELECT zu.email, " + Users.CHANGE_KEY + " FROM ringring_users zu WHERE zu.is_activated = TRUE" + Users.KEYSET_AFTER),
+    GET_LAST_USER_CHANGE("SELECT " + Users.CHANGE_KEY + " FROM ringring_users zu ORDER BY zu.updated_at DESC, zu.id DESC LIMIT 1"),
+    GET_USER_CHANGES_WITH_REGISTRATION(
+            "SELECT zu.email, zu.activation_code, zu.is_activated, EXISTS (SELECT 1 FROM registrations r WHERE r.reg_user = d.username), " + Users.CHANGE_KEY +
+            " FROM ringring_users zu LEFT JOIN directory d ON d.ringring_user_id = zu.id" + Users.CHANGED_AFTER),
+
+    // The activation code is generated once and goes straight into the queued mail,
+    // the new user is built from the returned row
+    REGISTER(
+            "WITH zu AS (" +
+            "    INSERT INTO ringring_users (email, activation_code, is_activated) VALUES(LOWER(?), SUBSTRING(MD5(RANDOM()::TEXT) FROM 1 FOR ?), FALSE)" +
+            "    RETURNING email, activation_code, is_activated" +
+            "), mail AS (" +
+            "    INSERT INTO ringring_mail_outbox (mail_to, subject, body)" +
+            "    SELECT email, ?, REPLACE(?, '_ACTIVATION_CODE_', activation_code) FROM zu" +
+            ")" +
+            "SELECT email, is_activated FROM zu"),
+
+    // Activation runs as one statement: the user row is checked and locked, then either the SIP password
+    // of an already activated user is updated or the whole directory and dialplan entry is provisioned.
+    // Every insert takes its parent id from the RETURNING clause of the previous one, so a failure
+    // anywhere rolls back the complete activation.
+    ACTIVATE(
+            "WITH zu AS (" +
+            "    SELECT id, COALESCE(is_activated, FALSE) AS is_activated, COALESCE(activation_code = ?, FALSE) AS is_code_valid" +
+            "    FROM ringring_users WHERE email = LOWER(?) FOR UPDATE" +
+            "), activated AS (" +
+            "    UPDATE ringring_users SET is_activated = TRUE WHERE id = (SELECT id FROM zu WHERE NOT is_activated AND is_code_valid)" +
+            "    RETURNING id" +
+            "), sip_password AS (" +
+            "    UPDATE directory_params SET param_value = ?" +
+            "    WHERE directory_id = (SELECT d.id FROM directory d JOIN zu ON d.ringring_user_id = zu.id WHERE zu.is_activated AND zu.is_code_valid)" +
+            "    AND param_name = 'password'" +
+            "    RETURNING id" +
+            "), dir AS (" +
+            "    INSERT INTO directory (ringring_user_id, username, domain, domain_id)" +
+            "    SELECT id, ?, '', ? FROM activated" +
+            "    RETURNING id" +
+            "), dir_vars AS (" +
+            "    INSERT INTO directory_vars (directory_id, var_name, var_value)" +
+            "    SELECT id, 'user_context', LOWER(?) FROM dir" +
+            "    UNION ALL SELECT id, 'internal_caller_id_name', LOWER(?) FROM dir" +
+            "), dir_params AS (" +
+            "    INSERT INTO directory_params (directory_id, param_name, param_value)" +
+            "    SELECT id, 'password', ? FROM dir" +
+            "    UNION ALL SELECT id, 'dial-string', ? FROM dir" +
+            "), ext AS (" +
+            "    INSERT INTO dialplan_extension (context_id, name, continue, weight)" +
+            "    SELECT ?, LOWER(?), '', 0 FROM activated" +
+            "    RETURNING extension_id" +
+            "), cond AS (" +
+            "    INSERT INTO dialplan_condition (extension_id, field, expression, weight)" +
+            "    SELECT extension_id, 'destination_number', ?, 10 FROM ext" +
+            "    RETURNING condition_id" +
+            "), actions AS (" +
+            "    INSERT INTO dialplan_actions (condition_id, application, data, type, weight)" +
+            "    SELECT condition_id, 'set', 'call_timeout=30', 'action', 10 FROM cond" +
+            "    UNION ALL SELECT condition_id, 'bridge', ?, 'action', 20 FROM cond" +
+            "    UNION ALL SELECT condition_id, 'hangup', '', 'action', 30 FROM cond" +
+            ")" +
+            "SELECT zu.is_activated, (SELECT COUNT(*) FROM activated), (SELECT COUNT(*) FROM sip_password) FROM zu"),
+
+    // The new activation code goes straight into the queued mail
+    RENEW_ACTIVATION_CODE(
+            "WITH zu AS (" +
+            "    UPDATE ringring_users SET activation_code = SUBSTRING(MD5(RANDOM()::TEXT) FROM 1 FOR ?) WHERE email = LOWER(?)" +
+            "    RETURNING email, activation_code" +
+            "), mail AS (" +
+            "    INSERT INTO ringring_mail_outbox (mail_to, subject, body)" +
+            "    SELECT email, ?, REPLACE(?, '_ACTIVATION_CODE_', activation_code) FROM zu" +
+            ")" +
+            "SELECT COUNT(*) FROM zu"),
+
+    GET_DIRECTORY_DOMAIN_ID("SELECT id FROM directory_domains WHERE domain_name = ?"),
+    GET_DIALPLAN_CONTEXT_ID("SELECT context_id FROM dialplan_context WHERE context = ?"),
+
+    // Invites
+    INSERT_INVITE("INSERT INTO ringring_invites (invite_from, invite_to) VALUES (LOWER(?), LOWER(?))"),
+    GET_RECENT_INVITES("SELECT invite_from, invite_to, CAST(EXTRACT(EPOCH FROM (CURRENT_TIMESTAMP - created_at)) * 1000 AS BIGINT) FROM ringring_invites WHERE created_at > CURRENT_TIMESTAMP - ? * INTERVAL '1 minute'"),
+
+    // Mail outbox
+    INSERT_MAIL("INSERT INTO ringring_mail_outbox (mail_to, subject, body) VALUES (LOWER(?), ?, ?)"),
+    CLAIM_MAILS(
+            "UPDATE ringring_mail_outbox SET attempts = attempts + 1, next_attempt_at = CURRENT_TIMESTAMP + ? * INTERVAL '1 millisecond'" +
+            " WHERE id IN (" +
+            "    SELECT id FROM ringring_mail_outbox" +
+            "    WHERE sent_at IS NULL AND failed_at IS NULL AND next_attempt_at <= CURRENT_TIMESTAMP" +
+            "    ORDER BY next_attempt_at LIMIT ?" +
+            ")" +
+            " AND sent_at IS NULL AND failed_at IS NULL AND next_attempt_at <= CURRENT_TIMESTAMP" +
+            " RETURNING id, mail_to, subject, body, attempts"),
+    MARK_MAIL_SENT("UPDATE ringring_mail_outbox SET sent_at = CURRENT_TIMESTAMP, last_error = NULL WHERE id = ?"),
+    MARK_MAIL_FAILED("UPDATE ringring_mail_outbox SET next_attempt_at = CURRENT_TIMESTAMP + ? * INTERVAL '1 millisecond', last_error = ?, failed_at = CASE WHEN attempts >= ? THEN CURRENT_TIMESTAMP ELSE NULL END WHERE id = ?"),
+    // Delivered and abandoned mails hold activation codes, they are kept only for the retention time
+    PURGE_MAILS("DELETE FROM ringring_mail_outbox WHERE sent_at < CURRENT_TIMESTAMP - ? * INTERVAL '1 hour' OR failed_at < CURRENT_TIMESTAMP - ? * INTERVAL '1 hour'"),
+
+    // Presence
+    GET_REGISTRATIONS("SELECT reg_user, MAX(expires) FROM registrations WHERE expires >= ? GROUP BY reg_user"),
+    GET_DATABASE_TIME("SELECT CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) AS BIGINT)");
+
+    private final String sql;
+
+    SqlStatement(String sql) {
+        this.sql = sql;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    // Enum constants cannot refer to static fields of their own enum
+    private static class Users {
+        static final String SELECT_WITH_SIP_USER = "SELECT zu.email, zu.activation_code, zu.is_activated, d.username FROM ringring_users zu LEFT JOIN directory d ON d.ringring_user_id = zu.id";
+        static final String SELECT_WITH_REGISTRATION = "SELECT zu.email, zu.activation_code, zu.is_activated, CASE WHEN r.reg_user IS NULL THEN false ELSE true END FROM ringring_users zu LEFT JOIN directory d ON d.ringring_user_id = zu.id LEFT JOIN registrations r ON r.reg_user = d.username";
+        static final String ONLY_ACTIVATED = " AND zu.is_activated = TRUE";
+        static final String CHANGE_KEY = "CAST(EXTRACT(EPOCH FROM zu.updated_at) * 1000000 AS BIGINT), zu.id";
+        static final String KEYSET_AFTER =
+                " AND (zu.updated_at, zu.id) > (TIMESTAMP 'epoch' + ? * INTERVAL '1 microsecond', ?)" +
+                " AND zu.updated_at < LOCALTIMESTAMP - ? * INTERVAL '1 millisecond'" +
+                " ORDER BY zu.updated_at, zu.id LIMIT ?";
+        static final String CHANGED_AFTER = " WHERE zu.email = ANY(?)" + ONLY_ACTIVATED + KEYSET_AFTER;
+    }
+}
@@ -0,0 +1,27 @@
+package io.ringring.server.persistence;
+
+import io.ringring.server.metrics.Histogram;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Prepares the statements of the {@link SqlStatement} catalog and counts how often they are prepared
+ * and how often the database had to parse them. Callers report the execution times of the statements.
+ */
+public interface StatementCatalog {
+    PreparedStatement prepare(Connection connection, SqlStatement statement) throws SQLException;
+
+    // Number of times the statement has been prepared
+    long getPrepareCount(SqlStatement statement);
+
+    // Number of new statements on the database side, the rest came from the statement cache of the pool
+    long getParseCount(SqlStatement statement);
+
+    // Records an execution of the statement that started at startNanos, see System.nanoTime(), with the rows it returned or updated
+    void recordExecution(SqlStatement statement, int rows, long startNanos);
+
+    // Execution times of the statement, in microseconds
+    Histogram getExecutionHistogram(SqlStatement statement);
+}
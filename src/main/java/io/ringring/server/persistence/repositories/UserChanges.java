@@ -0,0 +1,34 @@
+package io.ringring.server.persistence.repositories;
+
+import io.ringring.core.User;
+
+import java.util.List;
+
+/**
+ * One page of the contact changes feed: the changed users, the cursor to continue from and whether
+ * more changes are waiting after this page.
+ */
+public class UserChanges {
+
+    private final List<User> users;
+    private final String cursor;
+    private final boolean hasMore;
+
+    public UserChanges(List<User> users, String cursor, boolean hasMore) {
+        this.users = users;
+        this.cursor = cursor;
+        this.hasMore = hasMore;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
@@ -16,6 +16,7 @@ public interface UserRepository {
 
     public User getUser(String email, boolean onlyActivatedUsers) throws Exception; // WS
     public List<User> getUsers(List<String> emailList, boolean onlyActivatedUsers) throws Exception; //WS
+    public UserChanges getChanges(List<String> emailList, String cursor) throws Exception; // WS
     public User register(String email) throws Exception; // WS
     public void activate(User user) throws Exception; // WS
     public void renewActivationCode(String email) throws Exception; // WS
@@ -0,0 +1,245 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.User;
+import io.ringring.server.cache.BloomFilter;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leaves the emails that are certainly not registered out of the list lookups of
+ * {@link SingleFlightUserRepositoryImpl}, when bloom.user.enabled is set. Single lookups always go through.
+ *
+ * start() fills a {@link BloomFilter} with the emails of ringring_users in the background, until it is
+ * done every lookup goes through. register() adds the email before and after the insert, so a rebuild
+ * running meanwhile cannot miss it. Users registered by other servers are only seen after the next
+ * rebuild, every bloom.user.rebuild seconds, until then list lookups here do not return them. Each
+ * rebuild scans the whole ringring_users table, the default interval is a day. Emails that
+ * are not plain ASCII always go through, the lowercasing of Java and of the database may differ for them.
+ */
+@Singleton
+public class BloomFilterUserRepositoryImpl extends ForwardingUserRepository {
+    private static final Logger logger = LoggerFactory.getLogger(BloomFilterUserRepositoryImpl.class);
+
+    private static final int FETCH_SIZE = 1000;
+
+    private final ConnectionManager connectionManager;
+    private final StatementCatalog statementCatalog;
+
+    private final boolean enabled;
+    private final int expectedUsers;
+    private final double falsePositiveRate;
+    private final long maxBytes;
+    private final int rebuildInterval;
+
+    // Null until the first build is done
+    private volatile BloomFilter filter;
+    // The filter a rebuild is filling, registrations go to both
+    private volatile BloomFilter nextFilter;
+    private volatile long userCount;
+
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong passedCount = new AtomicLong();
+
+    // Rebuilds run one at a time, apart from start() and stop()
+    private final Object rebuildLock = new Object();
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public BloomFilterUserRepositoryImpl(SingleFlightUserRepositoryImpl delegate, ConnectionManager connectionManager, StatementCatalog statementCatalog, ConfigManager configManager) {
+        super(delegate);
+        this.connectionManager = connectionManager;
+        this.statementCatalog = statementCatalog;
+
+        this.enabled = configManager.getUserBloomEnabled();
+        this.expectedUsers = configManager.getUserBloomExpectedUsers();
+        this.falsePositiveRate = configManager.getUserBloomFalsePositiveRate();
+        this.maxBytes = configManager.getUserBloomMaxBytes();
+        this.rebuildInterval = configManager.getUserBloomRebuildInterval();
+    }
+
+    public synchronized void start() {
+        if (!enabled || executor != null) return;
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "user-bloom-filter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Runnable build = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuild();
+                } catch (Exception e) {
+                    logger.warn("Unable to build the user Bloom filter", e);
+                }
+            }
+        };
+
+        if (rebuildInterval > 0) {
+            executor.scheduleWithFixedDelay(build, 0, rebuildInterval, TimeUnit.SECONDS);
+        } else {
+            executor.execute(build);
+        }
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Fills a new filter from ringring_users and swaps it in. Sized for twice the users of the last
+     * build, so the filter keeps its false positive rate while the table grows.
+     */
+    public void rebuild() throws SQLException {
+        synchronized (rebuildLock) {
+            BloomFilter next = new BloomFilter(Math.max(expectedUsers, 2 * userCount), falsePositiveRate, maxBytes);
+            nextFilter = next;
+
+            int count = 0;
+            Connection connection = connectionManager.getConnection();
+            try {
+                // The driver only reads in chunks inside a transaction
+                connection.setAutoCommit(false);
+
+                PreparedStatement stmt = statementCatalog.prepare(connection, SqlStatement.GET_USER_EMAILS);
+                stmt.setFetchSize(FETCH_SIZE);
+
+                long started = System.nanoTime();
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    next.put(rs.getString(1));
+                    count++;
+                }
+                rs.close();
+                statementCatalog.recordExecution(SqlStatement.GET_USER_EMAILS, count, started);
+                stmt.close();
+
+                connection.commit();
+
+                filter = next;
+                userCount = count;
+            } finally {
+                nextFilter = null;
+
+                connection.setAutoCommit(true);
+                connection.close();
+            }
+
+            logger.info("User Bloom filter built from " + count + " users, " + next.getBitSize() / 8 + " bytes, fill ratio " + next.getFillRatio());
+        }
+    }
+
+    // False until the first build is done, every list lookup goes through until then
+    public boolean isReady() { return filter != null; }
+
+    // Current filter, null before the first build
+    public BloomFilter getFilter() { return filter; }
+
+    // Emails answered without a query
+    public long getSkippedCount() { return skippedCount.get(); }
+
+    // Emails that went through, registered ones and false positives
+    public long getPassedCount() { return passedCount.get(); }
+
+    @Override
+    public List<User> getUsers(List<String> emailList, boolean onlyActivatedUsers) throws Exception {
+        if (filter == null) {
+            passedCount.addAndGet(emailList.size());
+            return delegate.getUsers(emailList, onlyActivatedUsers);
+        }
+
+        List<String> candidateEmails = new ArrayList<String>(emailList.size());
+        for (String email : emailList) {
+            if (email != null && isNotRegistered(email.trim().toLowerCase())) {
+                skippedCount.incrementAndGet();
+            } else {
+                candidateEmails.add(email);
+            }
+        }
+        passedCount.addAndGet(candidateEmails.size());
+
+        if (candidateEmails.isEmpty()) {
+            return new ArrayList<User>();
+        }
+
+        return delegate.getUsers(candidateEmails, onlyActivatedUsers);
+    }
+
+    @Override
+    public User register(String email) throws Exception {
+        // Before the insert for the lookups racing it, after the insert for a rebuild that started meanwhile.
+        // A failed registration only leaves a false positive, an existing email belongs in the filter anyway
+        add(email);
+        try {
+            return delegate.register(email);
+        } finally {
+            add(email);
+        }
+    }
+
+    @Override
+    public void dropUsers() {
+        try {
+            delegate.dropUsers();
+        } finally {
+            // Only used to reset the database, nothing registers meanwhile
+            BloomFilter current = filter;
+            if (current != null) current.clear();
+        }
+    }
+
+    private boolean isNotRegistered(String normalizedEmail) {
+        BloomFilter current = filter;
+
+        return current != null && isAscii(normalizedEmail) && !current.mightContain(normalizedEmail);
+    }
+
+    private void add(String email) {
+        if (email == null) return;
+
+        String normalized = email.toLowerCase();
+        BloomFilter current = filter;
+        if (current != null) current.put(normalized);
+
+        BloomFilter next = nextFilter;
+        if (next != null) next.put(normalized);
+
+        // A rebuild may have swapped in its filter and cleared nextFilter between the two reads
+        BloomFilter swapped = filter;
+        if (swapped != current) swapped.put(normalized);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7f) return false;
+        }
+
+        return true;
+    }
+}
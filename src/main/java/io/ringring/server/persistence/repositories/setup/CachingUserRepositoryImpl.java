@@ -0,0 +1,210 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.User;
+import io.ringring.server.cache.LruCache;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.persistence.repositories.UserChanges;
+import io.ringring.server.persistence.repositories.UserRepository;
+import io.ringring.server.presence.PresenceManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache in front of the user lookups of {@link BloomFilterUserRepositoryImpl}.
+ *
+ * Users are cached by lowercased email regardless of their activation state, unregistered emails are
+ * cached as well. Every write to a user invalidates its entry. While the presence index is fresh the
+ * isLoggedIn flag of cached users is taken from there, so it is not held back by the cache.
+ */
+@Singleton
+public class CachingUserRepositoryImpl implements UserRepository {
+
+    // Marks emails that are known to be unregistered
+    private static final User NOT_REGISTERED = new User();
+
+    private final UserRepository delegate;
+    private final PresenceManager presenceManager;
+    private final LruCache<String, User> cache;
+
+    @Inject
+    public CachingUserRepositoryImpl(BloomFilterUserRepositoryImpl delegate, ConfigManager configManager, PresenceManager presenceManager) {
+        this.delegate = delegate;
+        this.presenceManager = presenceManager;
+
+        if (configManager.getUserCacheEnabled()) {
+            this.cache = new LruCache<String, User>(configManager.getUserCacheMaxSize(), configManager.getUserCacheTtl(), TimeUnit.SECONDS);
+        } else {
+            this.cache = null;
+        }
+    }
+
+    public LruCache<String, User> getCache() {
+        return cache;
+    }
+
+    @Override
+    public void update(User user) {
+        try {
+            delegate.update(user);
+        } finally {
+            invalidate(user.getEmail());
+        }
+    }
+
+    @Override
+    public void dropUsers() {
+        try {
+            delegate.dropUsers();
+        } finally {
+            if (cache != null) cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void dropInvites() {
+        delegate.dropInvites();
+    }
+
+    @Override
+    public String getActivationCode(String email) throws Exception {
+        return delegate.getActivationCode(email);
+    }
+
+    @Override
+    public User getUser(String email, boolean onlyActivatedUsers) throws Exception {
+        if (cache == null || email == null) {
+            return delegate.getUser(email, onlyActivatedUsers);
+        }
+
+        String key = email.toLowerCase();
+        User user = cache.get(key);
+
+        if (user == null) {
+            long stamp = cache.stamp();
+            user = delegate.getUser(email, false);
+            if (user == null) user = NOT_REGISTERED;
+
+            cache.put(key, user, stamp);
+        }
+
+        return filter(user, onlyActivatedUsers);
+    }
+
+    @Override
+    public List<User> getUsers(List<String> emailList, boolean onlyActivatedUsers) throws Exception {
+        if (cache == null) {
+            return delegate.getUsers(emailList, onlyActivatedUsers);
+        }
+
+        List<User> userList = new ArrayList<User>();
+        List<String> missingEmails = new ArrayList<String>();
+
+        Set<String> emailSet = new LinkedHashSet<String>();
+        for (String email : emailList) {
+            if (email != null) {
+                emailSet.add(email.trim().toLowerCase());
+            }
+        }
+
+        for (String email : emailSet) {
+            User user = cache.get(email);
+            if (user == null) {
+                missingEmails.add(email);
+            } else {
+                add(userList, user, onlyActivatedUsers);
+            }
+        }
+
+        if (missingEmails.size() > 0) {
+            long stamp = cache.stamp();
+
+            Map<String, User> loadedUsers = new HashMap<String, User>();
+            for (User user : delegate.getUsers(missingEmails, false)) {
+                loadedUsers.put(user.getEmail(), user);
+            }
+
+            for (String email : missingEmails) {
+                User user = loadedUsers.get(email);
+                if (user == null) user = NOT_REGISTERED;
+
+                cache.put(email, user, stamp);
+                add(userList, user, onlyActivatedUsers);
+            }
+        }
+
+        return userList;
+    }
+
+    // The feed exists to read what changed, it always goes to the database
+    @Override
+    public UserChanges getChanges(List<String> emailList, String cursor) throws Exception {
+        return delegate.getChanges(emailList, cursor);
+    }
+
+    @Override
+    public User register(String email) throws Exception {
+        try {
+            return delegate.register(email);
+        } finally {
+            invalidate(email);
+        }
+    }
+
+    @Override
+    public void activate(User user) throws Exception {
+        try {
+            delegate.activate(user);
+        } finally {
+            invalidate(user.getEmail());
+        }
+    }
+
+    @Override
+    public void renewActivationCode(String email) throws Exception {
+        try {
+            delegate.renewActivationCode(email);
+        } finally {
+            invalidate(email);
+        }
+    }
+
+    @Override
+    public void invite(String fromEmail, String toEmail) throws Exception {
+        delegate.invite(fromEmail, toEmail);
+    }
+
+    private void invalidate(String email) {
+        if (cache != null && email != null) {
+            cache.invalidate(email.toLowerCase());
+        }
+    }
+
+    private void add(List<User> userList, User user, boolean onlyActivatedUsers) {
+        User filteredUser = filter(user, onlyActivatedUsers);
+        if (filteredUser != null) {
+            userList.add(filteredUser);
+        }
+    }
+
+    // Callers get their own copy, the cached instance is never handed out
+    private User filter(User user, boolean onlyActivatedUsers) {
+        if (user == NOT_REGISTERED) return null;
+        if (onlyActivatedUsers && !user.getIsActivated()) return null;
+
+        // Only activated users have a SIP account
+        boolean isLoggedIn = user.getIsLoggedIn();
+        if (presenceManager.isFresh()) {
+            isLoggedIn = user.getIsActivated() && presenceManager.isOnline(PlainSqlUserRepositoryImpl.sipEncode(user.getEmail()));
+        }
+
+        return new User(user.getEmail(), user.getActivationCode(), user.getIsActivated(), isLoggedIn);
+    }
+}
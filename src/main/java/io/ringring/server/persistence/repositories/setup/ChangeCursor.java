@@ -0,0 +1,61 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import io.ringring.core.exceptions.BadRequestException;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.Charset;
+
+/**
+ * Position in the contact changes feed, handed to the clients as an opaque string.
+ *
+ * The (updated_at, id) of the last returned user continues the keyset walk of ringring_users, the
+ * presence time is when the presence changes were last collected. The initial cursor starts before
+ * every user.
+ */
+class ChangeCursor {
+
+    private static final String VERSION = "1";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // 0001-01-01, before any updated_at and still a valid timestamp in the query
+    private static final long BEFORE_ANY_UPDATE = -62135596800000000L;
+
+    static final ChangeCursor INITIAL = new ChangeCursor(BEFORE_ANY_UPDATE, 0, 0);
+
+    // updated_at in microseconds since the epoch, as stored without time zone
+    final long updatedAt;
+    final int id;
+    // Local time in epoch milliseconds
+    final long presenceAt;
+
+    ChangeCursor(long updatedAt, int id, long presenceAt) {
+        this.updatedAt = updatedAt;
+        this.id = id;
+        this.presenceAt = presenceAt;
+    }
+
+    boolean isInitial() {
+        return updatedAt == BEFORE_ANY_UPDATE && id == 0;
+    }
+
+    String encode() {
+        String cursor = VERSION + ":" + updatedAt + ":" + id + ":" + presenceAt;
+        return DatatypeConverter.printBase64Binary(cursor.getBytes(ASCII));
+    }
+
+    // A missing cursor starts at the beginning, anything not issued by encode() is a bad request
+    static ChangeCursor decode(String cursor) throws BadRequestException {
+        if (cursor == null || cursor.length() == 0) return INITIAL;
+
+        try {
+            String[] fields = new String(DatatypeConverter.parseBase64Binary(cursor), ASCII).split(":");
+            if (fields.length != 4 || !VERSION.equals(fields[0])) {
+                throw new BadRequestException("Unknown cursor " + cursor);
+            }
+
+            return new ChangeCursor(Long.parseLong(fields[1]), Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown cursor " + cursor, e);
+        }
+    }
+}
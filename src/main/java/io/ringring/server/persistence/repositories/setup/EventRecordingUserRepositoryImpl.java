@@ -0,0 +1,183 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.Status;
+import io.ringring.core.User;
+import io.ringring.core.exceptions.*;
+import io.ringring.server.metrics.EventRecorder;
+import io.ringring.server.persistence.repositories.UserChanges;
+import io.ringring.server.persistence.repositories.UserRepository;
+
+import javax.mail.internet.AddressException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Reports every operation of {@link CachingUserRepositoryImpl} to the {@link EventRecorder} with the
+ * Status the API would answer and the number of users it returned or wrote.
+ */
+@Singleton
+public class EventRecordingUserRepositoryImpl implements UserRepository {
+
+    private final UserRepository delegate;
+    private final EventRecorder eventRecorder;
+
+    @Inject
+    public EventRecordingUserRepositoryImpl(CachingUserRepositoryImpl delegate, EventRecorder eventRecorder) {
+        this.delegate = delegate;
+        this.eventRecorder = eventRecorder;
+    }
+
+    @Override
+    public void update(User user) {
+        long started = System.nanoTime();
+        Status status = Status.INTERNAL_APPLICATION_ERROR;
+        try {
+            delegate.update(user);
+            status = Status.OKAY;
+        } finally {
+            eventRecorder.repositoryOperation("update", status, status == Status.OKAY ? 1 : 0, started);
+        }
+    }
+
+    @Override
+    public void dropUsers() {
+        long started = System.nanoTime();
+        Status status = Status.INTERNAL_APPLICATION_ERROR;
+        try {
+            delegate.dropUsers();
+            status = Status.OKAY;
+        } finally {
+            eventRecorder.repositoryOperation("dropUsers", status, 0, started);
+        }
+    }
+
+    @Override
+    public void dropInvites() {
+        long started = System.nanoTime();
+        Status status = Status.INTERNAL_APPLICATION_ERROR;
+        try {
+            delegate.dropInvites();
+            status = Status.OKAY;
+        } finally {
+            eventRecorder.repositoryOperation("dropInvites", status, 0, started);
+        }
+    }
+
+    @Override
+    public String getActivationCode(String email) throws Exception {
+        long started = System.nanoTime();
+        try {
+            String activationCode = delegate.getActivationCode(email);
+            eventRecorder.repositoryOperation("getActivationCode", activationCode != null ? Status.OKAY : Status.USER_NOT_FOUND, activationCode != null ? 1 : 0, started);
+            return activationCode;
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("getActivationCode", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    @Override
+    public User getUser(String email, boolean onlyActivatedUsers) throws Exception {
+        long started = System.nanoTime();
+        try {
+            User user = delegate.getUser(email, onlyActivatedUsers);
+            eventRecorder.repositoryOperation("getUser", user != null ? Status.OKAY : Status.USER_NOT_FOUND, user != null ? 1 : 0, started);
+            return user;
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("getUser", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<User> getUsers(List<String> emailList, boolean onlyActivatedUsers) throws Exception {
+        long started = System.nanoTime();
+        try {
+            List<User> users = delegate.getUsers(emailList, onlyActivatedUsers);
+            eventRecorder.repositoryOperation("getUsers", users.size() > 0 ? Status.OKAY : Status.USER_NOT_FOUND, users.size(), started);
+            return users;
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("getUsers", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    @Override
+    public UserChanges getChanges(List<String> emailList, String cursor) throws Exception {
+        long started = System.nanoTime();
+        try {
+            UserChanges changes = delegate.getChanges(emailList, cursor);
+            eventRecorder.repositoryOperation("getChanges", Status.OKAY, changes.getUsers().size(), started);
+            return changes;
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("getChanges", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    @Override
+    public User register(String email) throws Exception {
+        long started = System.nanoTime();
+        try {
+            User user = delegate.register(email);
+            eventRecorder.repositoryOperation("register", Status.OKAY, user != null ? 1 : 0, started);
+            return user;
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("register", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    @Override
+    public void activate(User user) throws Exception {
+        long started = System.nanoTime();
+        try {
+            delegate.activate(user);
+            eventRecorder.repositoryOperation("activate", Status.OKAY, 1, started);
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("activate", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    @Override
+    public void renewActivationCode(String email) throws Exception {
+        long started = System.nanoTime();
+        try {
+            delegate.renewActivationCode(email);
+            eventRecorder.repositoryOperation("renewActivationCode", Status.OKAY, 1, started);
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("renewActivationCode", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    @Override
+    public void invite(String fromEmail, String toEmail) throws Exception {
+        long started = System.nanoTime();
+        try {
+            delegate.invite(fromEmail, toEmail);
+            eventRecorder.repositoryOperation("invite", Status.OKAY, 1, started);
+        } catch (Exception e) {
+            eventRecorder.repositoryOperation("invite", statusOf(e), 0, started);
+            throw e;
+        }
+    }
+
+    // Same mapping as UserResource
+    private static Status statusOf(Exception e) {
+        if (e instanceof BadRequestException) return Status.BAD_REQUEST;
+        if (e instanceof AddressException) return Status.INVALID_EMAIL;
+        if (e instanceof EmailAlreadyRegisteredException) return Status.EMAIL_ALREADY_REGISTERED;
+        if (e instanceof UserNotFoundException) return Status.USER_NOT_FOUND;
+        if (e instanceof InvalidActivationCodeException) return Status.INVALID_ACTIVATION_CODE;
+        if (e instanceof UserAlreadyActivatedException) return Status.USER_ALREADY_ACTIVATED;
+        if (e instanceof InvitationLimitNotExceededException) return Status.INVITATION_LIMIT_NOT_EXCEEDED;
+        if (e instanceof MailException) return Status.INTERNAL_SMTP_ERROR;
+        if (e instanceof SQLException) return Status.INTERNAL_DATABASE_ERROR;
+
+        return Status.INTERNAL_APPLICATION_ERROR;
+    }
+}
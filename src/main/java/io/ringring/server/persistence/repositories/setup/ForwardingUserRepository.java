@@ -0,0 +1,74 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import io.ringring.core.User;
+import io.ringring.server.persistence.repositories.UserChanges;
+import io.ringring.server.persistence.repositories.UserRepository;
+
+import java.util.List;
+
+/**
+ * Passes every call on to another repository, subclasses override the calls they decorate.
+ */
+public abstract class ForwardingUserRepository implements UserRepository {
+
+    protected final UserRepository delegate;
+
+    protected ForwardingUserRepository(UserRepository delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void update(User user) {
+        delegate.update(user);
+    }
+
+    @Override
+    public void dropUsers() {
+        delegate.dropUsers();
+    }
+
+    @Override
+    public void dropInvites() {
+        delegate.dropInvites();
+    }
+
+    @Override
+    public String getActivationCode(String email) throws Exception {
+        return delegate.getActivationCode(email);
+    }
+
+    @Override
+    public User getUser(String email, boolean onlyActivatedUsers) throws Exception {
+        return delegate.getUser(email, onlyActivatedUsers);
+    }
+
+    @Override
+    public List<User> getUsers(List<String> emailList, boolean onlyActivatedUsers) throws Exception {
+        return delegate.getUsers(emailList, onlyActivatedUsers);
+    }
+
+    @Override
+    public UserChanges getChanges(List<String> emailList, String cursor) throws Exception {
+        return delegate.getChanges(emailList, cursor);
+    }
+
+    @Override
+    public User register(String email) throws Exception {
+        return delegate.register(email);
+    }
+
+    @Override
+    public void activate(User user) throws Exception {
+        delegate.activate(user);
+    }
+
+    @Override
+    public void renewActivationCode(String email) throws Exception {
+        delegate.renewActivationCode(email);
+    }
+
+    @Override
+    public void invite(String fromEmail, String toEmail) throws Exception {
+        delegate.invite(fromEmail, toEmail);
+    }
+}
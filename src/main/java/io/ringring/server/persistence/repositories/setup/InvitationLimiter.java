@@ -0,0 +1,149 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.exceptions.InvitationLimitNotExceededException;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+import io.ringring.server.ratelimit.SlidingWindowRateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the invitation limits in memory instead of querying ringring_invites on every invite.
+ *
+ * A recipient can be invited once per mail.invitation.limit minutes and a sender can send at most
+ * mail.invitation.sender.limit invites per mail.invitation.sender.window minutes. Limits below one
+ * are switched off. The invites still inside a window are loaded from ringring_invites by start(), when
+ * the server starts. If that fails the first invite loads them instead.
+ */
+@Singleton
+public class InvitationLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(InvitationLimiter.class);
+
+    private final ConnectionManager connectionManager;
+    private final StatementCatalog statementCatalog;
+
+    private final SlidingWindowRateLimiter<String> recipientLimiter;
+    private final SlidingWindowRateLimiter<String> senderLimiter;
+    private final long maxWindowMinutes;
+
+    private volatile boolean loaded;
+
+    @Inject
+    public InvitationLimiter(ConnectionManager connectionManager, StatementCatalog statementCatalog, ConfigManager configManager) {
+        this.connectionManager = connectionManager;
+        this.statementCatalog = statementCatalog;
+
+        int recipientWindow = configManager.getInvitationLimit();
+        int senderLimit = configManager.getInvitationSenderLimit();
+        int senderWindow = configManager.getInvitationSenderWindow();
+
+        this.recipientLimiter = recipientWindow > 0 ? new SlidingWindowRateLimiter<String>(1, recipientWindow, TimeUnit.MINUTES) : null;
+        this.senderLimiter = senderLimit > 0 && senderWindow > 0 ? new SlidingWindowRateLimiter<String>(senderLimit, senderWindow, TimeUnit.MINUTES) : null;
+        this.maxWindowMinutes = Math.max(recipientLimiter != null ? recipientWindow : 0, senderLimiter != null ? senderWindow : 0);
+    }
+
+    // Loads the invites still inside a window, before the first invite needs them
+    public void start() {
+        try {
+            load();
+        } catch (SQLException e) {
+            logger.warn("Unable to load the recent invites, the first invite loads them", e);
+        }
+    }
+
+    /**
+     * Takes one invite from the limits of the sender and the recipient. The returned permit has to be
+     * released if the invite is not stored after all.
+     */
+    public Permit acquire(String fromEmail, String toEmail) throws SQLException, InvitationLimitNotExceededException {
+        load();
+
+        String from = fromEmail.toLowerCase();
+        String to = toEmail.toLowerCase();
+
+        long senderStamp = -1;
+        if (senderLimiter != null) {
+            senderStamp = senderLimiter.tryAcquire(from);
+            if (senderStamp == -1)
+                throw new InvitationLimitNotExceededException();
+        }
+
+        long recipientStamp = -1;
+        if (recipientLimiter != null) {
+            recipientStamp = recipientLimiter.tryAcquire(to);
+            if (recipientStamp == -1) {
+                if (senderLimiter != null) senderLimiter.release(from, senderStamp);
+                throw new InvitationLimitNotExceededException();
+            }
+        }
+
+        return new Permit(from, senderStamp, to, recipientStamp);
+    }
+
+    public void clear() {
+        if (senderLimiter != null) senderLimiter.clear();
+        if (recipientLimiter != null) recipientLimiter.clear();
+    }
+
+    private void load() throws SQLException {
+        if (loaded) return;
+
+        synchronized (this) {
+            if (loaded) return;
+
+            if (maxWindowMinutes > 0) {
+                Connection connection = connectionManager.getConnection();
+                try {
+                    PreparedStatement query = statementCatalog.prepare(connection, SqlStatement.GET_RECENT_INVITES);
+                    query.setLong(1, maxWindowMinutes);
+
+                    long started = System.nanoTime();
+                    ResultSet rs = query.executeQuery();
+                    int rows = 0;
+                    while (rs.next()) {
+                        long ageMillis = rs.getLong(3);
+                        if (senderLimiter != null) senderLimiter.record(rs.getString(1), ageMillis);
+                        if (recipientLimiter != null) recipientLimiter.record(rs.getString(2), ageMillis);
+                        rows++;
+                    }
+                    rs.close();
+                    statementCatalog.recordExecution(SqlStatement.GET_RECENT_INVITES, rows, started);
+                    query.close();
+                } finally {
+                    connection.close();
+                }
+            }
+
+            loaded = true;
+        }
+    }
+
+    public class Permit {
+        private final String from;
+        private final long senderStamp;
+        private final String to;
+        private final long recipientStamp;
+
+        Permit(String from, long senderStamp, String to, long recipientStamp) {
+            this.from = from;
+            this.senderStamp = senderStamp;
+            this.to = to;
+            this.recipientStamp = recipientStamp;
+        }
+
+        public void release() {
+            if (senderLimiter != null) senderLimiter.release(from, senderStamp);
+            if (recipientLimiter != null) recipientLimiter.release(to, recipientStamp);
+        }
+    }
+}
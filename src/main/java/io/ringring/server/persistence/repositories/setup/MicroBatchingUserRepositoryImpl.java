@@ -0,0 +1,171 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.User;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.metrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects single user lookups into batches that {@link PlainSqlUserRepositoryImpl} resolves with one
+ * getUsers query, when batch.user.enabled is set.
+ *
+ * The first lookup opens a batch and waits batch.user.window milliseconds for others to join, then
+ * runs the query for all of them on its own thread. A batch that reaches batch.user.maxsize lookups
+ * is run right away. Lookups with and without onlyActivatedUsers go to separate batches. A lookup
+ * that joined a batch waits at most batch.user.maxwait milliseconds and then queries on its own.
+ */
+@Singleton
+public class MicroBatchingUserRepositoryImpl extends ForwardingUserRepository {
+
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int maxSize;
+    private final long maxWaitNanos;
+
+    // The batch still open for joining, by onlyActivatedUsers
+    private final Batch[] openBatches = new Batch[2];
+
+    private final Histogram batchSizeHistogram = new Histogram();
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    @Inject
+    public MicroBatchingUserRepositoryImpl(PlainSqlUserRepositoryImpl delegate, ConfigManager configManager) {
+        super(delegate);
+
+        this.enabled = configManager.getUserBatchEnabled();
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getUserBatchWindow());
+        this.maxSize = Math.max(configManager.getUserBatchMaxSize(), 1);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getUserBatchMaxWait());
+    }
+
+    // Distinct emails per query
+    public Histogram getBatchSizeHistogram() { return batchSizeHistogram; }
+
+    // Lookups that gave up waiting for their batch and queried on their own
+    public long getTimeoutCount() { return timeoutCount.get(); }
+
+    @Override
+    public User getUser(String email, boolean onlyActivatedUsers) throws Exception {
+        // getUsers trims the emails, a lookup with blanks around the email has to miss as it did before
+        if (!enabled || email == null || email.trim().length() != email.length()) {
+            return delegate.getUser(email, onlyActivatedUsers);
+        }
+
+        String normalized = email.toLowerCase();
+        int slot = onlyActivatedUsers ? 1 : 0;
+
+        Batch batch;
+        boolean first = false;
+        synchronized (openBatches) {
+            batch = openBatches[slot];
+            if (batch == null) {
+                batch = new Batch();
+                openBatches[slot] = batch;
+                first = true;
+            }
+
+            batch.emails.add(normalized);
+            if (batch.emails.size() >= maxSize) {
+                openBatches[slot] = null;
+                batch.full.countDown();
+            }
+        }
+
+        if (first) {
+            run(batch, slot, onlyActivatedUsers);
+            return batch.get(normalized);
+        }
+
+        if (batch.await(maxWaitNanos)) {
+            return batch.get(normalized);
+        }
+
+        timeoutCount.incrementAndGet();
+        return delegate.getUser(email, onlyActivatedUsers);
+    }
+
+    private void run(Batch batch, int slot, boolean onlyActivatedUsers) {
+        boolean interrupted = false;
+        try {
+            batch.full.await(windowNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            // The others are waiting for this batch, it runs anyway
+            interrupted = true;
+        }
+
+        ArrayList<String> emails;
+        synchronized (openBatches) {
+            if (openBatches[slot] == batch) {
+                openBatches[slot] = null;
+            }
+            emails = new ArrayList<String>(batch.emails);
+        }
+
+        try {
+            Map<String, User> users = new HashMap<String, User>();
+            for (User user : delegate.getUsers(emails, onlyActivatedUsers)) {
+                users.put(user.getEmail(), user);
+            }
+            batch.complete(users);
+        } catch (Exception e) {
+            batch.fail(e);
+        } finally {
+            if (!batch.isDone()) {
+                batch.fail(new IllegalStateException("The batched lookup failed"));
+            }
+            batchSizeHistogram.record(emails.size());
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Batch {
+        // Guarded by openBatches until the batch is closed
+        private final Set<String> emails = new LinkedHashSet<String>();
+        private final CountDownLatch full = new CountDownLatch(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Map<String, User> users;
+        private volatile Exception exception;
+
+        void complete(Map<String, User> users) {
+            this.users = users;
+            done.countDown();
+        }
+
+        void fail(Exception exception) {
+            this.exception = exception;
+            done.countDown();
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        boolean await(long timeoutNanos) throws InterruptedException {
+            return done.await(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        // Every caller gets its own instance, the same email may be looked up twice in a batch
+        User get(String email) throws Exception {
+            if (exception != null) throw exception;
+
+            User user = users.get(email);
+            if (user == null) return null;
+
+            return new User(user.getEmail(), user.getActivationCode(), user.getIsActivated(), user.getIsLoggedIn());
+        }
+    }
+}
@@ -3,58 +3,81 @@ package io.ringring.server.persistence.repositories.setup;
 import java.sql.*;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import javax.mail.Session;
+import java.util.Set;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.AddressException;
 import io.ringring.core.User;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import io.ringring.core.exceptions.*;
 import io.ringring.server.config.ConfigManager;
+import io.ringring.server.mail.MailDispatcher;
 import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+import io.ringring.server.persistence.repositories.UserChanges;
 import io.ringring.server.persistence.repositories.UserRepository;
-
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
-import javax.mail.Transport;
-import javax.mail.internet.MimeMessage;
+import io.ringring.server.presence.PresenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Created by kosztope on 23/01/14.
  */
+@Singleton
 public class PlainSqlUserRepositoryImpl implements UserRepository {
+    private static final Logger logger = LoggerFactory.getLogger(PlainSqlUserRepositoryImpl.class);
+
+    private static final String SIP_DIAL_STRING = "{presence_id=${dialed_user}@${dialed_domain}}${sofia_contact(${dialed_user}@${dialed_domain})}";
 
     private final ConfigManager configManager;
     private final ConnectionManager connectionManager;
+    private final StatementCatalog statementCatalog;
+    private final PresenceManager presenceManager;
+    private final MailDispatcher mailDispatcher;
+    private final InvitationLimiter invitationLimiter;
+
+    private volatile Integer directoryDomainId;
+    private volatile Integer dialplanContextId;
 
     @Inject
-    public PlainSqlUserRepositoryImpl(ConnectionManager connectionManager, ConfigManager configManager) {
+    public PlainSqlUserRepositoryImpl(ConnectionManager connectionManager, StatementCatalog statementCatalog, ConfigManager configManager, PresenceManager presenceManager, MailDispatcher mailDispatcher, InvitationLimiter invitationLimiter) {
         this.connectionManager = connectionManager;
+        this.statementCatalog = statementCatalog;
         this.configManager = configManager;
+        this.presenceManager = presenceManager;
+        this.mailDispatcher = mailDispatcher;
+        this.invitationLimiter = invitationLimiter;
     }
 
     @Override
     public String getActivationCode(String email) throws Exception {
         String activationCode = null;
         Connection connection = connectionManager.getConnection();
+        PreparedStatement query = null;
 
         try {
-            PreparedStatement query = connection.prepareStatement("SELECT activation_code FROM ringring_users WHERE email = LOWER(?)");
+            query = statementCatalog.prepare(connection, SqlStatement.GET_ACTIVATION_CODE);
             query.clearParameters();
             query.setString(1, email);
 
+            long started = System.nanoTime();
             ResultSet rs = query.executeQuery();
+            int rows = 0;
             while(rs.next()) {
                 activationCode = rs.getString(1);
+                rows++;
             }
-
-            connection.close();
+            rs.close();
+            statementCatalog.recordExecution(SqlStatement.GET_ACTIVATION_CODE, rows, started);
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to get the activation code of " + email, e);
             throw new SQLException(e);
         } finally {
+            close(query);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -68,19 +91,23 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
     @Override
     public void update(User user) {
         Connection connection = connectionManager.getConnection();
+        PreparedStatement stmt = null;
 
         try {
-            PreparedStatement stmt = connection.prepareStatement("UPDATE ringring_users SET activation_code=?, is_activated=? WHERE email=LOWER(?)");
+            stmt = statementCatalog.prepare(connection, SqlStatement.UPDATE_USER);
             stmt.clearParameters();
 
             stmt.setString(1, user.getActivationCode());
             stmt.setBoolean(2, user.getIsActivated());
             stmt.setString(3, user.getEmail());
 
-            stmt.executeUpdate();
+            long started = System.nanoTime();
+            int rows = stmt.executeUpdate();
+            statementCatalog.recordExecution(SqlStatement.UPDATE_USER, rows, started);
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to update user " + user.getEmail(), e);
         } finally {
+            close(stmt);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -92,30 +119,20 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
     @Override
     public void dropUsers() {
         Connection connection = connectionManager.getConnection();
+        Statement stmt = null;
         try {
-            PreparedStatement stmt = connection.prepareStatement("TRUNCATE TABLE ringring_users");
-            stmt.execute();
-
-            stmt = connection.prepareStatement("TRUNCATE TABLE directory");
-            stmt.execute();
-
-            stmt = connection.prepareStatement("TRUNCATE TABLE directory_vars");
-            stmt.execute();
-
-            stmt = connection.prepareStatement("TRUNCATE TABLE directory_params");
-            stmt.execute();
-
-            stmt = connection.prepareStatement("TRUNCATE TABLE dialplan_extension");
-            stmt.execute();
-
-            stmt = connection.prepareStatement("TRUNCATE TABLE dialplan_condition");
-            stmt.execute();
-
-            stmt = connection.prepareStatement("TRUNCATE TABLE dialplan_actions");
-            stmt.execute();
+            stmt = connection.createStatement();
+            stmt.execute("TRUNCATE TABLE ringring_users");
+            stmt.execute("TRUNCATE TABLE directory");
+            stmt.execute("TRUNCATE TABLE directory_vars");
+            stmt.execute("TRUNCATE TABLE directory_params");
+            stmt.execute("TRUNCATE TABLE dialplan_extension");
+            stmt.execute("TRUNCATE TABLE dialplan_condition");
+            stmt.execute("TRUNCATE TABLE dialplan_actions");
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to drop the users", e);
         } finally {
+            close(stmt);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -127,12 +144,16 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
     @Override
     public void dropInvites() {
         Connection connection = connectionManager.getConnection();
+        PreparedStatement stmt = null;
         try {
-            PreparedStatement stmt = connection.prepareStatement("TRUNCATE TABLE ringring_invites");
+            stmt = connection.prepareStatement("TRUNCATE TABLE ringring_invites");
             stmt.execute();
+
+            invitationLimiter.clear();
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to drop the invites", e);
         } finally {
+            close(stmt);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -144,32 +165,34 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
     @Override
     public User getUser(String email, boolean onlyActivatedUsers) throws Exception {
         User user = null;
+        boolean presenceFromIndex = presenceManager.isFresh();
         Connection connection = connectionManager.getConnection();
+        PreparedStatement query = null;
 
         try {
-            String sql = "SELECT zu.email, zu.activation_code, zu.is_activated, CASE WHEN r.reg_user IS NULL THEN false ELSE true END FROM ringring_users zu LEFT JOIN directory d ON d.ringring_user_id = zu.id LEFT JOIN registrations r ON r.reg_user = d.username WHERE zu.email = LOWER(?)";
-            if(onlyActivatedUsers) sql = sql + " AND zu.is_activated = TRUE";
+            SqlStatement statement = presenceFromIndex
+                    ? (onlyActivatedUsers ? SqlStatement.GET_ACTIVATED_USER : SqlStatement.GET_USER)
+                    : (onlyActivatedUsers ? SqlStatement.GET_ACTIVATED_USER_WITH_REGISTRATION : SqlStatement.GET_USER_WITH_REGISTRATION);
 
-            PreparedStatement query = connection.prepareStatement(sql);
+            query = statementCatalog.prepare(connection, statement);
             query.clearParameters();
             query.setString(1, email);
 
+            long started = System.nanoTime();
             ResultSet rs = query.executeQuery();
+            int rows = 0;
             while(rs.next()) {
-                user = new User(
-                        rs.getString(1),
-                        "XXXXX", // do _NOT_ send the activation code directly
-                        rs.getBoolean(3),
-                        rs.getBoolean(4)
-                );
+                user = readUser(rs, presenceFromIndex);
+                rows++;
             }
-
-            connection.close();
+            rs.close();
+            statementCatalog.recordExecution(statement, rows, started);
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to get user " + email, e);
 
             throw new SQLException(e);
         } finally {
+            close(query);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -183,41 +206,152 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
     @Override
     public List<User> getUsers(List<String> emailList, boolean onlyActivatedUsers) throws Exception{
         List<User> userList = new ArrayList<User>();
-        Connection connection = connectionManager.getConnection();
 
-        if (emailList.size() == 0) {
+        // Normalize and de-duplicate the address book before it hits the database
+        Set<String> emailSet = new LinkedHashSet<String>();
+        for (String email : emailList) {
+            if (email != null) {
+                emailSet.add(email.trim().toLowerCase());
+            }
+        }
+
+        if (emailSet.size() == 0) {
             return userList;
         }
 
-        String sqlInEmails = "(";
+        List<String> emails = new ArrayList<String>(emailSet);
+        int chunkSize = Math.max(configManager.getBulkLookupChunkSize(), 1);
+        boolean presenceFromIndex = presenceManager.isFresh();
+
+        Connection connection = connectionManager.getConnection();
+        PreparedStatement query = null;
+        try {
+            SqlStatement statement = presenceFromIndex
+                    ? (onlyActivatedUsers ? SqlStatement.GET_ACTIVATED_USERS : SqlStatement.GET_USERS)
+                    : (onlyActivatedUsers ? SqlStatement.GET_ACTIVATED_USERS_WITH_REGISTRATION : SqlStatement.GET_USERS_WITH_REGISTRATION);
+
+            // The emails are bound as one array parameter, so every chunk runs the same statement and plan
+            query = statementCatalog.prepare(connection, statement);
+            for (int from = 0; from < emails.size(); from += chunkSize) {
+                List<String> chunk = emails.subList(from, Math.min(from + chunkSize, emails.size()));
+
+                query.clearParameters();
+                query.setArray(1, connection.createArrayOf("varchar", chunk.toArray()));
+
+                long started = System.nanoTime();
+                ResultSet rs = query.executeQuery();
+                int rows = 0;
+                while(rs.next()) {
+                    userList.add(readUser(rs, presenceFromIndex));
+                    rows++;
+                }
+                rs.close();
+                statementCatalog.recordExecution(statement, rows, started);
+            }
+        } catch (SQLException e) {
+            logger.error("Unable to get " + emails.size() + " users", e);
+
+            throw new SQLException(e);
+        } finally {
+            close(query);
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return userList;
+    }
+
+    // With a fresh presence index the fourth column is the SIP user, otherwise the joined isLoggedIn flag
+    private User readUser(ResultSet rs, boolean presenceFromIndex) throws SQLException {
+        boolean isLoggedIn;
+        if (presenceFromIndex) {
+            String sipUser = rs.getString(4);
+            isLoggedIn = sipUser != null && presenceManager.isOnline(sipUser);
+        } else {
+            isLoggedIn = rs.getBoolean(4);
+        }
+
+        return new User(
+                rs.getString(1),
+                "XXXXX", // do _NOT_ send the activation code directly
+                rs.getBoolean(3),
+                isLoggedIn
+        );
+    }
+
+    /**
+     * Returns the activated contacts changed since the cursor, a missing cursor returns all of them.
+     *
+     * Activations are read page by page along the (updated_at, id) index. Presence changes come from the
+     * presence index and are returned on the first page after them, they are not reported while the
+     * presence is read from the registrations table. A cursor older than the presence index returns the
+     * presence of every contact, the changes before that are not known.
+     */
+    @Override
+    public UserChanges getChanges(List<String> emailList, String cursor) throws Exception {
+        ChangeCursor from = ChangeCursor.decode(cursor);
+
+        Set<String> emailSet = new LinkedHashSet<String>();
         for (String email : emailList) {
-            sqlInEmails = sqlInEmails + "'" + email.toLowerCase() + "',";
+            if (email != null) {
+                emailSet.add(email.trim().toLowerCase());
+            }
+        }
+
+        // Presence changes after this moment are left for the next call
+        long presenceAt = System.currentTimeMillis();
+        if (emailSet.size() == 0) {
+            return new UserChanges(new ArrayList<User>(), new ChangeCursor(from.updatedAt, from.id, presenceAt).encode(), false);
         }
-        sqlInEmails = sqlInEmails + "null)";
 
+        List<String> emails = new ArrayList<String>(emailSet);
+        int pageSize = configManager.getUserChangesPageSize();
+        boolean presenceFromIndex = presenceManager.isFresh();
+
+        List<User> userList = new ArrayList<User>();
+        long lastUpdatedAt = from.updatedAt;
+        int lastId = from.id;
+        boolean hasMore = false;
+
+        Connection connection = connectionManager.getConnection();
+        PreparedStatement query = null;
         try {
-            String sql = "SELECT zu.email, zu.activation_code, zu.is_activated, CASE WHEN r.reg_user IS NULL THEN false ELSE true END FROM ringring_users zu LEFT JOIN directory d ON d.ringring_user_id = zu.id LEFT JOIN registrations r ON r.reg_user = d.username WHERE zu.email IN " + sqlInEmails;
-            if(onlyActivatedUsers) sql = sql + " AND is_activated = TRUE";
+            SqlStatement statement = presenceFromIndex ? SqlStatement.GET_USER_CHANGES : SqlStatement.GET_USER_CHANGES_WITH_REGISTRATION;
 
-            PreparedStatement query = connection.prepareStatement(sql);
+            query = statementCatalog.prepare(connection, statement);
             query.clearParameters();
-
+            query.setArray(1, connection.createArrayOf("varchar", emails.toArray()));
+            query.setLong(2, from.updatedAt);
+            query.setInt(3, from.id);
+            query.setLong(4, configManager.getUserChangesSettle());
+            // One more row tells whether there is a next page
+            query.setInt(5, pageSize + 1);
+
+            long started = System.nanoTime();
             ResultSet rs = query.executeQuery();
-            while(rs.next()) {
-                userList.add(new User(
-                        rs.getString(1),
-                        "XXXXX", // do _NOT_ send the activation code directly
-                        rs.getBoolean(3),
-                        rs.getBoolean(4)
-                ));
-            }
+            int rows = 0;
+            while (rs.next()) {
+                rows++;
+                if (rows > pageSize) {
+                    hasMore = true;
+                    break;
+                }
 
-            connection.close();
+                userList.add(readUser(rs, presenceFromIndex));
+                lastUpdatedAt = rs.getLong(5);
+                lastId = rs.getInt(6);
+            }
+            rs.close();
+            statementCatalog.recordExecution(statement, rows, started);
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to get the changes of " + emails.size() + " users", e);
 
             throw new SQLException(e);
         } finally {
+            close(query);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -225,43 +359,64 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
             }
         }
 
-        return userList;
+        // The initial page already carries the current presence of the users on it
+        long trackingStart = presenceManager.getTrackingStart();
+        if (presenceFromIndex && trackingStart != 0 && !from.isInitial()) {
+            Set<String> changedEmails = new LinkedHashSet<String>();
+            for (User user : userList) {
+                changedEmails.add(user.getEmail());
+            }
+
+            List<String> presenceChanges = new ArrayList<String>();
+            for (String email : emails) {
+                if (!changedEmails.contains(email)
+                        && (from.presenceAt < trackingStart || presenceManager.getLastChange(sipEncode(email)) >= from.presenceAt)) {
+                    presenceChanges.add(email);
+                }
+            }
+
+            if (presenceChanges.size() > 0) {
+                userList.addAll(getUsers(presenceChanges, true));
+            }
+        }
+
+        return new UserChanges(userList, new ChangeCursor(lastUpdatedAt, lastId, presenceAt).encode(), hasMore);
     }
 
     @Override
     public User register(String email) throws Exception {
+        if(!isValidEmailAddress(email))
+            throw new AddressException();
+
+        User user = null;
+
         Connection connection = connectionManager.getConnection();
+        PreparedStatement stmt = null;
         try {
-            if(!isValidEmailAddress(email))
-                throw new AddressException();
-
-            PreparedStatement stmt = connection.prepareStatement("INSERT INTO ringring_users (email, activation_code, is_activated) VALUES(LOWER(?), SUBSTRING(MD5(RANDOM()::TEXT) FROM 1 FOR ?), FALSE)");
+            stmt = statementCatalog.prepare(connection, SqlStatement.REGISTER);
             stmt.clearParameters();
             stmt.setString(1, email.toLowerCase());
             stmt.setInt(2, configManager.getActivationCodeLength());
-
-            stmt.executeUpdate();
-
-            // Email activation code
-            String activationCode = getActivationCode(email.toLowerCase());
-            String body = configManager.getRenewActivationCodeBody().replace("_ACTIVATION_CODE_", activationCode);
-            sendMail(email.toLowerCase(), configManager.getActivationCodeSubject(), body);
-
-        } catch (AddressException e) {
-            throw new AddressException();
-        } catch (MessagingException e) {
-            e.printStackTrace();
-
-            throw new MailException(e);
-
+            stmt.setString(3, configManager.getActivationCodeSubject());
+            stmt.setString(4, configManager.getRenewActivationCodeBody());
+
+            long started = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                // A new user has no SIP account yet, so it cannot be logged in
+                user = new User(rs.getString(1), "XXXXX", rs.getBoolean(2), false);
+            }
+            rs.close();
+            statementCatalog.recordExecution(SqlStatement.REGISTER, user != null ? 1 : 0, started);
         } catch (SQLException e) {
             // Catch Unique constratin violation
             if (e.getSQLState().equals("23505"))
                 throw new EmailAlreadyRegisteredException();
 
-            e.printStackTrace();
+            logger.error("Unable to register " + email, e);
             throw new SQLException(e);
         } finally {
+            close(stmt);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -269,142 +424,73 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
             }
         }
 
-        return getUser(email, false);
+        mailDispatcher.wakeUp();
+
+        return user;
     }
 
     @Override
     public void activate(User user) throws Exception {
+        if(!isValidEmailAddress(user.getEmail()))
+            throw new AddressException();
+
+        String email = user.getEmail().toLowerCase();
+        String sipUser = sipEncode(email);
+
         Connection connection = connectionManager.getConnection();
+        PreparedStatement stmt = null;
         try {
-            if(!isValidEmailAddress(user.getEmail()))
-                throw new AddressException();
-
-            User dbUser = getUser(user.getEmail(), false);
+            Integer directoryDomainId = getDirectoryDomainId(connection);
+            Integer dialplanContextId = getDialplanContextId(connection);
 
-            if(dbUser == null)
+            stmt = statementCatalog.prepare(connection, SqlStatement.ACTIVATE);
+            stmt.clearParameters();
+            stmt.setString(1, user.getActivationCode());
+            stmt.setString(2, email);
+            stmt.setString(3, user.getActivationCode());
+            stmt.setString(4, sipUser);
+            setNullableInt(stmt, 5, directoryDomainId);
+            stmt.setString(6, configManager.getSipContext());
+            stmt.setString(7, email);
+            stmt.setString(8, user.getActivationCode());
+            stmt.setString(9, SIP_DIAL_STRING);
+            setNullableInt(stmt, 10, dialplanContextId);
+            stmt.setString(11, email);
+            stmt.setString(12, "^" + email.replace("@", "%40") + "$");
+            stmt.setString(13, "user/" + sipUser + "@" + configManager.getSipDomain());
+
+            long started = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            boolean found = rs.next();
+            statementCatalog.recordExecution(SqlStatement.ACTIVATE, found ? 1 : 0, started);
+            if (!found)
                 throw new UserNotFoundException();
 
-            // User is already activated, update the SIP password
-            if(dbUser.getIsActivated()) {
+            boolean wasActivated = rs.getBoolean(1);
+            int activatedRows = rs.getInt(2);
+            int passwordRows = rs.getInt(3);
 
-                PreparedStatement stmt = connection.prepareStatement("UPDATE directory_params SET param_value = ? WHERE directory_id = (SELECT id FROM directory WHERE ringring_user_id = (SELECT id FROM ringring_users WHERE activation_code = ? AND email = LOWER(?))) AND param_name = 'password'");
-                stmt.clearParameters();
-                stmt.setString(1, user.getActivationCode());
-                stmt.setString(2, user.getActivationCode());
-                stmt.setString(3, user.getEmail());
+            rs.close();
 
+            // User is already activated, the SIP password has been updated
+            if (wasActivated) {
                 // No updated rows; activation codes are not matching
-                if (stmt.executeUpdate() == 0) {
+                if (passwordRows == 0)
                     throw new InvalidActivationCodeException();
-                }
 
                 throw new UserAlreadyActivatedException("User is already activated. Data has been updated");
             }
 
-            // Update ringring_users_table
-            PreparedStatement stmt = connection.prepareStatement("UPDATE ringring_users SET is_activated = true WHERE email = LOWER(?) AND activation_code = ?");
-
-            stmt.clearParameters();
-            stmt.setString(1, user.getEmail());
-            stmt.setString(2, user.getActivationCode());
-
             // No updated rows; activation codes are not matching
-            if (stmt.executeUpdate() == 0) {
+            if (activatedRows == 0)
                 throw new InvalidActivationCodeException();
-            }
-
-            // Insert into directory table
-            stmt = connection.prepareStatement("INSERT INTO directory (ringring_user_id, username, domain, domain_id) VALUES ((SELECT id FROM ringring_users WHERE email = LOWER(?)), ?, '', (SELECT id FROM directory_domains WHERE domain_name = ?))");
-            stmt.clearParameters();
-            stmt.setString(1, user.getEmail().toLowerCase());
-            stmt.setString(2, sipEncode(user.getEmail().toLowerCase()));
-            stmt.setString(3, configManager.getSipDomain());
-
-            stmt.executeUpdate();
-
-            // Insert into directory_vars table (context)
-            stmt = connection.prepareStatement("INSERT INTO directory_vars (directory_id, var_name, var_value) VALUES ((SELECT id FROM directory WHERE username = ?), 'user_context', LOWER(?))");
-            stmt.clearParameters();
-            stmt.setString(1, sipEncode(user.getEmail().toLowerCase()));
-            stmt.setString(2, configManager.getSipContext());
-
-            stmt.executeUpdate();
-
-            // Insert into directory_vars table (internal_caller_id_name)
-            stmt = connection.prepareStatement("INSERT INTO directory_vars (directory_id, var_name, var_value) VALUES ((SELECT id FROM directory WHERE username = ?), 'internal_caller_id_name', LOWER(?))");
-            stmt.clearParameters();
-            stmt.setString(1, sipEncode(user.getEmail().toLowerCase()));
-            stmt.setString(2, user.getEmail().toLowerCase());
-
-            stmt.executeUpdate();
-
-            // Insert into directory_params table (password) */
-            stmt = connection.prepareStatement("INSERT INTO directory_params (directory_id, param_name, param_value) VALUES ((SELECT id FROM directory WHERE username = ?), 'password', ?)");
-            stmt.clearParameters();
-            stmt.setString(1, sipEncode(user.getEmail().toLowerCase()));
-            stmt.setString(2, user.getActivationCode());
-
-            stmt.executeUpdate();
-
-            // Insert into directory_params table (password) */
-            stmt = connection.prepareStatement("INSERT INTO directory_params (directory_id, param_name, param_value) VALUES ((SELECT id FROM directory WHERE username = ?), 'dial-string', '{presence_id=${dialed_user}@${dialed_domain}}${sofia_contact(${dialed_user}@${dialed_domain})}')");
-            stmt.clearParameters();
-            stmt.setString(1, sipEncode(user.getEmail().toLowerCase()));
-
-            stmt.executeUpdate();
-
-            /* INSERT INTO dialplan_extension (Email based unique extension) */
-            stmt = connection.prepareStatement("INSERT INTO dialplan_extension (context_id, name, continue, weight) VALUES ((SELECT context_id FROM dialplan_context WHERE context = ?), LOWER(?), '', 0)");
-            stmt.clearParameters();
-            stmt.setString(1, configManager.getSipContext());
-            stmt.setString(2, user.getEmail().toLowerCase());
-
-            stmt.executeUpdate();
-
-            /* INSERT INTO dialplan_condition (Regexp match to bridge extensions) */
-            stmt = connection.prepareStatement("INSERT INTO dialplan_condition (extension_id, field, expression, weight) VALUES ((SELECT extension_id FROM dialplan_extension WHERE name = LOWER(?)), 'destination_number', CONCAT(CONCAT('^', REPLACE(LOWER(?), '@', '%40')), '$'), 10)");
-            stmt.clearParameters();
-            stmt.setString(1, user.getEmail().toLowerCase());
-            stmt.setString(2, user.getEmail().toLowerCase());
-
-            stmt.executeUpdate();
-
-            /* INSERT INTO dialplan_action (call_timeout) */
-            stmt = connection.prepareStatement("INSERT INTO dialplan_actions (condition_id, application, data, type, weight) VALUES ((SELECT condition_id FROM dialplan_condition WHERE extension_id = (SELECT extension_id FROM dialplan_extension WHERE name = LOWER(?))), 'set', 'call_timeout=30', 'action', 10)");
-            stmt.clearParameters();
-            stmt.setString(1, user.getEmail().toLowerCase());
-
-            stmt.executeUpdate();
 
-             /* INSERT INTO dialplan_action (bridge) */
-            stmt = connection.prepareStatement("INSERT INTO dialplan_actions (condition_id, application, data, type, weight) VALUES ((SELECT condition_id FROM dialplan_condition WHERE extension_id = (SELECT extension_id FROM dialplan_extension WHERE name = LOWER(?))), 'bridge', CONCAT(CONCAT(CONCAT('user/', ?),'@'), ?), 'action', 20)");
-            stmt.clearParameters();
-            stmt.setString(1, user.getEmail().toLowerCase());
-            stmt.setString(2, sipEncode(user.getEmail().toLowerCase()));
-            stmt.setString(3, configManager.getSipDomain());
-
-            stmt.executeUpdate();
-
-             /* INSERT INTO dialplan_action (hangup) */
-            stmt = connection.prepareStatement("INSERT INTO dialplan_actions (condition_id, application, data, type, weight) VALUES ((SELECT condition_id FROM dialplan_condition WHERE extension_id = (SELECT extension_id FROM dialplan_extension WHERE name = LOWER(?))), 'hangup', '', 'action', 30)");
-            stmt.clearParameters();
-            stmt.setString(1, user.getEmail().toLowerCase());
-
-            stmt.executeUpdate();
-
-        } catch (AddressException e) {
-            throw new AddressException();
-        } catch (UserNotFoundException e) {
-            throw new UserNotFoundException();
-        } catch (InvalidActivationCodeException e) {
-            throw new InvalidActivationCodeException();
-        } catch (UserAlreadyActivatedException e) {
-            throw new UserAlreadyActivatedException();
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to activate " + email, e);
 
             throw new SQLException(e);
         } finally {
+            close(stmt);
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -415,49 +501,55 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
 
     @Override
     public void renewActivationCode(String email) throws Exception {
+        if(!isValidEmailAddress(email))
+            throw new AddressException();
+
+        int updatedRows = 0;
+
         Connection connection = connectionManager.getConnection();
+        PreparedStatement stmt = null;
         try {
-            if(!isValidEmailAddress(email))
-                throw new AddressException();
-
-            PreparedStatement stmt = connection.prepareStatement("UPDATE ringring_users SET activation_code = SUBSTRING(MD5(RANDOM()::TEXT) FROM 1 FOR ?) WHERE email = LOWER(?)");
+            stmt = statementCatalog.prepare(connection, SqlStatement.RENEW_ACTIVATION_CODE);
             stmt.clearParameters();
             stmt.setInt(1, configManager.getActivationCodeLength());
             stmt.setString(2, email.toLowerCase());
+            stmt.setString(3, configManager.getRenewActivationCodeSubject());
+            stmt.setString(4, configManager.getRenewActivationCodeBody());
 
-            stmt.executeUpdate();
-
-            // Email the new activation code
-            String activationCode = getActivationCode(email.toLowerCase());
-
-            String body = configManager.getRenewActivationCodeBody().replace("_ACTIVATION_CODE_", activationCode);
-
-            sendMail(email.toLowerCase(), configManager.getRenewActivationCodeSubject(), body);
-
-        } catch (AddressException e) {
-            throw new AddressException();
-        } catch (MessagingException e) {
-            e.printStackTrace();
-
-            throw new MailException(e);
+            long started = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                updatedRows = rs.getInt(1);
+            }
+            rs.close();
+            statementCatalog.recordExecution(SqlStatement.RENEW_ACTIVATION_CODE, updatedRows, started);
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to renew the activation code of " + email, e);
 
             throw new SQLException(e);
         } finally {
+            close(stmt);
             try {
                 connection.close();
             } catch (SQLException e) {
                 throw new RuntimeException();
             }
         }
+
+        if (updatedRows == 0)
+            throw new UserNotFoundException();
+
+        mailDispatcher.wakeUp();
     }
 
     @Override
     public void invite(String fromEmail, String toEmail) throws Exception {
-        int minutesSinceLastInviteSent = 0;
+        InvitationLimiter.Permit permit = null;
+        boolean inTransaction = false;
+        boolean committed = false;
 
         Connection connection = connectionManager.getConnection();
+        PreparedStatement stmt = null;
         try {
             if(!isValidEmailAddress(fromEmail) || !isValidEmailAddress(toEmail))
                 throw new AddressException();
@@ -468,31 +560,36 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
             if(getUser(toEmail, false) != null)
                 throw new EmailAlreadyRegisteredException();
 
-            // Select when the last invite sent to this email
-            PreparedStatement query = connection.prepareStatement("SELECT COALESCE(EXTRACT(MINUTE FROM (CURRENT_TIMESTAMP - MAX(created_at))),-1) FROM ringring_invites WHERE invite_to = LOWER(?)");
-            query.clearParameters();
-            query.setString(1, toEmail);
+            // Checked in memory, the invite is taken back if it is not stored
+            permit = invitationLimiter.acquire(fromEmail, toEmail);
 
-            ResultSet rs = query.executeQuery();
-            while(rs.next()) {
-                minutesSinceLastInviteSent = rs.getInt(1);
-            }
-
-            if(minutesSinceLastInviteSent != -1 && minutesSinceLastInviteSent < configManager.getInvitationLimit())
-                throw new InvitationLimitNotExceededException();
+            // The invite and its mail are written in one transaction, the mail dispatcher sends the mail
+            connection.setAutoCommit(false);
+            inTransaction = true;
 
-            // Insert into directory table
-            PreparedStatement stmt = connection.prepareStatement("INSERT INTO ringring_invites (invite_from, invite_to) VALUES (LOWER(?), LOWER(?))");
+            stmt = statementCatalog.prepare(connection, SqlStatement.INSERT_INVITE);
             stmt.clearParameters();
             stmt.setString(1, fromEmail.toLowerCase());
             stmt.setString(2, toEmail.toLowerCase());
 
-            stmt.executeUpdate();
+            long started = System.nanoTime();
+            int rows = stmt.executeUpdate();
+            statementCatalog.recordExecution(SqlStatement.INSERT_INVITE, rows, started);
+            stmt.close();
 
-            // Invitation email
             String body = configManager.getInvitationBody().replace("_INVITE_FROM_", fromEmail.toLowerCase());
-            sendMail(toEmail.toLowerCase(), configManager.getInvitationSubject(), body);
+            stmt = statementCatalog.prepare(connection, SqlStatement.INSERT_MAIL);
+            stmt.clearParameters();
+            stmt.setString(1, toEmail.toLowerCase());
+            stmt.setString(2, configManager.getInvitationSubject());
+            stmt.setString(3, body);
 
+            started = System.nanoTime();
+            rows = stmt.executeUpdate();
+            statementCatalog.recordExecution(SqlStatement.INSERT_MAIL, rows, started);
+
+            connection.commit();
+            committed = true;
         } catch (AddressException e) {
             throw new AddressException();
         } catch (UserNotFoundException e) {
@@ -502,15 +599,63 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
         } catch (InvitationLimitNotExceededException e) {
             throw new InvitationLimitNotExceededException();
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Unable to invite " + toEmail + " from " + fromEmail, e);
 
             throw new SQLException(e);
         } finally {
-            try {
-                connection.close();
-            } catch (SQLException e) {
-                throw new RuntimeException();
+            close(stmt);
+            // Whatever cut the transaction short, release() must not commit the invite without its mail
+            if (inTransaction && !committed) rollback(connection);
+            if (permit != null && !committed) permit.release();
+            release(connection);
+        }
+
+        mailDispatcher.wakeUp();
+    }
+
+    // The SIP domain and dialplan context never change while the server runs, so their ids are looked up once
+    private Integer getDirectoryDomainId(Connection connection) throws SQLException {
+        if (directoryDomainId == null) {
+            directoryDomainId = selectId(connection, SqlStatement.GET_DIRECTORY_DOMAIN_ID, configManager.getSipDomain());
+        }
+
+        return directoryDomainId;
+    }
+
+    private Integer getDialplanContextId(Connection connection) throws SQLException {
+        if (dialplanContextId == null) {
+            dialplanContextId = selectId(connection, SqlStatement.GET_DIALPLAN_CONTEXT_ID, configManager.getSipContext());
+        }
+
+        return dialplanContextId;
+    }
+
+    private Integer selectId(Connection connection, SqlStatement statement, String name) throws SQLException {
+        Integer id = null;
+
+        PreparedStatement query = statementCatalog.prepare(connection, statement);
+        try {
+            query.setString(1, name);
+
+            long started = System.nanoTime();
+            ResultSet rs = query.executeQuery();
+            if (rs.next()) {
+                id = rs.getInt(1);
             }
+            rs.close();
+            statementCatalog.recordExecution(statement, id != null ? 1 : 0, started);
+        } finally {
+            close(query);
+        }
+
+        return id;
+    }
+
+    private static void setNullableInt(PreparedStatement stmt, int index, Integer value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(index, Types.INTEGER);
+        } else {
+            stmt.setInt(index, value);
         }
     }
 
@@ -537,28 +682,41 @@ public class PlainSqlUserRepositoryImpl implements UserRepository {
                 tokens[1].length() > 0);
     }
 
-    private String sipEncode(String email) {
+    public static String sipEncode(String email) {
         return email.replaceAll("@", "_AT_");
     }
 
-    private void sendMail(String to, String subject, String body) throws Exception {
-
-        // Set mail session
-        Session session = Session.getInstance(configManager.getProperties(),
-                new javax.mail.Authenticator() {
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(configManager.getSmtpUser(), configManager.getSmtpPassword());
-                    }
-                });
-
-        // Setup message properties
-        Message message = new MimeMessage(session);
-        message.setFrom(new InternetAddress(configManager.getSmtpFrom()));
-        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to));
-        message.setSubject(subject);
-        message.setText(body);
-
-        // Send
-        Transport.send(message);
+    // Emails are lower case, an upper case _AT_ can only come from sipEncode
+    public static String sipDecode(String sipUser) {
+        return sipUser.replaceAll("_AT_", "@");
+    }
+
+    // Closing a statement closes its result sets as well
+    private static void close(Statement stmt) {
+        if (stmt == null) return;
+
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            logger.warn("Unable to close statement", e);
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.warn("Unable to roll back", e);
+        }
+    }
+
+    // Connections go back to the pool in auto-commit mode
+    private static void release(Connection connection) {
+        try {
+            connection.setAutoCommit(true);
+            connection.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
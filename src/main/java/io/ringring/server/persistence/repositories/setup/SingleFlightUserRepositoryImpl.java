@@ -0,0 +1,285 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.User;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.metrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent lookups of the same user share one query of {@link MicroBatchingUserRepositoryImpl}.
+ *
+ * The first caller of an email runs the query, callers arriving while it runs wait for its result
+ * instead of running the same query again. getUsers only queries the emails nobody else is loading.
+ * A caller waits at most singleflight.user.maxwait milliseconds and then queries on its own. Writes
+ * forget the running lookups of the user, so later callers do not receive what was read before.
+ */
+@Singleton
+public class SingleFlightUserRepositoryImpl extends ForwardingUserRepository {
+
+    private final boolean enabled;
+    private final long maxWaitNanos;
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    private final AtomicLong flightCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final Histogram savedCallsHistogram = new Histogram();
+
+    @Inject
+    public SingleFlightUserRepositoryImpl(MicroBatchingUserRepositoryImpl delegate, ConfigManager configManager) {
+        super(delegate);
+
+        this.enabled = configManager.getUserSingleFlightEnabled();
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getUserSingleFlightMaxWait());
+    }
+
+    // Queries run by a first caller
+    public long getFlightCount() { return flightCount.get(); }
+
+    // Callers served by the query of another caller
+    public long getCoalescedCount() { return coalescedCount.get(); }
+
+    // Callers that gave up waiting and queried on their own
+    public long getTimeoutCount() { return timeoutCount.get(); }
+
+    // Callers served per query
+    public Histogram getSavedCallsHistogram() { return savedCallsHistogram; }
+
+    @Override
+    public User getUser(String email, boolean onlyActivatedUsers) throws Exception {
+        if (!enabled || email == null) {
+            return delegate.getUser(email, onlyActivatedUsers);
+        }
+
+        String key = keyOf(email.toLowerCase(), onlyActivatedUsers);
+        Flight flight = flights.get(key);
+        if (flight == null) {
+            Flight created = new Flight();
+            flight = flights.putIfAbsent(key, created);
+
+            if (flight == null) {
+                flightCount.incrementAndGet();
+                try {
+                    User user = delegate.getUser(email, onlyActivatedUsers);
+                    created.complete(user);
+                    return user;
+                } catch (Exception e) {
+                    created.fail(e);
+                    throw e;
+                } finally {
+                    land(key, created);
+                }
+            }
+        }
+
+        if (flight.await(maxWaitNanos)) {
+            coalescedCount.incrementAndGet();
+            return copyOf(flight.result());
+        }
+
+        timeoutCount.incrementAndGet();
+        return delegate.getUser(email, onlyActivatedUsers);
+    }
+
+    @Override
+    public List<User> getUsers(List<String> emailList, boolean onlyActivatedUsers) throws Exception {
+        if (!enabled) {
+            return delegate.getUsers(emailList, onlyActivatedUsers);
+        }
+
+        // Emails this call loads and emails another call is already loading
+        Map<String, Flight> ownFlights = new LinkedHashMap<String, Flight>();
+        Map<String, Flight> otherFlights = new LinkedHashMap<String, Flight>();
+
+        for (String email : emailList) {
+            if (email == null) continue;
+
+            String normalized = email.trim().toLowerCase();
+            if (ownFlights.containsKey(normalized) || otherFlights.containsKey(normalized)) continue;
+
+            String key = keyOf(normalized, onlyActivatedUsers);
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight created = new Flight();
+                flight = flights.putIfAbsent(key, created);
+
+                if (flight == null) {
+                    ownFlights.put(normalized, created);
+                    continue;
+                }
+            }
+            otherFlights.put(normalized, flight);
+        }
+
+        List<User> userList = new ArrayList<User>();
+
+        if (ownFlights.size() > 0) {
+            flightCount.incrementAndGet();
+            try {
+                Map<String, User> loadedUsers = new HashMap<String, User>();
+                for (User user : delegate.getUsers(new ArrayList<String>(ownFlights.keySet()), onlyActivatedUsers)) {
+                    loadedUsers.put(user.getEmail(), user);
+                    userList.add(user);
+                }
+
+                for (Map.Entry<String, Flight> entry : ownFlights.entrySet()) {
+                    entry.getValue().complete(loadedUsers.get(entry.getKey()));
+                }
+            } catch (Exception e) {
+                for (Flight flight : ownFlights.values()) {
+                    flight.fail(e);
+                }
+                throw e;
+            } finally {
+                for (Map.Entry<String, Flight> entry : ownFlights.entrySet()) {
+                    land(keyOf(entry.getKey(), onlyActivatedUsers), entry.getValue());
+                }
+            }
+        }
+
+        // One deadline for all flights, the call should not wait longer than a single lookup
+        List<String> missingEmails = new ArrayList<String>();
+        long deadline = System.nanoTime() + maxWaitNanos;
+
+        for (Map.Entry<String, Flight> entry : otherFlights.entrySet()) {
+            Flight flight = entry.getValue();
+            if (flight.await(deadline - System.nanoTime())) {
+                coalescedCount.incrementAndGet();
+
+                User user = flight.result();
+                if (user != null) userList.add(copyOf(user));
+            } else {
+                timeoutCount.incrementAndGet();
+                missingEmails.add(entry.getKey());
+            }
+        }
+
+        if (missingEmails.size() > 0) {
+            userList.addAll(delegate.getUsers(missingEmails, onlyActivatedUsers));
+        }
+
+        return userList;
+    }
+
+    @Override
+    public void update(User user) {
+        try {
+            delegate.update(user);
+        } finally {
+            forget(user.getEmail());
+        }
+    }
+
+    @Override
+    public void dropUsers() {
+        try {
+            delegate.dropUsers();
+        } finally {
+            flights.clear();
+        }
+    }
+
+    @Override
+    public User register(String email) throws Exception {
+        try {
+            return delegate.register(email);
+        } finally {
+            forget(email);
+        }
+    }
+
+    @Override
+    public void activate(User user) throws Exception {
+        try {
+            delegate.activate(user);
+        } finally {
+            forget(user.getEmail());
+        }
+    }
+
+    @Override
+    public void renewActivationCode(String email) throws Exception {
+        try {
+            delegate.renewActivationCode(email);
+        } finally {
+            forget(email);
+        }
+    }
+
+    // Ends the flight of the first caller, a flight neither completed nor failed was cut short by an Error
+    private void land(String key, Flight flight) {
+        flights.remove(key, flight);
+
+        if (!flight.isDone()) {
+            flight.fail(new IllegalStateException("The lookup of the first caller failed"));
+        }
+        savedCallsHistogram.record(flight.waiters.get());
+    }
+
+    private void forget(String email) {
+        if (email == null) return;
+
+        String normalized = email.trim().toLowerCase();
+        flights.remove(keyOf(normalized, false));
+        flights.remove(keyOf(normalized, true));
+    }
+
+    private static String keyOf(String email, boolean onlyActivatedUsers) {
+        return (onlyActivatedUsers ? "a:" : "u:") + email;
+    }
+
+    // Every caller gets its own instance, the layers above may change it
+    private static User copyOf(User user) {
+        if (user == null) return null;
+
+        return new User(user.getEmail(), user.getActivationCode(), user.getIsActivated(), user.getIsLoggedIn());
+    }
+
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        private volatile User user;
+        private volatile Exception exception;
+
+        void complete(User user) {
+            this.user = user;
+            done.countDown();
+        }
+
+        void fail(Exception exception) {
+            this.exception = exception;
+            done.countDown();
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        boolean await(long timeoutNanos) throws InterruptedException {
+            waiters.incrementAndGet();
+            if (done.await(Math.max(timeoutNanos, 0), TimeUnit.NANOSECONDS)) return true;
+
+            waiters.decrementAndGet();
+            return false;
+        }
+
+        User result() throws Exception {
+            if (exception != null) throw exception;
+            return user;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package io.ringring.server.persistence.repositories.setup.guice;
 
 import com.google.inject.AbstractModule;
+import io.ringring.server.mail.setup.guice.MailModule;
 import io.ringring.server.persistence.repositories.UserRepository;
-import io.ringring.server.persistence.repositories.setup.PlainSqlUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.EventRecordingUserRepositoryImpl;
 import io.ringring.server.persistence.setup.guice.PersistenceModule;
+import io.ringring.server.presence.setup.guice.PresenceModule;
 
 /**
  * Created by kosztope on 12/02/14.
@@ -12,7 +14,9 @@ public class UserRepositoryModule extends AbstractModule {
 
     @Override
     protected void configure() {
-        bind(UserRepository.class).to(PlainSqlUserRepositoryImpl.class);
+        bind(UserRepository.class).to(EventRecordingUserRepositoryImpl.class);
         install(new PersistenceModule());
+        install(new PresenceModule());
+        install(new MailModule());
     }
 }
@@ -0,0 +1,90 @@
+package io.ringring.server.persistence.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.jolbox.bonecp.StatementHandle;
+import io.ringring.server.metrics.EventRecorder;
+import io.ringring.server.metrics.Histogram;
+import io.ringring.server.metrics.ServerTiming;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Prepares catalog statements through the statement cache of the pool.
+ *
+ * The pool keeps the prepared statements of every connection, so a statement is parsed by the database
+ * once per connection and reused afterwards. A statement counts as parsed when the pool hands out a
+ * driver statement that has not been seen before.
+ */
+@Singleton
+public class CountingStatementCatalogImpl implements StatementCatalog {
+
+    private final AtomicLongArray prepareCounts = new AtomicLongArray(SqlStatement.values().length);
+    private final AtomicLongArray parseCounts = new AtomicLongArray(SqlStatement.values().length);
+    private final EventRecorder eventRecorder;
+
+    private final Histogram[] executionHistograms = new Histogram[SqlStatement.values().length];
+
+    // Driver statements handed out so far, weakly held so the pool can drop them
+    private final Map<Object, Boolean> knownStatements = Collections.synchronizedMap(new WeakHashMap<Object, Boolean>());
+
+    @Inject
+    public CountingStatementCatalogImpl(EventRecorder eventRecorder) {
+        this.eventRecorder = eventRecorder;
+
+        for (int i = 0; i < executionHistograms.length; i++) {
+            executionHistograms[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public PreparedStatement prepare(Connection connection, SqlStatement statement) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(statement.getSql());
+        prepareCounts.incrementAndGet(statement.ordinal());
+
+        Object driverStatement = driverStatementOf(stmt);
+        if (driverStatement == null || knownStatements.put(driverStatement, Boolean.TRUE) == null) {
+            parseCounts.incrementAndGet(statement.ordinal());
+        }
+
+        return stmt;
+    }
+
+    @Override
+    public long getPrepareCount(SqlStatement statement) { return prepareCounts.get(statement.ordinal()); }
+
+    @Override
+    public long getParseCount(SqlStatement statement) { return parseCounts.get(statement.ordinal()); }
+
+    @Override
+    public void recordExecution(SqlStatement statement, int rows, long startNanos) {
+        executionHistograms[statement.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        ServerTiming.record(statement, startNanos);
+        eventRecorder.sqlExecution(statement, rows, startNanos);
+    }
+
+    @Override
+    public Histogram getExecutionHistogram(SqlStatement statement) { return executionHistograms[statement.ordinal()]; }
+
+    // The statement of the pool may be wrapped by the diagnostic layers
+    private static Object driverStatementOf(PreparedStatement stmt) {
+        if (stmt instanceof StatementHandle) {
+            return ((StatementHandle) stmt).getInternalStatement();
+        }
+
+        try {
+            return stmt.isWrapperFor(StatementHandle.class) ? stmt.unwrap(StatementHandle.class).getInternalStatement() : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+}
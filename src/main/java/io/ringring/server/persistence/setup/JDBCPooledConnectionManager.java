@@ -2,13 +2,27 @@ package io.ringring.server.persistence.setup;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.jolbox.bonecp.BoneCP;
 import com.jolbox.bonecp.BoneCPConfig;
+import com.jolbox.bonecp.ConnectionHandle;
+import com.jolbox.bonecp.hooks.AbstractConnectionHook;
 import io.ringring.server.config.ConfigManager;
+import io.ringring.core.Status;
+import io.ringring.server.metrics.EventRecorder;
+import io.ringring.server.metrics.Histogram;
+import io.ringring.server.metrics.ServerTiming;
 import io.ringring.server.persistence.ConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Created by kosztope on 23/01/14.
@@ -16,29 +30,91 @@ import io.ringring.server.persistence.ConnectionManager;
 
 @Singleton
 public class JDBCPooledConnectionManager implements ConnectionManager {
+    private static final Logger logger = LoggerFactory.getLogger(JDBCPooledConnectionManager.class);
+
     private volatile BoneCP connectionPool;
+    // Set by stop(), late callers must not build a new pool
+    private boolean stopped;
     private final ConfigManager configManager;
+    private final EventRecorder eventRecorder;
+
+    private final Histogram acquireWaitHistogram = new Histogram();
+    private final AtomicLong acquireTimeoutCount = new AtomicLong();
 
     @Inject
-    JDBCPooledConnectionManager(ConfigManager configManager) {
+    JDBCPooledConnectionManager(ConfigManager configManager, EventRecorder eventRecorder) {
         this.configManager = configManager;
+        this.eventRecorder = eventRecorder;
     }
 
     @Override
     public Connection getConnection() {
+        BoneCP pool = connectionPool;
+        if (pool == null)
+            pool = setUpConnectionPool();
 
+        long start = System.nanoTime();
         try {
-            if (connectionPool == null)
-                setUpConnectionPool();
+            Connection connection = pool.getConnection();
+            acquireWaitHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            ServerTiming.record(ServerTiming.Phase.ACQUIRE, start);
+            eventRecorder.connectionAcquire(Status.OKAY, start);
+
+            return connection;
+        } catch (SQLException e) {
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= configManager.getDatabasePoolAcquireTimeout())
+                acquireTimeoutCount.incrementAndGet();
+            eventRecorder.connectionAcquire(Status.INTERNAL_DATABASE_ERROR, start);
 
-            return connectionPool.getConnection();
-        } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Unable to get a connection from the pool", e);
             throw new RuntimeException("Unable to create new connection", e);
         }
     }
 
-    private void setUpConnectionPool() {
+    @Override
+    public void start() {
+        synchronized (this) {
+            stopped = false;
+        }
+        setUpConnectionPool();
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopped = true;
+        if (connectionPool != null) {
+            connectionPool.shutdown();
+            connectionPool = null;
+        }
+    }
+
+    @Override
+    public int getLeasedConnectionCount() {
+        BoneCP pool = connectionPool;
+
+        return pool == null ? 0 : pool.getTotalLeased();
+    }
+
+    @Override
+    public int getFreeConnectionCount() {
+        BoneCP pool = connectionPool;
+
+        return pool == null ? 0 : pool.getTotalFree();
+    }
+
+    @Override
+    public long getAcquireTimeoutCount() { return acquireTimeoutCount.get(); }
+
+    @Override
+    public Histogram getAcquireWaitHistogram() { return acquireWaitHistogram; }
+
+    // Only one pool is ever built, concurrent first callers wait for it
+    private synchronized BoneCP setUpConnectionPool() {
+        if (connectionPool != null)
+            return connectionPool;
+        if (stopped)
+            throw new IllegalStateException("The connection pool is stopped");
+
         try {
             Class.forName(configManager.getDatabaseDriver());
         } catch (ClassNotFoundException e) {
@@ -50,12 +126,90 @@ public class JDBCPooledConnectionManager implements ConnectionManager {
         config.setJdbcUrl(configManager.getDatabaseUrl());
         config.setUsername(configManager.getDatabaseUser());
         config.setPassword(configManager.getDatabasePassword());
-        config.setMaxConnectionsPerPartition(20);
 
+        // Cached statements reach the threshold quickly and are then only planned once on the server
+        Properties driverProperties = new Properties();
+        driverProperties.setProperty("user", configManager.getDatabaseUser());
+        driverProperties.setProperty("password", configManager.getDatabasePassword());
+        driverProperties.setProperty("prepareThreshold", String.valueOf(configManager.getDatabasePrepareThreshold()));
+        config.setDriverProperties(driverProperties);
+
+        config.setPartitionCount(configManager.getDatabasePoolPartitions());
+        config.setMinConnectionsPerPartition(configManager.getDatabasePoolMinConnections());
+        config.setMaxConnectionsPerPartition(configManager.getDatabasePoolMaxConnections());
+        config.setAcquireIncrement(configManager.getDatabasePoolAcquireIncrement());
+        config.setStatementsCacheSize(configManager.getDatabasePoolStatementCache());
+        config.setConnectionTimeoutInMs(configManager.getDatabasePoolAcquireTimeout());
+        config.setLazyInit(false);
+
+        // The pool statistics are exposed by this class
+        config.setDisableJMX(true);
+
+        if (eventRecorder.isEnabled()) {
+            config.setConnectionHook(new ReleaseEventHook(eventRecorder));
+        }
+
+        BoneCP pool;
         try {
-            connectionPool = new BoneCP(config);
+            pool = new BoneCP(config);
         } catch (SQLException e) {
             throw new RuntimeException("Unable to connect to datasource", e);
         }
+
+        warmUp(pool, configManager.getDatabasePoolPartitions() * configManager.getDatabasePoolMinConnections());
+
+        connectionPool = pool;
+        return pool;
+    }
+
+    // Runs a query on every minimum connection, so the first requests do not pay for it
+    private void warmUp(BoneCP pool, int connectionCount) {
+        long start = System.nanoTime();
+        List<Connection> connections = new ArrayList<Connection>();
+
+        try {
+            for (int i = 0; i < connectionCount; i++) {
+                Connection connection = pool.getConnection();
+                connections.add(connection);
+
+                Statement stmt = connection.createStatement();
+                stmt.execute("SELECT 1");
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            logger.warn("Unable to warm up the connection pool", e);
+        } finally {
+            for (Connection connection : connections) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.warn("Unable to release warm up connection", e);
+                }
+            }
+        }
+
+        logger.info("Connection pool warmed up with " + connections.size() + " connections in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    // Reports the connections going back to the pool, the check-out time is kept on the handle
+    private static class ReleaseEventHook extends AbstractConnectionHook {
+        private final EventRecorder eventRecorder;
+
+        ReleaseEventHook(EventRecorder eventRecorder) {
+            this.eventRecorder = eventRecorder;
+        }
+
+        @Override
+        public void onCheckOut(ConnectionHandle connection) {
+            connection.setDebugHandle(System.nanoTime());
+        }
+
+        @Override
+        public void onCheckIn(ConnectionHandle connection) {
+            Object checkedOut = connection.getDebugHandle();
+            if (checkedOut instanceof Long) {
+                eventRecorder.connectionRelease((Long) checkedOut);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,300 @@
+package io.ringring.server.persistence.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.metrics.Histogram;
+import io.ringring.server.persistence.ConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Diagnostic layer between the pool and the rest of the server that finds leaked JDBC resources.
+ *
+ * Every connection remembers where it was acquired and every statement and result set where it was
+ * created. When a connection is closed, its unclosed statements and result sets are logged with their
+ * allocation stack, counted and closed. The hold time of every connection is recorded per repository
+ * method, holds over db.tracking.longhold milliseconds are logged. In strict mode a leak makes
+ * close() throw an IllegalStateException, so the test suite fails on it.
+ *
+ * Switched off with db.tracking.enabled, connections are passed through untouched.
+ */
+@Singleton
+public class LeakTrackingConnectionManager implements ConnectionManager {
+    private static final Logger logger = LoggerFactory.getLogger(LeakTrackingConnectionManager.class);
+
+    private static final String OWN_PACKAGE = LeakTrackingConnectionManager.class.getPackage().getName() + ".";
+
+    private final ConnectionManager delegate;
+    private final boolean enabled;
+    private final boolean strict;
+    private final long longHoldNanos;
+
+    private final Set<TrackedConnection> openConnections = Collections.newSetFromMap(new ConcurrentHashMap<TrackedConnection, Boolean>());
+    private final ConcurrentHashMap<String, Histogram> holdTimes = new ConcurrentHashMap<String, Histogram>();
+
+    private final AtomicLong leakedStatementCount = new AtomicLong();
+    private final AtomicLong leakedResultSetCount = new AtomicLong();
+    private final AtomicLong longHoldCount = new AtomicLong();
+
+    @Inject
+    LeakTrackingConnectionManager(JDBCPooledConnectionManager delegate, ConfigManager configManager) {
+        this(delegate, configManager.getDatabaseTrackingEnabled(), configManager.getDatabaseTrackingStrict(), configManager.getDatabaseTrackingLongHold());
+    }
+
+    LeakTrackingConnectionManager(ConnectionManager delegate, boolean enabled, boolean strict, long longHold) {
+        this.delegate = delegate;
+        this.enabled = enabled;
+        this.strict = strict;
+        this.longHoldNanos = TimeUnit.MILLISECONDS.toNanos(longHold);
+    }
+
+    @Override
+    public Connection getConnection() {
+        if (!enabled) return delegate.getConnection();
+
+        Throwable allocation = new Throwable("Connection acquired");
+        TrackedConnection tracked = new TrackedConnection(delegate.getConnection(), allocation, ownerOf(allocation));
+        openConnections.add(tracked);
+
+        return (Connection) createProxy(Connection.class, tracked);
+    }
+
+    @Override
+    public void start() { delegate.start(); }
+
+    @Override
+    public void stop() {
+        for (TrackedConnection connection : openConnections) {
+            logger.warn("Connection acquired by " + connection.owner + " has not been closed", connection.allocation);
+        }
+
+        delegate.stop();
+    }
+
+    @Override
+    public int getLeasedConnectionCount() { return delegate.getLeasedConnectionCount(); }
+
+    @Override
+    public int getFreeConnectionCount() { return delegate.getFreeConnectionCount(); }
+
+    @Override
+    public long getAcquireTimeoutCount() { return delegate.getAcquireTimeoutCount(); }
+
+    @Override
+    public Histogram getAcquireWaitHistogram() { return delegate.getAcquireWaitHistogram(); }
+
+    public boolean isEnabled() { return enabled; }
+
+    // Connections handed out and not closed yet
+    public int getOpenConnectionCount() { return openConnections.size(); }
+
+    public long getLeakedStatementCount() { return leakedStatementCount.get(); }
+
+    public long getLeakedResultSetCount() { return leakedResultSetCount.get(); }
+
+    public long getLongHoldCount() { return longHoldCount.get(); }
+
+    // Time between acquiring and closing a connection by the method that acquired it, in microseconds
+    public Map<String, Histogram> getHoldTimeHistograms() {
+        return new HashMap<String, Histogram>(holdTimes);
+    }
+
+    // The first caller outside of the persistence layer, e.g. PlainSqlUserRepositoryImpl.invite
+    private static String ownerOf(Throwable allocation) {
+        for (StackTraceElement element : allocation.getStackTrace()) {
+            String className = element.getClassName();
+            if (className.startsWith("io.ringring.") && !className.startsWith(OWN_PACKAGE)) {
+                return className.substring(className.lastIndexOf('.') + 1) + "." + element.getMethodName();
+            }
+        }
+
+        return "unknown";
+    }
+
+    private Histogram holdTimeHistogram(String owner) {
+        Histogram histogram = holdTimes.get(owner);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = holdTimes.putIfAbsent(owner, created);
+            if (histogram == null) histogram = created;
+        }
+
+        return histogram;
+    }
+
+    private static Object createProxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // A connection is used by one thread at a time, its resources need no locking
+    private class TrackedConnection implements InvocationHandler {
+        private final Connection connection;
+        private final Throwable allocation;
+        private final String owner;
+        private final long acquiredAt = System.nanoTime();
+        private final Set<TrackedResource> openResources = new LinkedHashSet<TrackedResource>();
+        private Object proxy;
+        private boolean closed;
+
+        TrackedConnection(Connection connection, Throwable allocation, String owner) {
+            this.connection = connection;
+            this.allocation = allocation;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            this.proxy = proxy;
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                close();
+                return null;
+            }
+
+            Object result = LeakTrackingConnectionManager.invoke(connection, method, args);
+
+            if (result instanceof Statement && (name.equals("createStatement") || name.equals("prepareStatement") || name.equals("prepareCall"))) {
+                TrackedResource statement = new TrackedResource(this, null, result, "Statement created");
+                openResources.add(statement);
+                return createProxy(method.getReturnType(), statement);
+            }
+
+            return result;
+        }
+
+        private void close() throws SQLException {
+            if (closed) return;
+            closed = true;
+            openConnections.remove(this);
+
+            long holdNanos = System.nanoTime() - acquiredAt;
+            holdTimeHistogram(owner).record(TimeUnit.NANOSECONDS.toMicros(holdNanos));
+            if (holdNanos > longHoldNanos) {
+                longHoldCount.incrementAndGet();
+                logger.warn("Connection has been held for " + TimeUnit.NANOSECONDS.toMillis(holdNanos) + " ms by " + owner);
+            }
+
+            List<TrackedResource> leaks = new ArrayList<TrackedResource>(openResources);
+            for (TrackedResource leak : leaks) {
+                if (leak.parent == null) {
+                    leakedStatementCount.incrementAndGet();
+                } else {
+                    leakedResultSetCount.incrementAndGet();
+                }
+                logger.warn("Unclosed " + leak.kind() + " on connection of " + owner, leak.allocation);
+                leak.closeQuietly();
+            }
+
+            connection.close();
+
+            if (strict && !leaks.isEmpty()) {
+                throw new IllegalStateException(leaks.size() + " unclosed statements and result sets on connection of " + owner, leaks.get(0).allocation);
+            }
+        }
+    }
+
+    private static class TrackedResource implements InvocationHandler {
+        private final TrackedConnection connection;
+        private final TrackedResource parent;
+        private final Object resource;
+        private final Throwable allocation;
+        private final List<TrackedResource> children = new ArrayList<TrackedResource>();
+        private Object proxy;
+
+        TrackedResource(TrackedConnection connection, TrackedResource parent, Object resource, String allocation) {
+            this.connection = connection;
+            this.parent = parent;
+            this.resource = resource;
+            this.allocation = new Throwable(allocation);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            this.proxy = proxy;
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                closed();
+                return LeakTrackingConnectionManager.invoke(resource, method, args);
+            }
+            if (name.equals("getConnection") && connection.proxy != null) {
+                return connection.proxy;
+            }
+            if (name.equals("getStatement") && parent != null && parent.proxy != null) {
+                return parent.proxy;
+            }
+            if (name.equals("isWrapperFor") && ((Class<?>) args[0]).isInstance(resource)) {
+                return true;
+            }
+            if (name.equals("unwrap") && ((Class<?>) args[0]).isInstance(resource)) {
+                return resource;
+            }
+
+            Object result = LeakTrackingConnectionManager.invoke(resource, method, args);
+
+            if (result instanceof ResultSet && parent == null) {
+                TrackedResource resultSet = new TrackedResource(connection, this, result, "Result set created");
+                children.add(resultSet);
+                connection.openResources.add(resultSet);
+                return createProxy(ResultSet.class, resultSet);
+            }
+
+            return result;
+        }
+
+        private String kind() {
+            return parent == null ? "statement" : "result set";
+        }
+
+        // Closing a statement closes its result sets as well
+        private void closed() {
+            connection.openResources.remove(this);
+            for (TrackedResource child : children) {
+                connection.openResources.remove(child);
+            }
+            children.clear();
+        }
+
+        private void closeQuietly() {
+            closed();
+            try {
+                if (resource instanceof Statement) {
+                    ((Statement) resource).close();
+                } else {
+                    ((ResultSet) resource).close();
+                }
+            } catch (SQLException e) {
+                logger.debug("Unable to close leaked " + kind(), e);
+            }
+        }
+    }
+}
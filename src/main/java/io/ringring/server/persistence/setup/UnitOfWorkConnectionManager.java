@@ -0,0 +1,169 @@
+package io.ringring.server.persistence.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.server.metrics.Histogram;
+import io.ringring.server.persistence.ConnectionManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binds one pooled connection to the thread for the duration of a repository operation.
+ *
+ * The first getConnection() on a thread takes a connection from the pool, nested calls on the same
+ * thread get a handle to that connection instead of a second one. The connection goes back to the
+ * pool when the outermost handle is closed.
+ *
+ * A nested call that starts while the outer one has a transaction open joins that transaction: its
+ * setAutoCommit() and commit() are ignored and its rollback() marks the transaction rollback-only,
+ * so the outer commit() rolls back and fails.
+ */
+@Singleton
+public class UnitOfWorkConnectionManager implements ConnectionManager {
+
+    private final ConnectionManager delegate;
+    private final ThreadLocal<UnitOfWork> currentUnitOfWork = new ThreadLocal<UnitOfWork>();
+
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    @Inject
+    UnitOfWorkConnectionManager(LeakTrackingConnectionManager delegate) {
+        this((ConnectionManager) delegate);
+    }
+
+    UnitOfWorkConnectionManager(ConnectionManager delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Connection getConnection() {
+        UnitOfWork unitOfWork = currentUnitOfWork.get();
+
+        if (unitOfWork == null) {
+            unitOfWork = new UnitOfWork(delegate.getConnection());
+            currentUnitOfWork.set(unitOfWork);
+
+            return createHandle(new Handle(unitOfWork, true, false));
+        }
+
+        reusedCount.incrementAndGet();
+        try {
+            return createHandle(new Handle(unitOfWork, false, !unitOfWork.connection.getAutoCommit()));
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to join the unit of work", e);
+        }
+    }
+
+    public boolean isInUnitOfWork() {
+        return currentUnitOfWork.get() != null;
+    }
+
+    // Number of getConnection() calls served by the connection of an outer call
+    public long getReusedConnectionCount() { return reusedCount.get(); }
+
+    @Override
+    public void start() { delegate.start(); }
+
+    @Override
+    public void stop() { delegate.stop(); }
+
+    @Override
+    public int getLeasedConnectionCount() { return delegate.getLeasedConnectionCount(); }
+
+    @Override
+    public int getFreeConnectionCount() { return delegate.getFreeConnectionCount(); }
+
+    @Override
+    public long getAcquireTimeoutCount() { return delegate.getAcquireTimeoutCount(); }
+
+    @Override
+    public Histogram getAcquireWaitHistogram() { return delegate.getAcquireWaitHistogram(); }
+
+    private static Connection createHandle(Handle handle) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, handle);
+    }
+
+    private static class UnitOfWork {
+        private final Connection connection;
+        private boolean rollbackOnly;
+
+        UnitOfWork(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private class Handle implements InvocationHandler {
+        private final UnitOfWork unitOfWork;
+        private final boolean outer;
+        private final boolean joinedTransaction;
+        private boolean closed;
+
+        Handle(UnitOfWork unitOfWork, boolean outer, boolean joinedTransaction) {
+            this.unitOfWork = unitOfWork;
+            this.outer = outer;
+            this.joinedTransaction = joinedTransaction;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            Connection connection = unitOfWork.connection;
+            boolean noArgs = args == null || args.length == 0;
+
+            if (name.equals("close")) {
+                close();
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return closed || connection.isClosed();
+            }
+            if (closed) {
+                throw new SQLException("Connection handle has been closed");
+            }
+
+            if (joinedTransaction) {
+                if (name.equals("setAutoCommit") || (name.equals("commit") && noArgs)) {
+                    return null;
+                }
+                if (name.equals("rollback") && noArgs) {
+                    unitOfWork.rollbackOnly = true;
+                    return null;
+                }
+            } else if (outer && unitOfWork.rollbackOnly) {
+                if (name.equals("commit") && noArgs) {
+                    unitOfWork.rollbackOnly = false;
+                    connection.rollback();
+                    throw new SQLException("Transaction has been rolled back, a nested call marked it rollback-only");
+                }
+                if ((name.equals("rollback") && noArgs) || (name.equals("setAutoCommit") && Boolean.TRUE.equals(args[0]))) {
+                    // Switching auto-commit back on would commit the transaction
+                    unitOfWork.rollbackOnly = false;
+                    connection.rollback();
+                    if (name.equals("rollback")) return null;
+                }
+            }
+
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void close() throws SQLException {
+            if (closed) return;
+            closed = true;
+
+            if (outer) {
+                currentUnitOfWork.remove();
+                unitOfWork.connection.close();
+            }
+        }
+    }
+}
@@ -2,8 +2,11 @@ package io.ringring.server.persistence.setup.guice;
 
 import com.google.inject.AbstractModule;
 import io.ringring.server.config.setup.guice.ConfigManagerModule;
+import io.ringring.server.metrics.setup.guice.EventRecorderModule;
 import io.ringring.server.persistence.ConnectionManager;
-import io.ringring.server.persistence.setup.JDBCPooledConnectionManager;
+import io.ringring.server.persistence.StatementCatalog;
+import io.ringring.server.persistence.setup.CountingStatementCatalogImpl;
+import io.ringring.server.persistence.setup.UnitOfWorkConnectionManager;
 
 /**
  * Created by kosztope on 23/01/14.
@@ -12,7 +15,10 @@ public class PersistenceModule extends AbstractModule {
 
     @Override
     protected void configure() {
-        bind(ConnectionManager.class).to(JDBCPooledConnectionManager.class);
+        // Nested repository calls share the connection of the outer call
+        bind(ConnectionManager.class).to(UnitOfWorkConnectionManager.class);
+        bind(StatementCatalog.class).to(CountingStatementCatalogImpl.class);
         install(new ConfigManagerModule());
+        install(new EventRecorderModule());
     }
 }
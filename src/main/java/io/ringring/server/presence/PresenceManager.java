@@ -0,0 +1,29 @@
+package io.ringring.server.presence;
+
+import java.util.Set;
+
+/**
+ * In-memory view of the SIP users that are currently registered in FreeSWITCH.
+ */
+public interface PresenceManager {
+
+    void start();
+    void stop();
+
+    // True when the index has been refreshed within the configured staleness bound
+    boolean isFresh();
+    boolean isOnline(String sipUser);
+
+    // Local time of the last online or offline change of the SIP user, 0 if none was seen
+    long getLastChange(String sipUser);
+    // Local time since the changes are tracked, 0 before the first refresh
+    long getTrackingStart();
+    // SIP users that came online or went offline from (inclusive) to (exclusive), in local time
+    Set<String> getChanges(long from, long to);
+
+    int getOnlineCount();
+    long getRefreshLag();
+    long getLastRefreshDuration();
+    long getRefreshCount();
+    long getRefreshFailureCount();
+}
@@ -0,0 +1,295 @@
+package io.ringring.server.presence.setup;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
+import io.ringring.server.presence.PresenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the registered SIP users in memory by polling the FreeSWITCH registrations table.
+ *
+ * Every poll only reads the rows that expire no earlier than the newest expiry seen so far, which are the new
+ * and the refreshed registrations. Expiries are whole seconds and most clients ask for the same one, so rows
+ * sharing the newest expiry are read again, the merge keeps the latest expiry per user. Expired registrations
+ * drop out locally by their expiry. Unregistrations and registrations with a shorter expiry than the newest
+ * one are picked up by a periodic full refresh.
+ *
+ * The refreshes also note when a SIP user came online or went offline, for the changes feed. Going
+ * offline by expiry is not seen by a refresh, it is taken from the expiry itself.
+ */
+@Singleton
+public class PollingPresenceManagerImpl implements PresenceManager {
+    private static final Logger logger = LoggerFactory.getLogger(PollingPresenceManagerImpl.class);
+
+    private final ConnectionManager connectionManager;
+    private final StatementCatalog statementCatalog;
+
+    private final boolean enabled;
+    private final long refreshInterval;
+    private final long fullRefreshIntervalNanos;
+    private final long maxStalenessNanos;
+
+    // SIP user -> expiry of its newest registration, in database epoch seconds
+    private volatile ConcurrentHashMap<String, Long> registrations = new ConcurrentHashMap<String, Long>();
+    private volatile long newestExpires;
+    private volatile long databaseClockOffset;
+
+    // SIP user -> local time of its last online or offline change seen by a refresh, epoch millis
+    private final ConcurrentHashMap<String, Long> changes = new ConcurrentHashMap<String, Long>();
+    private volatile long trackingStart;
+
+    private volatile long lastRefreshAt;
+    private volatile long lastFullRefreshAt;
+    private volatile long lastRefreshDuration;
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshFailureCount = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public PollingPresenceManagerImpl(ConnectionManager connectionManager, StatementCatalog statementCatalog, ConfigManager configManager) {
+        this.connectionManager = connectionManager;
+        this.statementCatalog = statementCatalog;
+
+        this.enabled = configManager.getPresenceEnabled();
+        this.refreshInterval = configManager.getPresenceRefreshInterval();
+        this.fullRefreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getPresenceFullRefreshInterval());
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(configManager.getPresenceMaxStaleness());
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled || executor != null) return;
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "presence-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public boolean isFresh() {
+        long refreshedAt = lastRefreshAt;
+
+        return enabled && refreshedAt != 0 && System.nanoTime() - refreshedAt <= maxStalenessNanos;
+    }
+
+    @Override
+    public boolean isOnline(String sipUser) {
+        Long expires = registrations.get(sipUser);
+
+        return expires != null && expires > databaseEpoch();
+    }
+
+    @Override
+    public long getLastChange(String sipUser) {
+        Long changedAt = changes.get(sipUser);
+        long lastChange = changedAt != null ? changedAt : 0;
+
+        Long expires = registrations.get(sipUser);
+        if (expires != null && expires <= databaseEpoch()) {
+            lastChange = Math.max(lastChange, (expires - databaseClockOffset) * 1000);
+        }
+
+        return lastChange;
+    }
+
+    @Override
+    public long getTrackingStart() { return trackingStart; }
+
+    @Override
+    public Set<String> getChanges(long from, long to) {
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            if (change.getValue() >= from && change.getValue() < to) {
+                changed.add(change.getKey());
+            }
+        }
+
+        // Expired registrations went offline at their expiry
+        long now = databaseEpoch();
+        for (Map.Entry<String, Long> registration : registrations.entrySet()) {
+            long expires = registration.getValue();
+            long expiredAt = (expires - databaseClockOffset) * 1000;
+            if (expires <= now && expiredAt >= from && expiredAt < to) {
+                changed.add(registration.getKey());
+            }
+        }
+
+        return changed;
+    }
+
+    @Override
+    public int getOnlineCount() {
+        long now = databaseEpoch();
+
+        int count = 0;
+        for (Long expires : registrations.values()) {
+            if (expires > now) count++;
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getRefreshLag() {
+        long refreshedAt = lastRefreshAt;
+        if (refreshedAt == 0) return -1;
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - refreshedAt);
+    }
+
+    @Override
+    public long getLastRefreshDuration() { return lastRefreshDuration; }
+
+    @Override
+    public long getRefreshCount() { return refreshCount.get(); }
+
+    @Override
+    public long getRefreshFailureCount() { return refreshFailureCount.get(); }
+
+    void refresh() {
+        long start = System.nanoTime();
+        boolean fullRefresh = lastFullRefreshAt == 0 || start - lastFullRefreshAt >= fullRefreshIntervalNanos;
+
+        try {
+            Connection connection = connectionManager.getConnection();
+            try {
+                readDatabaseClock(connection);
+
+                if (fullRefresh) {
+                    ConcurrentHashMap<String, Long> newRegistrations = new ConcurrentHashMap<String, Long>();
+                    newestExpires = readRegistrations(connection, newRegistrations, Long.MIN_VALUE, false);
+                    if (trackingStart != 0) {
+                        recordChanges(registrations, newRegistrations);
+                    }
+                    registrations = newRegistrations;
+                    lastFullRefreshAt = start;
+                } else {
+                    newestExpires = Math.max(newestExpires, readRegistrations(connection, registrations, newestExpires, true));
+                }
+            } finally {
+                connection.close();
+            }
+
+            if (trackingStart == 0) {
+                trackingStart = System.currentTimeMillis();
+            }
+            lastRefreshAt = System.nanoTime();
+            lastRefreshDuration = TimeUnit.NANOSECONDS.toMillis(lastRefreshAt - start);
+            refreshCount.incrementAndGet();
+        } catch (Exception e) {
+            refreshFailureCount.incrementAndGet();
+            logger.warn("Unable to refresh presence from registrations", e);
+        }
+    }
+
+    // With trackChanges the target is the live index, users coming online are noted as they are read
+    private long readRegistrations(Connection connection, ConcurrentHashMap<String, Long> target, long expiresFrom, boolean trackChanges) throws SQLException {
+        long newest = expiresFrom;
+        long now = databaseEpoch();
+
+        PreparedStatement query = statementCatalog.prepare(connection, SqlStatement.GET_REGISTRATIONS);
+        query.setLong(1, expiresFrom);
+
+        long started = System.nanoTime();
+        ResultSet rs = query.executeQuery();
+        int rows = 0;
+        while (rs.next()) {
+            String sipUser = rs.getString(1);
+            long expires = rs.getLong(2);
+
+            Long known = target.get(sipUser);
+            if (known == null || known < expires) {
+                target.put(sipUser, expires);
+
+                if (trackChanges && (known == null || known <= now) && expires > now) {
+                    changes.put(sipUser, System.currentTimeMillis());
+                }
+            }
+            newest = Math.max(newest, expires);
+            rows++;
+        }
+        rs.close();
+        statementCatalog.recordExecution(SqlStatement.GET_REGISTRATIONS, rows, started);
+        query.close();
+
+        return newest;
+    }
+
+    // A full refresh also sees the unregistrations, compare who is online before and after
+    private void recordChanges(ConcurrentHashMap<String, Long> before, ConcurrentHashMap<String, Long> after) {
+        long now = databaseEpoch();
+        long changedAt = System.currentTimeMillis();
+
+        for (Map.Entry<String, Long> registration : after.entrySet()) {
+            Long known = before.get(registration.getKey());
+            if ((known != null && known > now) != registration.getValue() > now) {
+                changes.put(registration.getKey(), changedAt);
+            }
+        }
+        for (Map.Entry<String, Long> registration : before.entrySet()) {
+            if (registration.getValue() > now && !after.containsKey(registration.getKey())) {
+                changes.put(registration.getKey(), changedAt);
+            }
+        }
+    }
+
+    // Registration expiries are written with the database clock, keep the difference to the local one
+    private void readDatabaseClock(Connection connection) throws SQLException {
+        PreparedStatement query = statementCatalog.prepare(connection, SqlStatement.GET_DATABASE_TIME);
+
+        long started = System.nanoTime();
+        ResultSet rs = query.executeQuery();
+        int rows = 0;
+        if (rs.next()) {
+            databaseClockOffset = rs.getLong(1) - System.currentTimeMillis() / 1000;
+            rows++;
+        }
+        rs.close();
+        statementCatalog.recordExecution(SqlStatement.GET_DATABASE_TIME, rows, started);
+        query.close();
+    }
+
+    private long databaseEpoch() {
+        return System.currentTimeMillis() / 1000 + databaseClockOffset;
+    }
+}
@@ -0,0 +1,18 @@
+package io.ringring.server.presence.setup.guice;
+
+import com.google.inject.AbstractModule;
+import io.ringring.server.persistence.setup.guice.PersistenceModule;
+import io.ringring.server.presence.PresenceManager;
+import io.ringring.server.presence.setup.PollingPresenceManagerImpl;
+
+/**
+ * Binds the presence index.
+ */
+public class PresenceModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(PresenceManager.class).to(PollingPresenceManagerImpl.class);
+        install(new PersistenceModule());
+    }
+}
@@ -0,0 +1,189 @@
+package io.ringring.server.ratelimit;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock free limiter that allows at most maxEvents per key within a sliding time window.
+ *
+ * Every key holds the sorted timestamps of its events inside the window in an immutable array, which
+ * is replaced with compare-and-set. Keys without events inside the window are evicted every few
+ * thousand calls. Timestamps are monotonic milliseconds, see {@link #now()}.
+ */
+public class SlidingWindowRateLimiter<K> {
+    private static final int SWEEP_INTERVAL = 4096;
+
+    // Replaces the events of an evicted key, whoever sees it starts over with a new entry
+    private static final long[] EVICTED = new long[0];
+    private static final long[] NO_EVENTS = new long[0];
+
+    private final int maxEvents;
+    private final long windowMillis;
+
+    private final ConcurrentHashMap<K, AtomicReference<long[]>> events;
+    private final AtomicLong operationCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public SlidingWindowRateLimiter(int maxEvents, long window, TimeUnit unit) {
+        this.maxEvents = maxEvents;
+        this.windowMillis = unit.toMillis(window);
+        this.events = new ConcurrentHashMap<K, AtomicReference<long[]>>(1024, 0.75f, 64);
+    }
+
+    public static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Records an event for the key if the limit allows it.
+     *
+     * @return the timestamp of the recorded event to pass to {@link #release(Object, long)}, or -1 if the key is over its limit
+     */
+    public long tryAcquire(K key) {
+        sweepIfDue();
+
+        long now = now();
+        while (true) {
+            AtomicReference<long[]> ref = entryFor(key);
+            long[] current = ref.get();
+            if (current == EVICTED) continue;
+
+            long[] active = activeEvents(current, now);
+            if (active.length >= maxEvents) {
+                rejectedCount.incrementAndGet();
+                return -1;
+            }
+
+            long[] updated = Arrays.copyOf(active, active.length + 1);
+            updated[active.length] = now;
+            insertSorted(updated);
+
+            if (ref.compareAndSet(current, updated)) {
+                return now;
+            }
+        }
+    }
+
+    /**
+     * Takes back an event recorded by {@link #tryAcquire(Object)}, e.g. when the limited action failed.
+     */
+    public void release(K key, long timestamp) {
+        AtomicReference<long[]> ref = events.get(key);
+        if (ref == null) return;
+
+        while (true) {
+            long[] current = ref.get();
+            int index = indexOf(current, timestamp);
+            if (current == EVICTED || index < 0) return;
+
+            long[] updated = new long[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+
+            if (ref.compareAndSet(current, updated)) return;
+        }
+    }
+
+    /**
+     * Records an event that happened ageMillis ago regardless of the limit, used to restore the state at startup.
+     */
+    public void record(K key, long ageMillis) {
+        long timestamp = now() - ageMillis;
+
+        while (true) {
+            AtomicReference<long[]> ref = entryFor(key);
+            long[] current = ref.get();
+            if (current == EVICTED) continue;
+
+            long[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = timestamp;
+            insertSorted(updated);
+
+            if (ref.compareAndSet(current, updated)) return;
+        }
+    }
+
+    public void clear() {
+        Iterator<AtomicReference<long[]>> iterator = events.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().set(EVICTED);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes the keys without events inside the window.
+     */
+    public void evictIdleKeys() {
+        long now = now();
+
+        for (Map.Entry<K, AtomicReference<long[]>> entry : events.entrySet()) {
+            AtomicReference<long[]> ref = entry.getValue();
+            long[] current = ref.get();
+
+            if (current != EVICTED && activeEvents(current, now).length == 0 && ref.compareAndSet(current, EVICTED)) {
+                events.remove(entry.getKey(), ref);
+            }
+        }
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    public long getRejectedCount() { return rejectedCount.get(); }
+
+    private AtomicReference<long[]> entryFor(K key) {
+        AtomicReference<long[]> ref = events.get(key);
+
+        if (ref == null || ref.get() == EVICTED) {
+            AtomicReference<long[]> created = new AtomicReference<long[]>(NO_EVENTS);
+            if (ref == null) {
+                ref = events.putIfAbsent(key, created);
+            } else {
+                ref = events.replace(key, ref, created) ? null : events.putIfAbsent(key, created);
+            }
+            if (ref == null) ref = created;
+        }
+
+        return ref;
+    }
+
+    // Events are sorted, so the ones that left the window are a prefix
+    private long[] activeEvents(long[] current, long now) {
+        int first = 0;
+        while (first < current.length && current[first] <= now - windowMillis) {
+            first++;
+        }
+
+        return first == 0 ? current : Arrays.copyOfRange(current, first, current.length);
+    }
+
+    // Only the last element can be out of place
+    private static void insertSorted(long[] values) {
+        for (int i = values.length - 1; i > 0 && values[i] < values[i - 1]; i--) {
+            long value = values[i];
+            values[i] = values[i - 1];
+            values[i - 1] = value;
+        }
+    }
+
+    private static int indexOf(long[] values, long value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) return i;
+        }
+
+        return -1;
+    }
+
+    private void sweepIfDue() {
+        if (operationCount.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            evictIdleKeys();
+        }
+    }
+}
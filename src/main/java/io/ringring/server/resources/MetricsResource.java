@@ -0,0 +1,40 @@
+package io.ringring.server.resources;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import com.google.inject.Inject;
+
+import io.ringring.server.metrics.MetricsRegistry;
+
+/**
+ * Serves the metrics of the server to Prometheus.
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+    private final MetricsRegistry metricsRegistry;
+
+    @Inject
+    public MetricsResource(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @GET
+    @Produces("text/plain; version=0.0.4; charset=utf-8")
+    public StreamingOutput getMetrics() {
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                Writer writer = new OutputStreamWriter(output, "UTF-8");
+                metricsRegistry.write(writer);
+            }
+        };
+    }
+}
@@ -0,0 +1,58 @@
+package io.ringring.server.resources;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import org.codehaus.jackson.jaxrs.JacksonJsonProvider;
+
+import io.ringring.server.metrics.ServerTiming;
+
+/**
+ * Jackson JSON mapping that times the parsing and serialization of the entities of a timed request.
+ *
+ * The headers have to be set before the body is written, so the body of a timed response is
+ * serialized into a buffer first and the Server-Timing header is added in between.
+ */
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class TimedJsonProvider extends JacksonJsonProvider {
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return super.readFrom(type, genericType, annotations, mediaType, httpHeaders, entityStream);
+        } finally {
+            ServerTiming.record(ServerTiming.Phase.PARSE, started);
+        }
+    }
+
+    @Override
+    public void writeTo(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+        ServerTiming timing = ServerTiming.current();
+        if (timing == null) {
+            super.writeTo(value, type, genericType, annotations, mediaType, httpHeaders, entityStream);
+            return;
+        }
+
+        long started = System.nanoTime();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        super.writeTo(value, type, genericType, annotations, mediaType, httpHeaders, body);
+        ServerTiming.record(ServerTiming.Phase.SERIALIZE, started);
+
+        httpHeaders.putSingle("Server-Timing", timing.toHeader());
+        body.writeTo(entityStream);
+    }
+}
@@ -5,6 +5,7 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import com.google.inject.Inject;
@@ -12,9 +13,14 @@ import com.google.inject.Inject;
 import io.ringring.core.Status;
 import io.ringring.core.StatusResult;
 import io.ringring.core.User;
+import io.ringring.core.UserChangesResult;
 import io.ringring.core.UserResult;
 import io.ringring.core.UserListResult;
 import io.ringring.core.exceptions.*;
+import io.ringring.server.executor.Endpoint;
+import io.ringring.server.executor.EndpointExecutor;
+import io.ringring.server.metrics.MetricsRegistry;
+import io.ringring.server.persistence.repositories.UserChanges;
 import io.ringring.server.persistence.repositories.UserRepository;
 
 /**
@@ -25,16 +31,21 @@ import io.ringring.server.persistence.repositories.UserRepository;
 public class UserResource {
 
     private final UserRepository userRepository;
+    private final EndpointExecutor endpointExecutor;
+    private final MetricsRegistry metricsRegistry;
 
     @Inject
-    public UserResource(UserRepository userRepository) {
+    public UserResource(UserRepository userRepository, EndpointExecutor endpointExecutor, MetricsRegistry metricsRegistry) {
         this.userRepository = userRepository;
+        this.endpointExecutor = endpointExecutor;
+        this.metricsRegistry = metricsRegistry;
     }
 
     @GET
     @Path("{email}")
     @Produces(MediaType.APPLICATION_JSON)
     public UserResult getUser(@PathParam("email") String email) {
+        long started = System.nanoTime();
         User user = null;
         Status status = Status.OKAY;
 
@@ -43,9 +54,10 @@ public class UserResource {
         }
         catch (SQLException e) { status = Status.INTERNAL_DATABASE_ERROR; }
         catch (Exception e) { status = Status.INTERNAL_APPLICATION_ERROR; }
-        if (user == null) { status = Status.USER_NOT_FOUND; }
+        // A failed lookup keeps its status
+        if (user == null && status == Status.OKAY) { status = Status.USER_NOT_FOUND; }
 
-        return new UserResult(user, status);
+        return record(Endpoint.GET_USER, started, new UserResult(user, status));
     }
 
     @POST
@@ -53,6 +65,7 @@ public class UserResource {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     public UserListResult getUsers(HashMap<String, List<String>> requestHash) {
+        long started = System.nanoTime();
         List<User> users = null;
         Status status = Status.OKAY;
 
@@ -71,13 +84,52 @@ public class UserResource {
         catch (SQLException e) { status = Status.INTERNAL_DATABASE_ERROR; }
         catch (Exception e) { status = Status.INTERNAL_APPLICATION_ERROR; }
 
-        return new UserListResult(users, status);
+        return record(Endpoint.GET_USERS, started, new UserListResult(users, status));
+    }
+
+    @POST
+    @Path("/changes/")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public UserChangesResult getChanges(HashMap<String, Object> requestHash) {
+        long started = System.nanoTime();
+        UserChanges changes = null;
+        Status status = Status.OKAY;
+
+        try {
+            Object emailsValue = requestHash.get("emails");
+            Object cursorValue = requestHash.get("cursor");
+            if (!(emailsValue instanceof List) || (cursorValue != null && !(cursorValue instanceof String))) {
+                throw new BadRequestException();
+            }
+
+            List<String> emails = new ArrayList<String>();
+            for (Object email : (List<?>) emailsValue) {
+                if (email != null && !(email instanceof String)) {
+                    throw new BadRequestException();
+                }
+                emails.add((String) email);
+            }
+            String cursor = (String) cursorValue;
+
+            changes = userRepository.getChanges(emails, cursor);
+        }
+        catch (BadRequestException e) { status = Status.BAD_REQUEST; }
+        catch (SQLException e) { status = Status.INTERNAL_DATABASE_ERROR; }
+        catch (Exception e) { status = Status.INTERNAL_APPLICATION_ERROR; }
+
+        if (changes == null) {
+            return record(Endpoint.GET_CHANGES, started, new UserChangesResult(null, null, false, status));
+        }
+
+        return record(Endpoint.GET_CHANGES, started, new UserChangesResult(changes.getUsers(), changes.getCursor(), changes.hasMore(), status));
     }
 
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     public UserResult register(HashMap<String, String> requestHash) {
+        long started = System.nanoTime();
         User user = null;
         Status status = Status.OKAY;
 
@@ -96,7 +148,7 @@ public class UserResource {
         catch (SQLException e) { status = Status.INTERNAL_DATABASE_ERROR; }
         catch (Exception e) { status = Status.INTERNAL_APPLICATION_ERROR; }
 
-        return new UserResult(user, status);
+        return record(Endpoint.REGISTER, started, new UserResult(user, status));
     }
 
     @PUT
@@ -104,10 +156,11 @@ public class UserResource {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     public StatusResult activate(User user, @PathParam("email") String email) {
+        long started = System.nanoTime();
         Status status = Status.OKAY;
 
         if (!email.equals(user.getEmail())) {
-            return new StatusResult(Status.INVALID_EMAIL);
+            return record(Endpoint.ACTIVATE, started, new StatusResult(Status.INVALID_EMAIL));
         }
 
         try {
@@ -120,24 +173,26 @@ public class UserResource {
         catch (SQLException e) { status = Status.INTERNAL_DATABASE_ERROR; }
         catch (Exception e) { status = Status.INTERNAL_APPLICATION_ERROR; }
 
-        return new StatusResult(status);
+        return record(Endpoint.ACTIVATE, started, new StatusResult(status));
     }
 
     @GET
     @Path("/{email}/renewactivationcode")
     @Produces(MediaType.APPLICATION_JSON)
     public StatusResult renewActivationCode(@PathParam("email") String email) {
+        long started = System.nanoTime();
         Status status = Status.OKAY;
 
         try {
             userRepository.renewActivationCode(email);
         }
         catch (AddressException e) { status = Status.INVALID_EMAIL; }
+        catch (UserNotFoundException e) { status = Status.USER_NOT_FOUND; }
         catch (MailException e) { status = Status.INTERNAL_SMTP_ERROR; }
         catch (SQLException e) { status = Status.INTERNAL_DATABASE_ERROR; }
         catch (Exception e) { status = Status.INTERNAL_APPLICATION_ERROR; }
 
-        return new StatusResult(status);
+        return record(Endpoint.RENEW_ACTIVATION_CODE, started, new StatusResult(status));
     }
 
     @POST
@@ -145,6 +200,7 @@ public class UserResource {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     public StatusResult invite(HashMap<String, String> requestHash, @PathParam("email") String email) {
+        long started = System.nanoTime();
         Status status = Status.OKAY;
 
         try {
@@ -156,7 +212,7 @@ public class UserResource {
             }
 
             if (!toEmail.equals(email)) {
-                return new StatusResult(Status.INVALID_EMAIL);
+                return record(Endpoint.INVITE, started, new StatusResult(Status.INVALID_EMAIL));
             }
 
             userRepository.invite(fromEmail, toEmail);
@@ -169,6 +225,33 @@ public class UserResource {
         catch (SQLException e) { status = Status.INTERNAL_DATABASE_ERROR; }
         catch (Exception e) { status = Status.INTERNAL_APPLICATION_ERROR; }
 
-        return new StatusResult(status);
+        return record(Endpoint.INVITE, started, new StatusResult(status));
+    }
+
+    private UserResult record(Endpoint endpoint, long started, UserResult result) {
+        record(endpoint, started, result.getStatus());
+        return result;
+    }
+
+    private UserListResult record(Endpoint endpoint, long started, UserListResult result) {
+        record(endpoint, started, result.getStatus());
+        return result;
+    }
+
+    private UserChangesResult record(Endpoint endpoint, long started, UserChangesResult result) {
+        record(endpoint, started, result.getStatus());
+        return result;
+    }
+
+    private StatusResult record(Endpoint endpoint, long started, StatusResult result) {
+        record(endpoint, started, result.getStatus());
+        return result;
+    }
+
+    // A request that timed out has been answered and counted already
+    private void record(Endpoint endpoint, long started, Status status) {
+        if (endpointExecutor.complete()) {
+            metricsRegistry.recordRequest(endpoint, status, started);
+        }
     }
 }
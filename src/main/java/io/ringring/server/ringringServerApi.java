@@ -1,15 +1,17 @@
 package io.ringring.server;
 
 import com.google.inject.Inject;
+import com.google.inject.Injector;
 import io.ringring.server.config.ConfigManager;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
-import org.eclipse.jetty.server.ssl.SslSocketConnector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
 import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.google.inject.servlet.GuiceFilter;
 import com.google.inject.servlet.GuiceServletContextListener;
@@ -20,6 +22,7 @@ import io.ringring.server.servlet.GuiceConfig;
  */
 public class ringringServerApi {
     private Server server;
+    private ServletContextHandler sch;
     private final ConfigManager configManager;
 
     @Inject
@@ -31,10 +34,18 @@ public class ringringServerApi {
         // Create the server
         server = new Server();
 
-        // Create non-ssl connector
-        SocketConnector connector = new SocketConnector();
+        // Requests of all connectors are served by one bounded thread pool
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName("http");
+        threadPool.setMinThreads(configManager.getServerMinThreads());
+        threadPool.setMaxThreads(configManager.getServerMaxThreads());
+        server.setThreadPool(threadPool);
+
+        // Create non-ssl connector. Idle keep-alive connections wait in the selector, not on a thread
+        SelectChannelConnector connector = new SelectChannelConnector();
         connector.setHost(configManager.getServerHost());
         connector.setPort(configManager.getServerPort());
+        configureConnector(connector);
         Connector[] connectors = new Connector[] {connector};
 
         // Create ssl connector
@@ -43,9 +54,10 @@ public class ringringServerApi {
             sslContextFactory.setKeyStorePassword(configManager.getSslKeystorePassword());
             sslContextFactory.setKeyManagerPassword(configManager.getSslKeymanagerPassword());
 
-            SslSocketConnector sslConnector = new SslSocketConnector(sslContextFactory);
+            SslSelectChannelConnector sslConnector = new SslSelectChannelConnector(sslContextFactory);
             sslConnector.setHost(configManager.getServerHost());
             sslConnector.setPort(configManager.getSslPort());
+            configureConnector(sslConnector);
 
             connectors = new Connector[] {connector, sslConnector};
         }
@@ -54,14 +66,14 @@ public class ringringServerApi {
         server.setConnectors(connectors);
 
         // Create a servlet context and add the jersey servlet
-        ServletContextHandler sch = new ServletContextHandler(server, "/");
+        sch = new ServletContextHandler(server, "/");
 
         // Add our Guice listener that includes our bindings
         sch.addEventListener(setUpConfig());
 
         // Then add GuiceFilter and configure the server to
-        // reroute all requests through this filter.
-        sch.addFilter(GuiceFilter.class, "/*", null);
+        // reroute all requests through this filter. The event streams need asynchronous requests
+        sch.addFilter(GuiceFilter.class, "/*", null).setAsyncSupported(true);
 
         // Must add DefaultServlet for embedded Jetty.
         // Failing to do this will cause 404 errors.
@@ -77,6 +89,12 @@ public class ringringServerApi {
         return server;
     }
 
+    private void configureConnector(SelectChannelConnector connector) {
+        connector.setAcceptors(configManager.getServerAcceptors());
+        connector.setAcceptQueueSize(configManager.getServerAcceptQueueSize());
+        connector.setMaxIdleTime(configManager.getServerIdleTimeout());
+    }
+
     protected GuiceServletContextListener setUpConfig() {
         return new GuiceConfig();
     }
@@ -89,6 +107,11 @@ public class ringringServerApi {
         server.stop();
     }
 
+    // Injector of the running web application, it owns the singletons that serve the requests
+    public Injector getInjector() {
+        return (Injector) sch.getServletContext().getAttribute(Injector.class.getName());
+    }
+
     public String getUrl() {
         return "http://" + configManager.getServerHost() + ":" + configManager.getServerPort();
     }
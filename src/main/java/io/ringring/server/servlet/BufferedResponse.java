@@ -0,0 +1,216 @@
+package io.ringring.server.servlet;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the status, headers and body of a response in memory until {@link #writeTo(HttpServletResponse)}.
+ *
+ * Lets a request be answered by whoever finishes first, without the other one touching the response.
+ * Meant for the small JSON answers of the API, cookies and redirects are not kept.
+ */
+class BufferedResponse extends HttpServletResponseWrapper {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+    private int status = SC_OK;
+    private String errorMessage;
+    private boolean error;
+    private String contentType;
+    private String characterEncoding;
+
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    BufferedResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Copies the response over, the target must not be committed yet.
+     */
+    void writeTo(HttpServletResponse response) throws IOException {
+        if (writer != null) writer.flush();
+
+        if (error) {
+            response.sendError(status, errorMessage);
+            return;
+        }
+
+        response.setStatus(status);
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        if (contentType != null) response.setContentType(contentType);
+        if (characterEncoding != null) response.setCharacterEncoding(characterEncoding);
+
+        response.setContentLength(body.size());
+        body.writeTo(response.getOutputStream());
+    }
+
+    @Override
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int status, String message) {
+        this.status = status;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public void sendError(int status) {
+        sendError(status, null);
+    }
+
+    @Override
+    public void sendError(int status, String message) {
+        this.status = status;
+        this.errorMessage = message;
+        this.error = true;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (isContentLength(name)) return;
+
+        List<String> values = new ArrayList<String>();
+        values.add(value);
+        headers.put(name, values);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (isContentLength(name)) return;
+
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>();
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        setHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        addHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+
+        return values != null ? values.get(0) : null;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public void setCharacterEncoding(String characterEncoding) {
+        this.characterEncoding = characterEncoding;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding != null ? characterEncoding : "ISO-8859-1";
+    }
+
+    // The length is set from the buffer when the response is copied
+    @Override
+    public void setContentLength(int length) {
+    }
+
+    private static boolean isContentLength(String name) {
+        return "Content-Length".equalsIgnoreCase(name);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) {
+                    body.write(bytes, offset, length);
+                }
+            };
+        }
+
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(body, getCharacterEncoding()));
+        }
+
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        headers.clear();
+        status = SC_OK;
+        error = false;
+        errorMessage = null;
+        contentType = null;
+        characterEncoding = null;
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (writer != null) writer.flush();
+        body.reset();
+    }
+}
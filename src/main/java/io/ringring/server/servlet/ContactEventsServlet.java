@@ -0,0 +1,145 @@
+package io.ringring.server.servlet;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.server.events.ContactEventBroker;
+import io.ringring.server.events.EventSink;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the changes of the posted contacts as Server-Sent Events, see {@link ContactEventBroker}.
+ *
+ * The request is suspended with the asynchronous servlet API, an idle stream holds no thread. Jetty 8
+ * has no non-blocking output, so a write holds a writer thread of the broker until the client takes
+ * the bytes or the broker aborts the write. The
+ * body is the same {"emails": [...]} as the one of /user/list. The events carry the changed user in
+ * the format of the API, the client syncs with /user/changes before subscribing and after a
+ * disconnect.
+ */
+@Singleton
+public class ContactEventsServlet extends HttpServlet {
+
+    private final ContactEventBroker contactEventBroker;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Inject
+    public ContactEventsServlet(ContactEventBroker contactEventBroker) {
+        this.contactEventBroker = contactEventBroker;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        List<String> emails = readEmails(request);
+        if (emails == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+
+        // Only the thread of the request knows its connection
+        AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+        final ServletEventSink sink = new ServletEventSink(asyncContext, connection != null ? connection.getEndPoint() : null);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) { contactEventBroker.unsubscribe(sink); }
+
+            @Override
+            public void onTimeout(AsyncEvent event) { contactEventBroker.unsubscribe(sink); }
+
+            @Override
+            public void onError(AsyncEvent event) { contactEventBroker.unsubscribe(sink); }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) { }
+        });
+
+        if (!contactEventBroker.subscribe(emails, sink)) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            asyncContext.complete();
+        }
+    }
+
+    // Null unless the body is an object with a list of emails
+    private List<String> readEmails(HttpServletRequest request) {
+        try {
+            Map<?, ?> requestHash = objectMapper.readValue(request.getInputStream(), Map.class);
+            Object emailsValue = requestHash != null ? requestHash.get("emails") : null;
+            if (!(emailsValue instanceof List)) return null;
+
+            List<String> emails = new ArrayList<String>();
+            for (Object email : (List<?>) emailsValue) {
+                if (!(email instanceof String)) return null;
+                emails.add((String) email);
+            }
+
+            return emails;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class ServletEventSink implements EventSink {
+        private final AsyncContext asyncContext;
+        private final EndPoint endPoint;
+
+        ServletEventSink(AsyncContext asyncContext, EndPoint endPoint) {
+            this.asyncContext = asyncContext;
+            this.endPoint = endPoint;
+        }
+
+        // The output stream, unlike the writer, reports a closed connection
+        @Override
+        public void write(String event) throws IOException {
+            ServletOutputStream output = asyncContext.getResponse().getOutputStream();
+            output.write(event.getBytes("UTF-8"));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            asyncContext.getResponse().flushBuffer();
+        }
+
+        @Override
+        public void close() {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // Already completed
+            }
+        }
+
+        // A closed endpoint ends the blocking write of Jetty once the writer thread is woken up
+        @Override
+        public void abort() {
+            if (endPoint != null) {
+                try {
+                    endPoint.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+            close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package io.ringring.server.servlet;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.core.Status;
+import io.ringring.core.StatusResult;
+import io.ringring.core.UserChangesResult;
+import io.ringring.core.UserListResult;
+import io.ringring.core.UserResult;
+import io.ringring.core.exceptions.ServerBusyException;
+import io.ringring.server.executor.Endpoint;
+import io.ringring.server.executor.EndpointExecutor;
+import io.ringring.server.metrics.MetricsRegistry;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the requests of {@link io.ringring.server.resources.UserResource} on the pools of the
+ * {@link EndpointExecutor} instead of the HTTP threads.
+ *
+ * The request is suspended with the asynchronous servlet API and the rest of the chain, Jersey included,
+ * runs on a thread of the endpoint's pool, so a request in flight holds one thread and a queued one none.
+ * The response is buffered and copied over once the task is done. A saturated pool is answered with
+ * SERVER_BUSY and a task running past the endpoint timeout with INTERNAL_TIMEOUT_ERROR, right away.
+ */
+@Singleton
+public class EndpointDispatchFilter implements Filter {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointDispatchFilter.class);
+
+    private final EndpointExecutor endpointExecutor;
+    private final MetricsRegistry metricsRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Inject
+    public EndpointDispatchFilter(EndpointExecutor endpointExecutor, MetricsRegistry metricsRegistry) {
+        this.endpointExecutor = endpointExecutor;
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, final FilterChain chain) throws IOException, ServletException {
+        final Endpoint endpoint = endpointFor((HttpServletRequest) request);
+        if (endpoint == null || !request.isAsyncSupported()) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final HttpServletRequest httpRequest = new DispatchedRequest((HttpServletRequest) request);
+        final HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+        final long started = System.nanoTime();
+        final AsyncContext asyncContext = request.startAsync();
+        // The executor times the request
+        asyncContext.setTimeout(0);
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                BufferedResponse bufferedResponse = new BufferedResponse(httpResponse);
+                try {
+                    chain.doFilter(httpRequest, bufferedResponse);
+                } catch (Exception e) {
+                    logger.warn("Unable to serve a " + endpoint + " request", e);
+                    bufferedResponse.reset();
+                    bufferedResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } finally {
+                    // A timed out request has been answered already
+                    if (endpointExecutor.complete()) {
+                        finish(asyncContext, bufferedResponse, httpResponse);
+                    }
+                }
+            }
+        };
+
+        // Written by a thread of the server, a slow client must not hold up the timeouts of the others
+        Runnable onTimeout = new Runnable() {
+            @Override
+            public void run() {
+                asyncContext.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        answer(asyncContext, httpResponse, endpoint, Status.INTERNAL_TIMEOUT_ERROR, started);
+                    }
+                });
+            }
+        };
+
+        try {
+            endpointExecutor.execute(endpoint, task, onTimeout);
+        } catch (ServerBusyException e) {
+            answer(asyncContext, httpResponse, endpoint, Status.SERVER_BUSY, started);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private void finish(AsyncContext asyncContext, BufferedResponse bufferedResponse, HttpServletResponse response) {
+        try {
+            bufferedResponse.writeTo(response);
+        } catch (IOException e) {
+            // The client is gone
+        } finally {
+            asyncContext.complete();
+        }
+    }
+
+    // Answers with the status alone, in the result type of the endpoint
+    private void answer(AsyncContext asyncContext, HttpServletResponse response, Endpoint endpoint, Status status, long started) {
+        metricsRegistry.recordRequest(endpoint, status, started);
+
+        try {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(MediaType.APPLICATION_JSON);
+            objectMapper.writeValue(response.getOutputStream(), resultFor(endpoint, status));
+        } catch (IOException e) {
+            // The client is gone
+        } finally {
+            asyncContext.complete();
+        }
+    }
+
+    private static Object resultFor(Endpoint endpoint, Status status) {
+        switch (endpoint) {
+            case GET_USER:
+            case REGISTER:
+                return new UserResult(null, status);
+            case GET_USERS:
+                return new UserListResult(null, status);
+            case GET_CHANGES:
+                return new UserChangesResult(null, null, false, status);
+            default:
+                return new StatusResult(status);
+        }
+    }
+
+    // Follows the paths of UserResource, null for the requests it does not serve
+    private static Endpoint endpointFor(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (segment.length() > 0) segments.add(segment);
+        }
+        if (segments.isEmpty() || !segments.get(0).equals("user")) return null;
+
+        String method = request.getMethod();
+        switch (segments.size()) {
+            case 1:
+                return "POST".equals(method) ? Endpoint.REGISTER : null;
+            case 2:
+                if ("GET".equals(method)) return Endpoint.GET_USER;
+                if ("PUT".equals(method)) return Endpoint.ACTIVATE;
+                if ("POST".equals(method) && segments.get(1).equals("list")) return Endpoint.GET_USERS;
+                if ("POST".equals(method) && segments.get(1).equals("changes")) return Endpoint.GET_CHANGES;
+                return null;
+            case 3:
+                if ("GET".equals(method) && segments.get(2).equals("renewactivationcode")) return Endpoint.RENEW_ACTIVATION_CODE;
+                if ("POST".equals(method) && segments.get(2).equals("invite")) return Endpoint.INVITE;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    // Jetty resets the paths of the request once the HTTP thread has left it, keep the ones of the dispatch
+    private static class DispatchedRequest extends HttpServletRequestWrapper {
+        private final String contextPath;
+        private final String servletPath;
+        private final String pathInfo;
+
+        DispatchedRequest(HttpServletRequest request) {
+            super(request);
+            this.contextPath = request.getContextPath();
+            this.servletPath = request.getServletPath();
+            this.pathInfo = request.getPathInfo();
+        }
+
+        @Override
+        public String getContextPath() { return contextPath; }
+
+        @Override
+        public String getServletPath() { return servletPath; }
+
+        @Override
+        public String getPathInfo() { return pathInfo; }
+    }
+}
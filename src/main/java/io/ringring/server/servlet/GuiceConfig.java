@@ -3,6 +3,15 @@ package io.ringring.server.servlet;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
+import io.ringring.server.events.ContactEventBroker;
+import io.ringring.server.executor.EndpointExecutor;
+import io.ringring.server.mail.MailDispatcher;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.repositories.setup.BloomFilterUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.InvitationLimiter;
+import io.ringring.server.presence.PresenceManager;
+
+import javax.servlet.ServletContextEvent;
 
 /**
  * Created by kosztope on 23/01/14.
@@ -16,4 +25,35 @@ public class GuiceConfig extends GuiceServletContextListener {
 
         return Guice.createInjector(new ServletModule());
     }
-}
\ No newline at end of file
+
+    @Override
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        super.contextInitialized(servletContextEvent);
+
+        // Start the background services before the server accepts requests
+        Injector injector = getContextInjector(servletContextEvent);
+        injector.getInstance(ConnectionManager.class).start();
+        injector.getInstance(InvitationLimiter.class).start();
+        injector.getInstance(BloomFilterUserRepositoryImpl.class).start();
+        injector.getInstance(PresenceManager.class).start();
+        injector.getInstance(MailDispatcher.class).start();
+        injector.getInstance(ContactEventBroker.class).start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        Injector injector = getContextInjector(servletContextEvent);
+        injector.getInstance(ContactEventBroker.class).stop();
+        injector.getInstance(EndpointExecutor.class).stop();
+        injector.getInstance(MailDispatcher.class).stop();
+        injector.getInstance(PresenceManager.class).stop();
+        injector.getInstance(BloomFilterUserRepositoryImpl.class).stop();
+        injector.getInstance(ConnectionManager.class).stop();
+
+        super.contextDestroyed(servletContextEvent);
+    }
+
+    private Injector getContextInjector(ServletContextEvent servletContextEvent) {
+        return (Injector) servletContextEvent.getServletContext().getAttribute(Injector.class.getName());
+    }
+}
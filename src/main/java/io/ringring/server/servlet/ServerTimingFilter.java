@@ -0,0 +1,52 @@
+package io.ringring.server.servlet;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.metrics.ServerTiming;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+
+/**
+ * Starts the {@link ServerTiming} of every request when server.timing.enabled is set. The header
+ * itself is added by {@link io.ringring.server.resources.TimedJsonProvider} with the response.
+ */
+@Singleton
+public class ServerTimingFilter implements Filter {
+
+    private final boolean enabled;
+
+    @Inject
+    public ServerTimingFilter(ConfigManager configManager) {
+        this.enabled = configManager.getServerTimingEnabled();
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!enabled) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ServerTiming previous = ServerTiming.attach(new ServerTiming());
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            ServerTiming.attach(previous);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -1,9 +1,14 @@
 package io.ringring.server.servlet;
 
 import io.ringring.server.config.setup.guice.ConfigManagerModule;
+import io.ringring.server.events.setup.guice.ContactEventModule;
+import io.ringring.server.executor.setup.guice.EndpointExecutorModule;
+import io.ringring.server.metrics.setup.guice.MetricsModule;
+import io.ringring.server.mail.setup.guice.MailModule;
 
 import io.ringring.server.persistence.repositories.setup.guice.UserRepositoryModule;
 import io.ringring.server.persistence.setup.guice.PersistenceModule;
+import io.ringring.server.presence.setup.guice.PresenceModule;
 import com.sun.jersey.guice.JerseyServletModule;
 import com.sun.jersey.guice.spi.container.servlet.GuiceContainer;
 
@@ -20,12 +25,25 @@ public class ServletModule extends JerseyServletModule {
     protected void configureServlets() {
         installConfigModule();
         installPersistenceModule();
+        installPresenceModule();
+        installMailModule();
         installUserRepositoryModule();
+        installEndpointExecutorModule();
+        installMetricsModule();
+        installContactEventModule();
 
         // Set init params for Jersey
         Map<String, String> params = new HashMap<String, String>();
         params.put("com.sun.jersey.config.property.packages", "io.ringring.server.resources");
         params.put("com.sun.jersey.api.json.POJOMappingFeature", "true");
+        // Times the phases of the requests for the Server-Timing header
+        filter("/*").through(ServerTimingFilter.class);
+        // Runs the API requests on the endpoint pools, the HTTP thread is free once a request is queued
+        filter("/*").through(EndpointDispatchFilter.class);
+
+        // Event streams suspend the request, Jersey 1 cannot
+        serve("/user/events").with(ContactEventsServlet.class);
+
         // Route all requests through GuiceContainer
         serve("/*").with(GuiceContainer.class, params);
     }
@@ -38,7 +56,27 @@ public class ServletModule extends JerseyServletModule {
         install(new PersistenceModule());
     }
 
+    protected void installPresenceModule() {
+        install(new PresenceModule());
+    }
+
+    protected void installMailModule() {
+        install(new MailModule());
+    }
+
     protected void installUserRepositoryModule() {
         install(new UserRepositoryModule());
     }
+
+    protected void installEndpointExecutorModule() {
+        install(new EndpointExecutorModule());
+    }
+
+    protected void installMetricsModule() {
+        install(new MetricsModule());
+    }
+
+    protected void installContactEventModule() {
+        install(new ContactEventModule());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+--
+-- Mail outbox table
+--
+CREATE TABLE ringring_mail_outbox (
+   id                 SERIAL
+  ,mail_to            VARCHAR(255) NOT NULL
+  ,subject            VARCHAR(255) NOT NULL
+  ,body               TEXT NOT NULL
+  ,attempts           INTEGER NOT NULL DEFAULT 0
+  ,next_attempt_at    TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+  ,sent_at            TIMESTAMP DEFAULT NULL
+  ,failed_at          TIMESTAMP DEFAULT NULL
+  ,last_error         TEXT DEFAULT NULL
+  ,created_at         TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+  ,updated_at         TIMESTAMP NOT NULL DEFAULT '1900-01-01 00:00:00'
+  ,PRIMARY KEY (id)
+);
+
+--
+-- Only the mails waiting for delivery are scanned by the dispatchers
+--
+CREATE INDEX ringring_mail_outbox_pending ON ringring_mail_outbox (next_attempt_at) WHERE sent_at IS NULL AND failed_at IS NULL;
+
+
+--
+-- Trigger to automatically update UPDATED_AD column
+--
+CREATE FUNCTION update_ringring_mail_outbox_updated_at() RETURNS trigger AS '
+BEGIN
+  new.updated_at = NOW();
+  RETURN new;
+END
+' LANGUAGE plpgsql;
+
+CREATE TRIGGER ringring_mail_outbox_update
+BEFORE UPDATE ON ringring_mail_outbox
+FOR EACH ROW
+EXECUTE PROCEDURE update_ringring_mail_outbox_updated_at();
\ No newline at end of file
@@ -0,0 +1,17 @@
+--
+-- Indexes for the lookups of the ringring API, the presence poller and mod_xml_curl
+--
+CREATE INDEX ringring_invites_invite_to_created_at ON ringring_invites (invite_to, created_at);
+CREATE INDEX ringring_invites_created_at ON ringring_invites (created_at);
+
+CREATE INDEX directory_ringring_user_id ON directory (ringring_user_id);
+CREATE INDEX directory_params_directory_id_param_name ON directory_params (directory_id, param_name);
+CREATE INDEX directory_vars_directory_id ON directory_vars (directory_id);
+
+CREATE INDEX dialplan_condition_extension_id ON dialplan_condition (extension_id);
+CREATE INDEX dialplan_actions_condition_id ON dialplan_actions (condition_id);
+
+--
+-- registrations (reg_user) is covered by regindex1 (reg_user, realm, hostname)
+--
+CREATE INDEX registrations_expires ON registrations (expires);
\ No newline at end of file
@@ -0,0 +1,4 @@
+--
+-- Keyset index of the contact changes feed, pages are read in (updated_at, id) order after the cursor
+--
+CREATE INDEX ringring_users_updated_at_id ON ringring_users (updated_at, id);
\ No newline at end of file
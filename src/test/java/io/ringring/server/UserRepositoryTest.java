@@ -1,20 +1,41 @@
 package io.ringring.server;
 
+import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
 import com.sun.jersey.api.json.JSONConfiguration;
 
 import io.ringring.core.Status;
 import io.ringring.core.StatusResult;
 import io.ringring.core.User;
+import io.ringring.core.UserChangesResult;
 
 import io.ringring.core.UserListResult;
 import io.ringring.core.UserResult;
+import io.ringring.core.exceptions.EmailAlreadyRegisteredException;
+import io.ringring.core.exceptions.ServerBusyException;
 import io.ringring.server.config.ConfigManager;
 import io.ringring.server.config.setup.PropertiesConfigManagerImpl;
 import io.ringring.server.config.setup.guice.ConfigManagerModule;
 import io.ringring.server.db.baseline.CreateBaseline;
+import io.ringring.server.events.ContactEventBroker;
+import io.ringring.server.events.EventSink;
+import io.ringring.server.executor.Endpoint;
+import io.ringring.server.executor.EndpointExecutor;
+import io.ringring.server.executor.setup.BulkheadEndpointExecutorImpl;
+import io.ringring.server.mail.MailSender;
+import io.ringring.server.metrics.MetricsRegistry;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.SqlStatement;
+import io.ringring.server.persistence.StatementCatalog;
 import io.ringring.server.persistence.repositories.UserRepository;
-import io.ringring.server.persistence.repositories.setup.guice.UserRepositoryModule;
+import io.ringring.server.persistence.repositories.setup.BloomFilterUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.ForwardingUserRepository;
+import io.ringring.server.persistence.repositories.setup.MicroBatchingUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.PlainSqlUserRepositoryImpl;
+import io.ringring.server.persistence.repositories.setup.SingleFlightUserRepositoryImpl;
+import io.ringring.server.persistence.setup.LeakTrackingConnectionManager;
+import io.ringring.server.presence.PresenceManager;
+import io.ringring.server.resources.UserResource;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -26,13 +47,36 @@ import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import javax.mail.Message;
 import javax.mail.internet.MimeMessage;
 import javax.ws.rs.core.MediaType;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.subethamail.wiser.Wiser;
 import org.subethamail.wiser.WiserMessage;
@@ -63,9 +107,8 @@ public class UserRepositoryTest {
         ringringServerApi = configManagerModuleInjector.getInstance(ringringServerApi.class);
         ringringServerApi.run();
 
-        // Create direct db connection to the user repository
-        Injector userRepositoryInjector = Guice.createInjector(new UserRepositoryModule());
-        userRepository = userRepositoryInjector.getInstance(UserRepository.class);
+        // Use the same user repository as the running service, so cleaning up also clears its caches
+        userRepository = ringringServerApi.getInjector().getInstance(UserRepository.class);
 
         // Create config manager to direct access to the config
         configManager = new PropertiesConfigManagerImpl();
@@ -81,6 +124,10 @@ public class UserRepositoryTest {
     public void cleanDatabase() throws Exception {
         userRepository.dropUsers();
         userRepository.dropInvites();
+
+        // Mails of the previous test must not arrive during this one
+        waitForOutbox();
+        executeSql("TRUNCATE TABLE ringring_mail_outbox");
     }
 
     @Test
@@ -245,78 +292,53 @@ public class UserRepositoryTest {
     }
 
     @Test
-    public void shouldGetUserByEmail() throws Exception {
-        String email1 = "test.user.1@test.com";
-        String email2 = "test.user.2@test.com";
-        String email3 = "test.user.3@test.com";
-        String email4 = "test.user.4@test.com";
+    public void shouldNotActivateUserTwice() throws Exception {
+        User registeredUser = registerAndActivate("test.user.1@test.com");
+        String activationCode = registeredUser.getActivationCode();
 
-        UserResult userResult;
         Client client = createClient();
-        WebResource webResource = client.resource(ringringServerApi.getUrl() + "/user");
-
-        // Create request hash with email address
-        HashMap<String, String> requestHash = new HashMap<String, String>();
-        requestHash.put("email", email1);
+        WebResource webResource = client.resource(ringringServerApi.getUrl() + "/user/" + registeredUser.getEmail());
 
-        // First email registration
-        userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
+        // Activating again with the right code only refreshes the SIP password
+        StatusResult statusResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
                 .accept(MediaType.APPLICATION_JSON_TYPE)
-                .post(UserResult.class, requestHash);
-        assertEquals(Status.OKAY, userResult.getStatus());
-        User user1 = userResult.getUser();
-
-        // Get first activation code from email
-        MimeMessage message1 = getLastMail().getMimeMessage();
-        String activationCode1 = getActivationCodeFromEmailContent(message1.getContent().toString());
-        user1.setActivationCode(activationCode1);
-
-        // Second email registration
-        requestHash.clear();
-        requestHash.put("email", email2);
+                .put(StatusResult.class, registeredUser);
+        assertEquals(Status.USER_ALREADY_ACTIVATED, statusResult.getStatus());
 
-        userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
+        // Activating again with a wrong code is rejected
+        registeredUser.setActivationCode("SOME_FALSE_ACTIVATION_CODE");
+        statusResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
                 .accept(MediaType.APPLICATION_JSON_TYPE)
-                .post(UserResult.class, requestHash);
-        assertEquals(Status.OKAY, userResult.getStatus());
-        User user2 = userResult.getUser();
-
-        // Get second activation code from email
-        MimeMessage message2 = getLastMail().getMimeMessage();
-        String activationCode2 = getActivationCodeFromEmailContent(message2.getContent().toString());
-        user2.setActivationCode(activationCode2);
-
-        // Third email registration
-        requestHash.clear();
-        requestHash.put("email", email3);
+                .put(StatusResult.class, registeredUser);
+        assertEquals(Status.INVALID_ACTIVATION_CODE, statusResult.getStatus());
 
-        userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
+        // Activating an unknown user
+        User unknownUser = new User("test.user.unknown@test.com", activationCode, false, false);
+        webResource = client.resource(ringringServerApi.getUrl() + "/user/" + unknownUser.getEmail());
+        statusResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
                 .accept(MediaType.APPLICATION_JSON_TYPE)
-                .post(UserResult.class, requestHash);
-        assertEquals(Status.OKAY, userResult.getStatus());
-        User user3 = userResult.getUser();
+                .put(StatusResult.class, unknownUser);
+        assertEquals(Status.USER_NOT_FOUND, statusResult.getStatus());
+    }
 
-        // Get third activation code from email
-        MimeMessage message3 = getLastMail().getMimeMessage();
-        String activationCode3 = getActivationCodeFromEmailContent(message3.getContent().toString());
-        user3.setActivationCode(activationCode3);
+    @Test
+    public void shouldGetUserByEmail() throws Exception {
+        String email1 = "test.user.1@test.com";
+        String email2 = "test.user.2@test.com";
+        String email3 = "test.user.3@test.com";
+        String email4 = "test.user.4@test.com";
 
-        // Activate two users from the three (1st and 3rd)
-        webResource = client.resource(ringringServerApi.getUrl() + "/user/" + user1.getEmail());
-        StatusResult statusResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
-                .accept(MediaType.APPLICATION_JSON_TYPE)
-                .put(StatusResult.class, user1);
-        assertEquals(Status.OKAY, statusResult.getStatus());
+        // Register three users and activate two of them (1st and 3rd)
+        registerAndActivate(email1);
+        register(email2);
+        registerAndActivate(email3);
 
-        webResource = client.resource(ringringServerApi.getUrl() + "/user/" + user3.getEmail());
-        statusResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
-                .accept(MediaType.APPLICATION_JSON_TYPE)
-                .put(StatusResult.class, user3);
-        assertEquals(Status.OKAY, statusResult.getStatus());
+        UserResult userResult;
+        Client client = createClient();
 
         // Tyring to get all users one by one
         // 1st user should registered and activated
-        webResource = client.resource(ringringServerApi.getUrl() + "/user/" + email1);
+        WebResource webResource = client.resource(ringringServerApi.getUrl() + "/user/" + email1);
         userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
                 .accept(MediaType.APPLICATION_JSON_TYPE)
                 .get(UserResult.class);
@@ -350,73 +372,101 @@ public class UserRepositoryTest {
     }
 
     @Test
-    public void shouldGetUsersByEmailList() throws Exception {
-        String email1 = "test.user.1@test.com";
-        String email2 = "test.user.2@test.com";
-        String email3 = "test.user.3@test.com";
+    public void shouldGetActivatedUserAfterCachedLookup() throws Exception {
+        String email = "test.user.1@test.com";
 
-        UserResult userResult;
         Client client = createClient();
-        WebResource webResource = client.resource(ringringServerApi.getUrl() + "/user");
 
-        // Create request hash with email address
-        HashMap<String, String> requestHash = new HashMap<String, String>();
-        requestHash.put("email", email1);
+        // Lookup before the registration
+        WebResource userWebResource = client.resource(ringringServerApi.getUrl() + "/user/" + email);
+        UserResult userResult = userWebResource.accept(MediaType.APPLICATION_JSON_TYPE).get(UserResult.class);
+        assertEquals(Status.USER_NOT_FOUND, userResult.getStatus());
 
-        // First email registration
-        userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
-                .accept(MediaType.APPLICATION_JSON_TYPE)
-                .post(UserResult.class, requestHash);
-        assertEquals(Status.OKAY, userResult.getStatus());
-        User user1 = userResult.getUser();
+        User registeredUser = register(email);
 
-        // Get first activation code from email
-        MimeMessage message1 = getLastMail().getMimeMessage();
-        String activationCode1 = getActivationCodeFromEmailContent(message1.getContent().toString());
-        user1.setActivationCode(activationCode1);
+        // Registered but not activated users are not returned
+        userResult = userWebResource.accept(MediaType.APPLICATION_JSON_TYPE).get(UserResult.class);
+        assertEquals(Status.USER_NOT_FOUND, userResult.getStatus());
 
-        // Second email registration
-        requestHash.clear();
-        requestHash.put("email", email2);
+        activate(registeredUser);
 
-        userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
-                .accept(MediaType.APPLICATION_JSON_TYPE)
-                .post(UserResult.class, requestHash);
+        // The activation has to be visible right away for both lookups
+        userResult = userWebResource.accept(MediaType.APPLICATION_JSON_TYPE).get(UserResult.class);
         assertEquals(Status.OKAY, userResult.getStatus());
-        User user2 = userResult.getUser();
-
-        // Get second activation code from email
-        MimeMessage message2 = getLastMail().getMimeMessage();
-        String activationCode2 = getActivationCodeFromEmailContent(message2.getContent().toString());
-        user2.setActivationCode(activationCode2);
+        assertTrue(userResult.getUser().getIsActivated());
 
-        // Third email registration
-        requestHash.clear();
-        requestHash.put("email", email3);
+        HashMap<String, List<String>> emailsRequestHash = new HashMap<String, List<String>>();
+        emailsRequestHash.put("emails", Arrays.asList(email, email.toUpperCase()));
 
-        userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
+        WebResource webResource = client.resource(ringringServerApi.getUrl() + "/user/list");
+        UserListResult userListResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
                 .accept(MediaType.APPLICATION_JSON_TYPE)
-                .post(UserResult.class, requestHash);
-        assertEquals(Status.OKAY, userResult.getStatus());
-        User user3 = userResult.getUser();
+                .post(UserListResult.class, emailsRequestHash);
+        assertEquals(1, userListResult.getUsers().size());
+    }
 
-        // Get first activation code from email
-        MimeMessage message3 = getLastMail().getMimeMessage();
-        String activationCode3 = getActivationCodeFromEmailContent(message3.getContent().toString());
-        user3.setActivationCode(activationCode3);
+    @Test
+    public void shouldGetLoggedInUser() throws Exception {
+        String email = "test.user.1@test.com";
+        String sipUser = "test.user.1_AT_test.com";
+
+        registerAndActivate(email);
+
+        WebResource userWebResource = createClient().resource(ringringServerApi.getUrl() + "/user/" + email);
+        UserResult userResult = userWebResource.accept(MediaType.APPLICATION_JSON_TYPE).get(UserResult.class);
+        assertFalse(userResult.getUser().getIsLoggedIn());
+
+        // Simulate a FreeSWITCH registration of the user's SIP account
+        executeSql("INSERT INTO registrations (reg_user, realm, expires) VALUES ('" + sipUser + "', 'sip.ringring.io', CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) AS INTEGER) + 3600)");
+        try {
+            boolean isLoggedIn = false;
+            for (int i = 0; i < 50 && !isLoggedIn; i++) {
+                Thread.sleep(100);
+                userResult = userWebResource.accept(MediaType.APPLICATION_JSON_TYPE).get(UserResult.class);
+                isLoggedIn = userResult.getUser().getIsLoggedIn();
+            }
+            assertTrue(isLoggedIn);
+        } finally {
+            executeSql("DELETE FROM registrations WHERE reg_user = '" + sipUser + "'");
+        }
+    }
 
-        // Activate two users from the three (1st and 3rd)
-        webResource = client.resource(ringringServerApi.getUrl() + "/user/" + user1.getEmail());
-        StatusResult statusResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
-                .accept(MediaType.APPLICATION_JSON_TYPE)
-                .put(StatusResult.class, user1);
-        assertEquals(Status.OKAY, statusResult.getStatus());
+    @Test
+    public void shouldSeeRegistrationsWithTheSameExpiry() throws Exception {
+        PresenceManager presenceManager = ringringServerApi.getInjector().getInstance(PresenceManager.class);
+
+        // Later than the other registrations of the tests, so the incremental poll reads it
+        executeSql("INSERT INTO registrations (reg_user, realm, expires) VALUES ('expiry.1_AT_ringring.io', 'sip.ringring.io', CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) AS INTEGER) + 7200)");
+        try {
+            assertTrue(waitUntilOnline(presenceManager, "expiry.1_AT_ringring.io"));
+
+            // A second client asking for the same expiry, well before the next full refresh
+            executeSql("INSERT INTO registrations (reg_user, realm, expires) SELECT 'expiry.2_AT_ringring.io', realm, expires FROM registrations WHERE reg_user = 'expiry.1_AT_ringring.io'");
+            assertTrue(waitUntilOnline(presenceManager, "expiry.2_AT_ringring.io"));
+        } finally {
+            executeSql("DELETE FROM registrations WHERE reg_user IN ('expiry.1_AT_ringring.io', 'expiry.2_AT_ringring.io')");
+        }
+    }
 
-        webResource = client.resource(ringringServerApi.getUrl() + "/user/" + user3.getEmail());
-        statusResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
-                .accept(MediaType.APPLICATION_JSON_TYPE)
-                .put(StatusResult.class, user3);
-        assertEquals(Status.OKAY, statusResult.getStatus());
+    private boolean waitUntilOnline(PresenceManager presenceManager, String sipUser) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            if (presenceManager.isOnline(sipUser)) return true;
+            Thread.sleep(100);
+        }
+
+        return false;
+    }
+
+    @Test
+    public void shouldGetUsersByEmailList() throws Exception {
+        String email1 = "test.user.1@test.com";
+        String email2 = "test.user.2@test.com";
+        String email3 = "test.user.3@test.com";
+
+        // Register three users and activate two of them (1st and 3rd)
+        registerAndActivate(email1);
+        register(email2);
+        registerAndActivate(email3);
 
         // Get the user list
         // Create request hash with email address
@@ -428,7 +478,7 @@ public class UserRepositoryTest {
             "test.user.4@test.com");
         emailsRequestHash.put("emails", userEmails);
 
-        webResource = client.resource(ringringServerApi.getUrl() + "/user/list");
+        WebResource webResource = createClient().resource(ringringServerApi.getUrl() + "/user/list");
         UserListResult userListResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
                 .accept(MediaType.APPLICATION_JSON_TYPE)
                 .post(UserListResult.class, emailsRequestHash);
@@ -647,6 +697,801 @@ public class UserRepositoryTest {
         assertEquals(Status.BAD_REQUEST, statusResult.getStatus());
     }
 
+    @Test
+    public void shouldSendMailWhenSmtpServerIsBack() throws Exception {
+        String email = "test.user.1@test.com";
+
+        Client client = createClient();
+        WebResource webResource = client.resource(ringringServerApi.getUrl() + "/user");
+
+        HashMap<String, String> requestHash = new HashMap<String, String>();
+        requestHash.put("email", email);
+
+        // Registration does not wait for the SMTP server
+        wiser.stop();
+        int sentMails = wiser.getMessages().size();
+        try {
+            UserResult userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
+                    .accept(MediaType.APPLICATION_JSON_TYPE)
+                    .post(UserResult.class, requestHash);
+            assertEquals(Status.OKAY, userResult.getStatus());
+
+            // The mail stays in the outbox until a delivery attempt fails
+            long deadline = System.currentTimeMillis() + 10000;
+            while (countSql("SELECT COUNT(*) FROM ringring_mail_outbox WHERE attempts > 0 AND last_error IS NOT NULL") == 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(50);
+            }
+            assertEquals(1, countSql("SELECT COUNT(*) FROM ringring_mail_outbox WHERE sent_at IS NULL"));
+        } finally {
+            List<WiserMessage> messages = wiser.getMessages();
+            wiser = new Wiser();
+            wiser.getMessages().addAll(messages);
+            wiser.setHostname(configManager.getSmtpHost());
+            wiser.setPort(configManager.getSmtpPort());
+            wiser.start();
+        }
+
+        // The retry delivers it
+        MimeMessage message = getLastMail().getMimeMessage();
+        assertEquals(sentMails + 1, wiser.getMessages().size());
+        assertEquals(email, message.getRecipients(Message.RecipientType.TO)[0].toString());
+    }
+
+    @Test
+    public void shouldPurgeOldMails() throws Exception {
+        executeSql("INSERT INTO ringring_mail_outbox (mail_to, subject, body, sent_at) VALUES ('purge.1@ringring.io', 'Sent', 'XXXXX', CURRENT_TIMESTAMP - INTERVAL '30 days')");
+        executeSql("INSERT INTO ringring_mail_outbox (mail_to, subject, body, failed_at) VALUES ('purge.2@ringring.io', 'Failed', 'XXXXX', CURRENT_TIMESTAMP - INTERVAL '30 days')");
+        executeSql("INSERT INTO ringring_mail_outbox (mail_to, subject, body, sent_at) VALUES ('purge.3@ringring.io', 'Sent', 'XXXXX', CURRENT_TIMESTAMP - INTERVAL '1 hour')");
+
+        // Only the mails past the retention time are deleted
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSql("SELECT COUNT(*) FROM ringring_mail_outbox WHERE mail_to LIKE 'purge.%'") > 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertEquals(1, countSql("SELECT COUNT(*) FROM ringring_mail_outbox WHERE mail_to = 'purge.3@ringring.io'"));
+    }
+
+    @Test
+    public void shouldReuseSmtpConnections() throws Exception {
+        MailSender mailSender = ringringServerApi.getInjector().getInstance(MailSender.class);
+
+        Client client = createClient();
+        WebResource webResource = client.resource(ringringServerApi.getUrl() + "/user");
+
+        long reusedConnections = mailSender.getReusedConnectionCount();
+        long sentMails = mailSender.getSentCount();
+
+        for (int i = 1; i <= 3; i++) {
+            HashMap<String, String> requestHash = new HashMap<String, String>();
+            requestHash.put("email", "test.user." + i + "@test.com");
+
+            UserResult userResult = webResource.type(MediaType.APPLICATION_JSON_TYPE)
+                    .accept(MediaType.APPLICATION_JSON_TYPE)
+                    .post(UserResult.class, requestHash);
+            assertEquals(Status.OKAY, userResult.getStatus());
+
+            // Wait for every mail, so they are sent one after the other
+            getLastMail();
+        }
+
+        // At most the first mail needs a new connection
+        assertEquals(sentMails + 3, mailSender.getSentCount());
+        assertTrue(mailSender.getReusedConnectionCount() >= reusedConnections + 2);
+        assertTrue(mailSender.getOpenConnectionCount() >= 1);
+    }
+
+    @Test
+    public void shouldWarmUpConnectionPool() throws Exception {
+        ConnectionManager connectionManager = ringringServerApi.getInjector().getInstance(ConnectionManager.class);
+
+        // The minimum connections are open before the first request
+        int minConnections = configManager.getDatabasePoolPartitions() * configManager.getDatabasePoolMinConnections();
+        assertTrue(connectionManager.getFreeConnectionCount() + connectionManager.getLeasedConnectionCount() >= minConnections);
+
+        long acquiredConnections = connectionManager.getAcquireWaitHistogram().getCount();
+        Connection connection = connectionManager.getConnection();
+        try {
+            assertTrue(connectionManager.getLeasedConnectionCount() >= 1);
+        } finally {
+            connection.close();
+        }
+
+        assertTrue(connectionManager.getAcquireWaitHistogram().getCount() > acquiredConnections);
+        assertEquals(0, connectionManager.getAcquireTimeoutCount());
+    }
+
+    @Test
+    public void shouldTrackLeakedStatements() throws Exception {
+        LeakTrackingConnectionManager tracker = ringringServerApi.getInjector().getInstance(LeakTrackingConnectionManager.class);
+        ConnectionManager connectionManager = ringringServerApi.getInjector().getInstance(ConnectionManager.class);
+        assertTrue(tracker.isEnabled());
+
+        long leakedStatements = tracker.getLeakedStatementCount();
+        long leakedResultSets = tracker.getLeakedResultSetCount();
+
+        // The repository closes everything it opens, the hold time is recorded by method
+        userRepository.register("leak@ringring.io");
+        userRepository.getActivationCode("leak@ringring.io");
+        assertEquals(leakedStatements, tracker.getLeakedStatementCount());
+        assertTrue(tracker.getHoldTimeHistograms().get("PlainSqlUserRepositoryImpl.getActivationCode").getCount() > 0);
+
+        // A statement left open is reported with its result set and fails in strict mode
+        Connection connection = connectionManager.getConnection();
+        connection.prepareStatement("SELECT 1").executeQuery();
+        try {
+            connection.close();
+            fail("Leaked statement has not been reported");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(leakedStatements + 1, tracker.getLeakedStatementCount());
+        assertEquals(leakedResultSets + 1, tracker.getLeakedResultSetCount());
+    }
+
+    @Test
+    public void shouldReuseCachedStatements() throws Exception {
+        StatementCatalog statementCatalog = ringringServerApi.getInjector().getInstance(StatementCatalog.class);
+        userRepository.register("cached@ringring.io");
+
+        long prepared = statementCatalog.getPrepareCount(SqlStatement.GET_ACTIVATION_CODE);
+        long parsed = statementCatalog.getParseCount(SqlStatement.GET_ACTIVATION_CODE);
+
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(userRepository.getActivationCode("cached@ringring.io"));
+        }
+
+        // At most one parse per pooled connection, the rest comes from the statement cache
+        assertEquals(prepared + 20, statementCatalog.getPrepareCount(SqlStatement.GET_ACTIVATION_CODE));
+        assertTrue(statementCatalog.getParseCount(SqlStatement.GET_ACTIVATION_CODE) - parsed < 20);
+    }
+
+    @Test
+    public void shouldRejectAndTimeOutSaturatedEndpoints() throws Exception {
+        // One read thread with a queue of one, single lookups time out quickly
+        ConfigManager bulkheadConfig;
+        System.setProperty("endpoint.read.threads", "1");
+        System.setProperty("endpoint.read.queue", "1");
+        System.setProperty("endpoint.getuser.timeout", "200");
+        try {
+            bulkheadConfig = new PropertiesConfigManagerImpl();
+        } finally {
+            System.clearProperty("endpoint.read.threads");
+            System.clearProperty("endpoint.read.queue");
+            System.clearProperty("endpoint.getuser.timeout");
+        }
+
+        CountDownLatch release = new CountDownLatch(1);
+        BulkheadEndpointExecutorImpl endpointExecutor = new BulkheadEndpointExecutorImpl(bulkheadConfig);
+        try {
+            // A task running past its timeout is interrupted and answered by its onTimeout
+            BlockingTask slowTask = new BlockingTask(endpointExecutor, release);
+            CountDownLatch timedOut = new CountDownLatch(1);
+            endpointExecutor.execute(Endpoint.GET_USER, slowTask, countDown(timedOut));
+            assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+            assertTrue(slowTask.finished.await(5, TimeUnit.SECONDS));
+            assertTrue(slowTask.interrupted);
+            assertFalse(slowTask.completed);
+            assertEquals(1, endpointExecutor.getTimeoutCount(Endpoint.GET_USER));
+
+            // The interrupted task leaves the read pool before it is filled again
+            long deadline = System.currentTimeMillis() + 5000;
+            while (endpointExecutor.getActiveCount(Endpoint.GET_USER) > 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            // One list lookup runs, one waits in the queue, the next one is rejected right away
+            BlockingTask[] tasks = new BlockingTask[2];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new BlockingTask(endpointExecutor, release);
+                endpointExecutor.execute(Endpoint.GET_USERS, tasks[i], countDown(new CountDownLatch(1)));
+
+                // The idle thread takes the first task out of the queue
+                deadline = System.currentTimeMillis() + 5000;
+                while (endpointExecutor.getActiveCount(Endpoint.GET_USERS) != 1 || endpointExecutor.getQueueSize(Endpoint.GET_USERS) != i) {
+                    assertTrue(System.currentTimeMillis() < deadline);
+                    Thread.sleep(10);
+                }
+            }
+            try {
+                endpointExecutor.execute(Endpoint.GET_USERS, new BlockingTask(endpointExecutor, release), countDown(new CountDownLatch(1)));
+                fail("The saturated read pool accepted a task");
+            } catch (ServerBusyException e) {
+                assertEquals(1, endpointExecutor.getRejectedCount(Endpoint.GET_USERS));
+            }
+
+            // The admitted lookups still finish in time
+            release.countDown();
+            for (BlockingTask task : tasks) {
+                assertTrue(task.finished.await(5, TimeUnit.SECONDS));
+                assertTrue(task.completed);
+            }
+            assertEquals(0, endpointExecutor.getTimeoutCount(Endpoint.GET_USERS));
+
+            // Outside of a task there is nothing to time out
+            assertTrue(endpointExecutor.complete());
+        } finally {
+            release.countDown();
+            endpointExecutor.stop();
+        }
+    }
+
+    @Test
+    public void shouldAnswerTimedOutRequestsWithoutTheHttpThread() throws Exception {
+        EndpointExecutor endpointExecutor = ringringServerApi.getInjector().getInstance(EndpointExecutor.class);
+        long timeouts = endpointExecutor.getTimeoutCount(Endpoint.GET_USER);
+
+        // Lookups wait for the lock until the request times out
+        Connection lock = ringringServerApi.getInjector().getInstance(ConnectionManager.class).getConnection();
+        ExecutorService requester = Executors.newSingleThreadExecutor();
+        try {
+            lock.setAutoCommit(false);
+            Statement stmt = lock.createStatement();
+            stmt.execute("LOCK TABLE ringring_users IN ACCESS EXCLUSIVE MODE");
+            stmt.close();
+
+            Future<UserResult> lookup = requester.submit(new Callable<UserResult>() {
+                @Override
+                public UserResult call() throws Exception {
+                    return createClient().resource(ringringServerApi.getUrl() + "/user/timeout@ringring.io")
+                            .accept(MediaType.APPLICATION_JSON_TYPE)
+                            .get(UserResult.class);
+                }
+            });
+
+            // The waiting lookup runs on the read pool, the HTTP thread has been given back
+            String lookupThread = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (lookupThread == null && System.currentTimeMillis() < deadline) {
+                lookupThread = findThreadRunning(UserResource.class.getName(), "getUser");
+                Thread.sleep(10);
+            }
+            assertNotNull(lookupThread);
+            assertTrue(lookupThread, lookupThread.startsWith("endpoint-read-"));
+
+            assertEquals(Status.INTERNAL_TIMEOUT_ERROR, lookup.get(20, TimeUnit.SECONDS).getStatus());
+            assertEquals(timeouts + 1, endpointExecutor.getTimeoutCount(Endpoint.GET_USER));
+        } finally {
+            lock.rollback();
+            lock.setAutoCommit(true);
+            lock.close();
+            requester.shutdownNow();
+        }
+    }
+
+    // Name of a thread with the method on its stack, null if there is none
+    private String findThreadRunning(String className, String methodName) {
+        for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+            for (StackTraceElement element : thread.getValue()) {
+                if (element.getClassName().equals(className) && element.getMethodName().equals(methodName)) {
+                    return thread.getKey().getName();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    // Waits until released or interrupted, then tries to complete
+    private static class BlockingTask implements Runnable {
+        private final EndpointExecutor endpointExecutor;
+        private final CountDownLatch release;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean interrupted;
+        private volatile boolean completed;
+
+        BlockingTask(EndpointExecutor endpointExecutor, CountDownLatch release) {
+            this.endpointExecutor = endpointExecutor;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            completed = endpointExecutor.complete();
+            finished.countDown();
+        }
+    }
+
+    @Test
+    public void shouldPublishMetrics() throws Exception {
+        MetricsRegistry metricsRegistry = ringringServerApi.getInjector().getInstance(MetricsRegistry.class);
+        StatementCatalog statementCatalog = ringringServerApi.getInjector().getInstance(StatementCatalog.class);
+
+        long notFound = metricsRegistry.getStatusCount(Endpoint.GET_USER, Status.USER_NOT_FOUND);
+        long requests = metricsRegistry.getRequestHistogram(Endpoint.GET_USER).getCount();
+        long executions = countExecutions(statementCatalog, SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION,
+                SqlStatement.GET_ACTIVATED_USER, SqlStatement.GET_ACTIVATED_USER_WITH_REGISTRATION);
+
+        Client client = createClient();
+        UserResult userResult = client.resource(ringringServerApi.getUrl() + "/user/metrics@ringring.io")
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .get(UserResult.class);
+        assertEquals(Status.USER_NOT_FOUND, userResult.getStatus());
+
+        // Every call is counted by its status and timed, down to the statements it ran
+        assertEquals(notFound + 1, metricsRegistry.getStatusCount(Endpoint.GET_USER, Status.USER_NOT_FOUND));
+        assertEquals(requests + 1, metricsRegistry.getRequestHistogram(Endpoint.GET_USER).getCount());
+        assertEquals(executions + 1, countExecutions(statementCatalog, SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION,
+                SqlStatement.GET_ACTIVATED_USER, SqlStatement.GET_ACTIVATED_USER_WITH_REGISTRATION));
+
+        String metrics = client.resource(ringringServerApi.getUrl() + "/metrics").get(String.class);
+        assertTrue(metrics.contains("ringring_requests_total{endpoint=\"GET_USER\",status=\"USER_NOT_FOUND\"} " + (notFound + 1) + "\n"));
+        assertTrue(metrics.contains("ringring_request_duration_seconds_count{endpoint=\"GET_USER\"} " + (requests + 1) + "\n"));
+        assertTrue(metrics.contains("# TYPE ringring_sql_duration_seconds histogram\n"));
+        assertTrue(metrics.contains("ringring_db_pool_leased_connections "));
+        assertTrue(metrics.contains("ringring_smtp_send_duration_seconds_bucket{le=\"+Inf\"} "));
+    }
+
+    @Test
+    public void shouldCoalesceConcurrentLookups() throws Exception {
+        final String email = "singleflight@ringring.io";
+        userRepository.register(email);
+
+        final SingleFlightUserRepositoryImpl singleFlightRepository = ringringServerApi.getInjector().getInstance(SingleFlightUserRepositoryImpl.class);
+        StatementCatalog statementCatalog = ringringServerApi.getInjector().getInstance(StatementCatalog.class);
+
+        long flights = singleFlightRepository.getFlightCount();
+        long coalesced = singleFlightRepository.getCoalescedCount();
+        long timeouts = singleFlightRepository.getTimeoutCount();
+        long executions = countExecutions(statementCatalog, SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION);
+
+        // Release all lookups at once, the ones arriving during a query share it
+        int callers = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        User[] users = new User[callers];
+        try {
+            List<Future<User>> lookups = new ArrayList<Future<User>>();
+            for (int i = 0; i < callers; i++) {
+                lookups.add(executor.submit(new Callable<User>() {
+                    @Override
+                    public User call() throws Exception {
+                        start.await();
+                        return singleFlightRepository.getUser(email, false);
+                    }
+                }));
+            }
+            start.countDown();
+
+            // A failed lookup fails the test with its own exception
+            for (int i = 0; i < callers; i++) {
+                users[i] = lookups.get(i).get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Every caller got its own copy of the user
+        for (User user : users) {
+            assertNotNull(user);
+            assertEquals(email, user.getEmail());
+        }
+        assertNotSame(users[0], users[callers - 1]);
+
+        // Every caller either ran a query or was served by one
+        long ownQueries = singleFlightRepository.getFlightCount() - flights + singleFlightRepository.getTimeoutCount() - timeouts;
+        assertEquals(callers, ownQueries + singleFlightRepository.getCoalescedCount() - coalesced);
+        assertEquals(executions + ownQueries, countExecutions(statementCatalog, SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION));
+
+        // Duplicates in one list are looked up once
+        long listExecutions = countExecutions(statementCatalog, SqlStatement.GET_USERS, SqlStatement.GET_USERS_WITH_REGISTRATION);
+        List<User> userList = singleFlightRepository.getUsers(Arrays.asList(email, email.toUpperCase(), "unknown@ringring.io"), false);
+        assertEquals(1, userList.size());
+        assertEquals(listExecutions + 1, countExecutions(statementCatalog, SqlStatement.GET_USERS, SqlStatement.GET_USERS_WITH_REGISTRATION));
+
+        String metrics = createClient().resource(ringringServerApi.getUrl() + "/metrics").get(String.class);
+        assertTrue(metrics.contains("ringring_user_lookups_total{result=\"coalesced\"} "));
+        assertTrue(metrics.contains("ringring_user_flight_saved_calls_count "));
+    }
+
+    @Test
+    public void shouldBatchSingleLookups() throws Exception {
+        userRepository.register("batch.1@ringring.io");
+        userRepository.register("batch.2@ringring.io");
+
+        // Batching is off by default, a long window makes sure only the batch size closes the batch
+        final MicroBatchingUserRepositoryImpl batchingRepository = new MicroBatchingUserRepositoryImpl(
+                ringringServerApi.getInjector().getInstance(PlainSqlUserRepositoryImpl.class), createBatchingConfig(5000, 3, 10000));
+        StatementCatalog statementCatalog = ringringServerApi.getInjector().getInstance(StatementCatalog.class);
+
+        long singleExecutions = countExecutions(statementCatalog, SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION);
+        long listExecutions = countExecutions(statementCatalog, SqlStatement.GET_USERS, SqlStatement.GET_USERS_WITH_REGISTRATION);
+
+        String[] emails = { "batch.1@ringring.io", "BATCH.2@ringring.io", "batch.unknown@ringring.io" };
+        ExecutorService executor = Executors.newFixedThreadPool(emails.length);
+        User[] users = new User[emails.length];
+        try {
+            List<Future<User>> lookups = new ArrayList<Future<User>>();
+            for (String email : emails) {
+                lookups.add(submitLookup(executor, batchingRepository, email));
+            }
+
+            // A failed lookup fails the test with its own exception
+            for (int i = 0; i < emails.length; i++) {
+                users[i] = lookups.get(i).get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Every caller got its own user from one array query
+        assertEquals("batch.1@ringring.io", users[0].getEmail());
+        assertEquals("batch.2@ringring.io", users[1].getEmail());
+        assertNull(users[2]);
+
+        assertEquals(singleExecutions, countExecutions(statementCatalog, SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION));
+        assertEquals(listExecutions + 1, countExecutions(statementCatalog, SqlStatement.GET_USERS, SqlStatement.GET_USERS_WITH_REGISTRATION));
+        assertEquals(1, batchingRepository.getBatchSizeHistogram().getCount());
+        assertEquals(3, batchingRepository.getBatchSizeHistogram().getSum());
+        assertEquals(0, batchingRepository.getTimeoutCount());
+
+        // A lookup waiting longer than maxwait for its batch queries on its own
+        MicroBatchingUserRepositoryImpl waitingRepository = new MicroBatchingUserRepositoryImpl(
+                ringringServerApi.getInjector().getInstance(PlainSqlUserRepositoryImpl.class), createBatchingConfig(5000, 64, 100));
+        executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<User> opening = submitLookup(executor, waitingRepository, "batch.1@ringring.io");
+            Thread.sleep(200);
+            Future<User> joining = submitLookup(executor, waitingRepository, "batch.2@ringring.io");
+
+            assertEquals("batch.2@ringring.io", joining.get(2, TimeUnit.SECONDS).getEmail());
+            assertFalse(opening.isDone());
+            assertEquals(1, waitingRepository.getTimeoutCount());
+            assertEquals(singleExecutions + 1, countExecutions(statementCatalog, SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION));
+
+            assertEquals("batch.1@ringring.io", opening.get(10, TimeUnit.SECONDS).getEmail());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ConfigManager createBatchingConfig(long window, int maxSize, long maxWait) throws Exception {
+        System.setProperty("batch.user.enabled", "true");
+        System.setProperty("batch.user.window", String.valueOf(window));
+        System.setProperty("batch.user.maxsize", String.valueOf(maxSize));
+        System.setProperty("batch.user.maxwait", String.valueOf(maxWait));
+        try {
+            return new PropertiesConfigManagerImpl();
+        } finally {
+            System.clearProperty("batch.user.enabled");
+            System.clearProperty("batch.user.window");
+            System.clearProperty("batch.user.maxsize");
+            System.clearProperty("batch.user.maxwait");
+        }
+    }
+
+    private Future<User> submitLookup(ExecutorService executor, final UserRepository repository, final String email) {
+        return executor.submit(new Callable<User>() {
+            @Override
+            public User call() throws Exception {
+                return repository.getUser(email, false);
+            }
+        });
+    }
+
+    @Test
+    public void shouldReturnContactChanges() throws Exception {
+        String[] activatedEmails = { "changes.1@ringring.io", "changes.2@ringring.io", "changes.3@ringring.io" };
+        for (String email : activatedEmails) {
+            registerAndActivate(email);
+        }
+        User inactiveUser = register("changes.4@ringring.io");
+
+        List<String> contacts = Arrays.asList("changes.1@ringring.io", "CHANGES.2@ringring.io", "changes.3@ringring.io", "changes.4@ringring.io", "changes.unknown@ringring.io");
+
+        // The first sync returns every activated contact, two per page in the test configuration
+        UserChangesResult changes = postChanges(contacts, null);
+        assertEquals(Status.OKAY, changes.getStatus());
+        assertEquals(2, changes.getUsers().size());
+        assertTrue(changes.getHasMore());
+
+        List<String> syncedEmails = new ArrayList<String>();
+        for (User user : changes.getUsers()) syncedEmails.add(user.getEmail());
+
+        changes = postChanges(contacts, changes.getCursor());
+        assertEquals(1, changes.getUsers().size());
+        assertFalse(changes.getHasMore());
+        for (User user : changes.getUsers()) syncedEmails.add(user.getEmail());
+        assertTrue(syncedEmails.containsAll(Arrays.asList(activatedEmails)));
+
+        // Nothing changed since
+        changes = postChanges(contacts, changes.getCursor());
+        assertEquals(Status.OKAY, changes.getStatus());
+        assertEquals(0, changes.getUsers().size());
+
+        // An activation shows up on the next sync
+        activate(inactiveUser);
+        changes = postChanges(contacts, changes.getCursor());
+        assertEquals(1, changes.getUsers().size());
+        assertEquals("changes.4@ringring.io", changes.getUsers().get(0).getEmail());
+        assertTrue(changes.getUsers().get(0).getIsActivated());
+
+        // So does a SIP registration, once the presence index has seen it
+        executeSql("INSERT INTO registrations (reg_user, realm, expires) VALUES ('changes.2_AT_ringring.io', 'sip.ringring.io', CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) AS INTEGER) + 3600)");
+        try {
+            User loggedInUser = null;
+            for (int i = 0; i < 50 && loggedInUser == null; i++) {
+                Thread.sleep(100);
+                changes = postChanges(contacts, changes.getCursor());
+                for (User user : changes.getUsers()) {
+                    assertEquals("changes.2@ringring.io", user.getEmail());
+                    if (user.getIsLoggedIn()) loggedInUser = user;
+                }
+            }
+            assertNotNull(loggedInUser);
+        } finally {
+            executeSql("DELETE FROM registrations WHERE reg_user = 'changes.2_AT_ringring.io'");
+        }
+
+        assertEquals(Status.BAD_REQUEST, postChanges(contacts, "not a cursor").getStatus());
+    }
+
+    @Test
+    public void shouldPushContactEvents() throws Exception {
+        User inactiveUser = register("events.1@ringring.io");
+        registerAndActivate("events.2@ringring.io");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(ringringServerApi.getUrl() + "/user/events").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", MediaType.APPLICATION_JSON);
+        connection.setReadTimeout(10000);
+        connection.setDoOutput(true);
+        OutputStream requestBody = connection.getOutputStream();
+        requestBody.write("{\"emails\":[\"events.1@ringring.io\",\"EVENTS.2@ringring.io\"]}".getBytes("UTF-8"));
+        requestBody.close();
+
+        try {
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/event-stream"));
+
+            BufferedReader events = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            assertEquals(": subscribed", events.readLine());
+
+            // An activation of a contact is pushed
+            activate(inactiveUser);
+            String data = readUserEvent(events, "events.1@ringring.io");
+            assertTrue(data.contains("\"isActivated\":true"));
+
+            // So is a SIP registration, once the presence index has seen it
+            executeSql("INSERT INTO registrations (reg_user, realm, expires) VALUES ('events.2_AT_ringring.io', 'sip.ringring.io', CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) AS INTEGER) + 3600)");
+            try {
+                data = readUserEvent(events, "events.2@ringring.io");
+                while (!data.contains("\"isLoggedIn\":true")) {
+                    data = readUserEvent(events, "events.2@ringring.io");
+                }
+            } finally {
+                executeSql("DELETE FROM registrations WHERE reg_user = 'events.2_AT_ringring.io'");
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        // A body without emails is a bad request
+        HttpURLConnection badConnection = (HttpURLConnection) new URL(ringringServerApi.getUrl() + "/user/events").openConnection();
+        badConnection.setRequestMethod("POST");
+        badConnection.setDoOutput(true);
+        requestBody = badConnection.getOutputStream();
+        requestBody.write("{\"emails\":\"events.1@ringring.io\"}".getBytes("UTF-8"));
+        requestBody.close();
+        assertEquals(400, badConnection.getResponseCode());
+        badConnection.disconnect();
+    }
+
+    @Test
+    public void shouldAbortStalledEventWrites() throws Exception {
+        ContactEventBroker contactEventBroker = ringringServerApi.getInjector().getInstance(ContactEventBroker.class);
+        long dropped = contactEventBroker.getDroppedCount();
+        int subscriptions = contactEventBroker.getSubscriptionCount();
+
+        // A client that never takes the bytes, its write only ends when the writer thread is interrupted
+        final CountDownLatch aborted = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        EventSink stalledSink = new EventSink() {
+            @Override
+            public void write(String event) throws IOException {
+                try {
+                    Thread.sleep(30000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            @Override
+            public void flush() { }
+
+            @Override
+            public void close() { }
+
+            @Override
+            public void abort() { aborted.countDown(); }
+        };
+
+        assertTrue(contactEventBroker.subscribe(Arrays.asList("stalled@ringring.io"), stalledSink));
+
+        // The first write blocks, the publisher cuts it after the write timeout of the test configuration
+        assertTrue(aborted.await(10, TimeUnit.SECONDS));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(dropped + 1, contactEventBroker.getDroppedCount());
+        assertEquals(subscriptions, contactEventBroker.getSubscriptionCount());
+    }
+
+    @Test
+    public void shouldSkipUnregisteredEmails() throws Exception {
+        BloomFilterUserRepositoryImpl bloomFilterRepository = ringringServerApi.getInjector().getInstance(BloomFilterUserRepositoryImpl.class);
+        StatementCatalog statementCatalog = ringringServerApi.getInjector().getInstance(StatementCatalog.class);
+        for (int i = 0; i < 50 && !bloomFilterRepository.isReady(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(bloomFilterRepository.isReady());
+
+        userRepository.register("bloom.1@ringring.io");
+        assertTrue(bloomFilterRepository.getFilter().getFillRatio() > 0);
+
+        SqlStatement[] lookups = {
+                SqlStatement.GET_USERS, SqlStatement.GET_ACTIVATED_USERS,
+                SqlStatement.GET_USERS_WITH_REGISTRATION, SqlStatement.GET_ACTIVATED_USERS_WITH_REGISTRATION,
+                SqlStatement.GET_USER, SqlStatement.GET_USER_WITH_REGISTRATION };
+        long executions = countExecutions(statementCatalog, lookups);
+        long skipped = bloomFilterRepository.getSkippedCount();
+
+        // Unregistered emails of a list are answered without a query
+        assertEquals(0, userRepository.getUsers(Arrays.asList("bloom.unknown.1@ringring.io", "bloom.unknown.2@ringring.io"), false).size());
+        assertEquals(executions, countExecutions(statementCatalog, lookups));
+        assertEquals(skipped + 2, bloomFilterRepository.getSkippedCount());
+
+        // Single lookups still ask the database
+        assertNull(userRepository.getUser("bloom.unknown.3@ringring.io", false));
+        assertEquals(++executions, countExecutions(statementCatalog, lookups));
+
+        // Registered emails still are, whatever their case
+        List<User> users = userRepository.getUsers(Arrays.asList("BLOOM.1@ringring.io", "bloom.unknown.4@ringring.io"), false);
+        assertEquals(1, users.size());
+        assertEquals("bloom.1@ringring.io", users.get(0).getEmail());
+        assertEquals(executions + 1, countExecutions(statementCatalog, lookups));
+
+        // Users inserted elsewhere show up after a rebuild
+        executeSql("INSERT INTO ringring_users (email, activation_code, is_activated) VALUES ('bloom.2@ringring.io', 'XXXXXX', FALSE)");
+        bloomFilterRepository.rebuild();
+        users = userRepository.getUsers(Arrays.asList("bloom.2@ringring.io"), false);
+        assertEquals(1, users.size());
+        assertEquals("bloom.2@ringring.io", users.get(0).getEmail());
+    }
+
+    @Test
+    public void shouldAddServerTimingHeader() throws Exception {
+        assertTrue(configManager.getServerTimingEnabled());
+
+        HashMap<String, String> requestHash = new HashMap<String, String>();
+        requestHash.put("email", "timing@ringring.io");
+
+        ClientResponse response = createClient().resource(ringringServerApi.getUrl() + "/user")
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .post(ClientResponse.class, requestHash);
+        assertEquals(Status.OKAY, response.getEntity(UserResult.class).getStatus());
+
+        // Every phase the registration went through is listed with its duration
+        String serverTiming = response.getHeaders().getFirst("Server-Timing");
+        assertNotNull(serverTiming);
+        assertTrue(serverTiming, serverTiming.contains("parse;dur="));
+        assertTrue(serverTiming, serverTiming.contains("queue;dur="));
+        assertTrue(serverTiming, serverTiming.contains("sql-register;dur="));
+        assertTrue(serverTiming, serverTiming.contains("serialize;dur="));
+        assertTrue(serverTiming, serverTiming.matches(".*, total;dur=[0-9]+\\.[0-9]{3}"));
+    }
+
+    @Test
+    public void shouldRecordFlightRecorderEvents() throws Exception {
+        assertTrue(configManager.getJfrEventsEnabled());
+
+        Recording recording = new Recording();
+        recording.start();
+        userRepository.register("jfr@ringring.io");
+        try {
+            userRepository.register("jfr@ringring.io");
+            fail("Email has been registered twice");
+        } catch (EmailAlreadyRegisteredException e) {
+            // expected
+        }
+        recording.stop();
+
+        File file = File.createTempFile("ringring", ".jfr");
+        try {
+            recording.dump(file.toPath());
+
+            // The events of the two registrations, their statements and connections
+            boolean registered = false, rejected = false, executed = false, acquired = false, released = false;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                String name = event.getEventType().getName();
+                if (name.equals("io.ringring.RepositoryOperation") && event.getString("operation").equals("register")) {
+                    registered |= event.getString("status").equals("OKAY") && event.getInt("users") == 1;
+                    rejected |= event.getString("status").equals("EMAIL_ALREADY_REGISTERED");
+                }
+                if (name.equals("io.ringring.SqlExecution") && event.getString("statement").equals("REGISTER")) {
+                    executed |= event.getInt("rows") == 1 && event.getLong("elapsed") > 0;
+                }
+                acquired |= name.equals("io.ringring.ConnectionAcquire");
+                released |= name.equals("io.ringring.ConnectionRelease");
+            }
+
+            assertTrue(registered);
+            assertTrue(rejected);
+            assertTrue(executed);
+            assertTrue(acquired);
+            assertTrue(released);
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+
+    private long countExecutions(StatementCatalog statementCatalog, SqlStatement... statements) {
+        long count = 0;
+        for (SqlStatement statement : statements) {
+            count += statementCatalog.getExecutionHistogram(statement).getCount();
+        }
+
+        return count;
+    }
+
+    private void executeSql(String sql) throws Exception {
+        Connection connection = ringringServerApi.getInjector().getInstance(ConnectionManager.class).getConnection();
+        try {
+            Statement stmt = connection.createStatement();
+            stmt.execute(sql);
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private UserChangesResult postChanges(List<String> emails, String cursor) {
+        HashMap<String, Object> requestHash = new HashMap<String, Object>();
+        requestHash.put("emails", emails);
+        requestHash.put("cursor", cursor);
+
+        return createClient().resource(ringringServerApi.getUrl() + "/user/changes")
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .post(UserChangesResult.class, requestHash);
+    }
+
+    // Skips comments and the events of other users, a change just before subscribing may still arrive
+    private String readUserEvent(BufferedReader events, String email) throws Exception {
+        String line;
+        boolean userEvent = false;
+        while ((line = events.readLine()) != null) {
+            if (line.equals("event: user")) {
+                userEvent = true;
+            } else if (userEvent && line.startsWith("data: ") && line.contains("\"email\":\"" + email + "\"")) {
+                return line.substring("data: ".length());
+            } else if (line.length() == 0) {
+                userEvent = false;
+            }
+        }
+
+        fail("The event stream ended");
+        return null;
+    }
+
     private Client createClient() {
         ClientConfig clientConfig = new DefaultClientConfig();
         clientConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING,
@@ -654,12 +1499,72 @@ public class UserRepositoryTest {
         return Client.create(clientConfig);
     }
 
-    private WiserMessage getLastMail() {
+    private int countSql(String sql) throws Exception {
+        int count = 0;
+
+        Connection connection = ringringServerApi.getInjector().getInstance(ConnectionManager.class).getConnection();
+        try {
+            Statement stmt = connection.createStatement();
+            ResultSet rs = stmt.executeQuery(sql);
+            if (rs.next()) count = rs.getInt(1);
+            rs.close();
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+
+        return count;
+    }
+
+    // Mails are sent in the background, wait until the outbox has delivered everything queued so far
+    private void waitForOutbox() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSql("SELECT COUNT(*) FROM ringring_mail_outbox WHERE sent_at IS NULL AND failed_at IS NULL") > 0) {
+            assertTrue("Outbox has not been delivered in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private WiserMessage getLastMail() throws Exception {
+        waitForOutbox();
+
         List<WiserMessage> wiserMessages = wiser.getMessages();
 
         return wiserMessages.get(wiserMessages.size() - 1);
     }
 
+    // Registers the email over the API, the returned user carries the activation code of the mail
+    private User register(String email) throws Exception {
+        HashMap<String, String> requestHash = new HashMap<String, String>();
+        requestHash.put("email", email);
+
+        UserResult userResult = createClient().resource(ringringServerApi.getUrl() + "/user")
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .post(UserResult.class, requestHash);
+        assertEquals(Status.OKAY, userResult.getStatus());
+
+        User user = userResult.getUser();
+        user.setActivationCode(getActivationCodeFromEmailContent(getLastMail().getMimeMessage().getContent().toString()));
+
+        return user;
+    }
+
+    private void activate(User user) {
+        StatusResult statusResult = createClient().resource(ringringServerApi.getUrl() + "/user/" + user.getEmail())
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .put(StatusResult.class, user);
+        assertEquals(Status.OKAY, statusResult.getStatus());
+    }
+
+    private User registerAndActivate(String email) throws Exception {
+        User user = register(email);
+        activate(user);
+
+        return user;
+    }
+
     private String getActivationCodeFromEmailContent(String emailContent) {
         int startIndex = emailContent.lastIndexOf(':') + 1;
         int activationCodeLength = configManager.getActivationCodeLength();
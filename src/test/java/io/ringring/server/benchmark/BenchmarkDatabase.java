@@ -0,0 +1,86 @@
+package io.ringring.server.benchmark;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.util.Modules;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.config.setup.PropertiesConfigManagerImpl;
+import io.ringring.server.config.setup.guice.ConfigManagerModule;
+import io.ringring.server.db.baseline.CreateBaseline;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.repositories.setup.guice.UserRepositoryModule;
+import io.ringring.server.presence.PresenceManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+/**
+ * Starts the repository on the test database for the benchmarks. Apart from the database it runs
+ * like in production, the JDBC leak tracking of the test suite is switched off.
+ */
+class BenchmarkDatabase {
+
+    private BenchmarkDatabase() { }
+
+    static Injector start() {
+
+        // Migrate database to the latest version
+        Guice.createInjector(new ConfigManagerModule()).getInstance(CreateBaseline.class).create();
+
+        Injector injector = Guice.createInjector(Modules.override(new UserRepositoryModule()).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ConfigManager.class).to(BenchmarkConfigManager.class);
+            }
+        }));
+
+        injector.getInstance(ConnectionManager.class).start();
+        injector.getInstance(PresenceManager.class).start();
+
+        return injector;
+    }
+
+    static void stop(Injector injector) {
+        injector.getInstance(PresenceManager.class).stop();
+        injector.getInstance(ConnectionManager.class).stop();
+    }
+
+    static String userEmail(int i) {
+        return "bench.user." + i + "@bench.ringring.io";
+    }
+
+    // Every second user is activated
+    static void seedUsers(ConnectionManager connectionManager, int count) throws Exception {
+        Connection connection = connectionManager.getConnection();
+        try {
+            PreparedStatement stmt = connection.prepareStatement("INSERT INTO ringring_users (email, activation_code, is_activated) SELECT 'bench.user.' || i || '@bench.ringring.io', 'XXXXXX', i % 2 = 0 FROM generate_series(1, ?) i");
+            stmt.setInt(1, count);
+            stmt.executeUpdate();
+            stmt.close();
+
+            stmt = connection.prepareStatement("ANALYZE ringring_users");
+            stmt.execute();
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    static void execute(ConnectionManager connectionManager, String sql) throws Exception {
+        Connection connection = connectionManager.getConnection();
+        try {
+            PreparedStatement stmt = connection.prepareStatement(sql);
+            stmt.execute();
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    public static class BenchmarkConfigManager extends PropertiesConfigManagerImpl {
+
+        @Override
+        public boolean getDatabaseTrackingEnabled() { return false; }
+    }
+}
@@ -0,0 +1,42 @@
+package io.ringring.server.benchmark;
+
+import io.ringring.server.persistence.repositories.setup.PlainSqlUserRepositoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The e-mail helpers that run on every request, without a database.
+ *
+ *     mvn -P benchmark verify -Dbenchmark=EmailHelpersBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class EmailHelpersBenchmark {
+
+    @Param({"john.doe@ringring.io", "not-an-address"})
+    public String email;
+
+    @Benchmark
+    public boolean isValidEmailAddress() {
+        return PlainSqlUserRepositoryImpl.isValidEmailAddress(email);
+    }
+
+    @Benchmark
+    public String sipEncode() {
+        return PlainSqlUserRepositoryImpl.sipEncode(email);
+    }
+}
@@ -0,0 +1,118 @@
+package io.ringring.server.benchmark;
+
+import com.google.inject.Injector;
+import io.ringring.core.User;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.repositories.UserRepository;
+import io.ringring.server.persistence.repositories.setup.PlainSqlUserRepositoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of the array bound bulk lookup behind POST /user/list
+ * with the previous IN (...) literal list statement.
+ *
+ * Run it against the test database with:
+ *
+ *     mvn -P benchmark verify -Dbenchmark=GetUsersBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GetUsersBenchmark {
+
+    private static final int REGISTERED_USERS = 50000;
+
+    @Param({"10", "1000", "50000"})
+    public int listSize;
+
+    private Injector injector;
+    private UserRepository userRepository;
+    private ConnectionManager connectionManager;
+    private List<String> emails;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        injector = BenchmarkDatabase.start();
+        userRepository = injector.getInstance(PlainSqlUserRepositoryImpl.class);
+        connectionManager = injector.getInstance(ConnectionManager.class);
+
+        userRepository.dropUsers();
+        BenchmarkDatabase.seedUsers(connectionManager, REGISTERED_USERS);
+        emails = createAddressBook(listSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userRepository.dropUsers();
+        BenchmarkDatabase.stop(injector);
+    }
+
+    @Benchmark
+    public List<User> array() throws Exception {
+        return userRepository.getUsers(emails, true);
+    }
+
+    // The lookup as it was before the array bound statement: one new SQL text per address book.
+    // The literal list is built with a StringBuilder so only the database side is compared.
+    @Benchmark
+    public int inList() throws Exception {
+        int rows = 0;
+
+        StringBuilder sqlInEmails = new StringBuilder("(");
+        for (String email : emails) {
+            sqlInEmails.append('\'').append(email.toLowerCase()).append("',");
+        }
+        sqlInEmails.append("null)");
+
+        Connection connection = connectionManager.getConnection();
+        try {
+            PreparedStatement query = connection.prepareStatement("SELECT zu.email, zu.activation_code, zu.is_activated, CASE WHEN r.reg_user IS NULL THEN false ELSE true END FROM ringring_users zu LEFT JOIN directory d ON d.ringring_user_id = zu.id LEFT JOIN registrations r ON r.reg_user = d.username WHERE zu.email IN " + sqlInEmails + " AND is_activated = TRUE");
+            ResultSet rs = query.executeQuery();
+            while (rs.next()) {
+                rows++;
+            }
+            rs.close();
+            query.close();
+        } finally {
+            connection.close();
+        }
+
+        return rows;
+    }
+
+    // Every second address is unknown, like in a real address book
+    private static List<String> createAddressBook(int size) {
+        List<String> emails = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            if (i % 2 == 0) {
+                emails.add(BenchmarkDatabase.userEmail(i + 1));
+            } else {
+                emails.add("unknown." + i + "@bench.ringring.io");
+            }
+        }
+
+        return emails;
+    }
+}
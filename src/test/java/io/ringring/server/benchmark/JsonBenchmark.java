@@ -0,0 +1,69 @@
+package io.ringring.server.benchmark;
+
+import io.ringring.core.Status;
+import io.ringring.core.User;
+import io.ringring.core.UserListResult;
+import io.ringring.core.UserResult;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the API results with the Jackson mapper behind Jersey's POJO mapping.
+ *
+ *     mvn -P benchmark verify -Dbenchmark=JsonBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    @Param({"10", "1000"})
+    public int listSize;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private UserResult userResult;
+    private UserListResult userListResult;
+
+    @Setup
+    public void setUp() {
+        userResult = new UserResult(createUser(1), Status.OKAY);
+
+        List<User> users = new ArrayList<User>(listSize);
+        for (int i = 0; i < listSize; i++) {
+            users.add(createUser(i));
+        }
+        userListResult = new UserListResult(users, Status.OKAY);
+    }
+
+    @Benchmark
+    public byte[] userResult() throws Exception {
+        return objectMapper.writeValueAsBytes(userResult);
+    }
+
+    @Benchmark
+    public byte[] userListResult() throws Exception {
+        return objectMapper.writeValueAsBytes(userListResult);
+    }
+
+    private static User createUser(int i) {
+        return new User("bench.user." + i + "@bench.ringring.io", "XXXXX", true, i % 3 == 0);
+    }
+}
@@ -0,0 +1,108 @@
+package io.ringring.server.benchmark;
+
+import com.google.inject.Injector;
+import io.ringring.core.User;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.repositories.UserRepository;
+import io.ringring.server.persistence.repositories.setup.PlainSqlUserRepositoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the single user operations of PlainSqlUserRepositoryImpl on the test database.
+ *
+ *     mvn -P benchmark verify -Dbenchmark=UserRepositoryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class UserRepositoryBenchmark {
+
+    private static final int REGISTERED_USERS = 100000;
+
+    private Injector injector;
+    private UserRepository userRepository;
+    private ConnectionManager connectionManager;
+
+    private int nextUser;
+    private int nextNewUser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        injector = BenchmarkDatabase.start();
+        userRepository = injector.getInstance(PlainSqlUserRepositoryImpl.class);
+        connectionManager = injector.getInstance(ConnectionManager.class);
+
+        userRepository.dropUsers();
+        userRepository.dropInvites();
+        BenchmarkDatabase.seedUsers(connectionManager, REGISTERED_USERS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        userRepository.dropUsers();
+        userRepository.dropInvites();
+        BenchmarkDatabase.execute(connectionManager, "TRUNCATE TABLE ringring_mail_outbox");
+        BenchmarkDatabase.stop(injector);
+    }
+
+    @Benchmark
+    public User getUser() throws Exception {
+        return userRepository.getUser(nextActivatedUser(), true);
+    }
+
+    @Benchmark
+    public User register() throws Exception {
+        return userRepository.register(nextNewUser("registered"));
+    }
+
+    @Benchmark
+    public void activate(PendingActivation pending) throws Exception {
+        userRepository.activate(pending.user);
+    }
+
+    @Benchmark
+    public void invite() throws Exception {
+        userRepository.invite(nextActivatedUser(), nextNewUser("invited"));
+    }
+
+    // Cycles through the activated seed users
+    private String nextActivatedUser() {
+        nextUser = (nextUser + 2) % REGISTERED_USERS;
+        return BenchmarkDatabase.userEmail(nextUser + 2);
+    }
+
+    private String nextNewUser(String prefix) {
+        return "bench." + prefix + "." + (nextNewUser++) + "@bench.ringring.io";
+    }
+
+    // A freshly registered user with its activation code for every activation
+    @State(Scope.Thread)
+    public static class PendingActivation {
+        private int next;
+        private User user;
+
+        @Setup(Level.Invocation)
+        public void register(UserRepositoryBenchmark benchmark) throws Exception {
+            String email = "bench.activated." + (next++) + "@bench.ringring.io";
+            benchmark.userRepository.register(email);
+
+            user = new User(email, benchmark.userRepository.getActivationCode(email), false, false);
+        }
+    }
+}
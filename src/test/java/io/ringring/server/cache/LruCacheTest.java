@@ -0,0 +1,57 @@
+package io.ringring.server.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.*;
+
+public class LruCacheTest {
+
+    @Test
+    public void shouldOnlyDropLoadsThatRacedTheirKey() throws Exception {
+        LruCache<String, String> cache = new LruCache<String, String>(160, 1, TimeUnit.MINUTES);
+
+        // Invalidating another key keeps the load
+        long stamp = cache.stamp();
+        cache.invalidate("b");
+        cache.put("a", "loaded", stamp);
+        assertEquals("loaded", cache.get("a"));
+
+        // Invalidating the same key drops it
+        stamp = cache.stamp();
+        cache.invalidate("a");
+        cache.put("a", "stale", stamp);
+        assertNull(cache.get("a"));
+
+        // Loads started after the invalidation are kept
+        stamp = cache.stamp();
+        cache.put("a", "fresh", stamp);
+        assertEquals("fresh", cache.get("a"));
+
+        // Clearing the cache drops every load that was running
+        stamp = cache.stamp();
+        cache.invalidateAll();
+        cache.put("b", "stale", stamp);
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void shouldDropLoadsWhenTheirInvalidationIsForgotten() throws Exception {
+        // One entry and one remembered invalidation per segment
+        LruCache<String, String> cache = new LruCache<String, String>(16, 1, TimeUnit.MINUTES);
+
+        long stamp = cache.stamp();
+        for (int i = 0; i < 100; i++) {
+            cache.invalidate("key" + i);
+        }
+
+        // Every segment has forgotten invalidations newer than the stamp
+        int stored = 0;
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "stale", stamp);
+            if (cache.get("key" + i) != null) stored++;
+        }
+        assertEquals(0, stored);
+    }
+}
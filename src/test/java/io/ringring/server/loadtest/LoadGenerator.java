@@ -0,0 +1,360 @@
+package io.ringring.server.loadtest;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.api.json.JSONConfiguration;
+import io.ringring.core.Status;
+import io.ringring.core.StatusResult;
+import io.ringring.core.User;
+import io.ringring.core.UserListResult;
+import io.ringring.core.UserResult;
+import io.ringring.server.config.ConfigManager;
+import io.ringring.server.config.setup.PropertiesConfigManagerImpl;
+import io.ringring.server.config.setup.guice.ConfigManagerModule;
+import io.ringring.server.db.baseline.CreateBaseline;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.repositories.UserRepository;
+import io.ringring.server.persistence.repositories.setup.BloomFilterUserRepositoryImpl;
+import io.ringring.server.ringringServerApi;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.subethamail.wiser.Wiser;
+
+import javax.ws.rs.core.MediaType;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the /user endpoints of an embedded server with a fixed request rate and reports the latency
+ * percentiles per operation. SMTP is served by a local Wiser, the database is the test database.
+ *
+ * The load is open-loop: requests are scheduled at a constant rate whether or not the earlier ones
+ * have finished, and the latency is measured from the time a request was scheduled to be sent. A
+ * stalled server therefore shows up in the percentiles instead of just slowing the generator down.
+ *
+ *     mvn test-compile exec:java -Dexec.mainClass=io.ringring.server.loadtest.LoadGenerator -Dexec.classpathScope=test \
+ *         -Dloadtest.rate=500 -Dloadtest.duration=60 -Dloadtest.mix=lookup=60,list=20,register=10,activate=5,invite=5
+ *
+ * Server settings from server.properties can be overridden with system properties as well. The JDBC
+ * leak tracking of the test configuration is switched off unless db.tracking.enabled is given.
+ */
+public class LoadGenerator {
+
+    enum Operation { LOOKUP, LIST, REGISTER, ACTIVATE, INVITE }
+
+    private static final String ACTIVATION_CODE = "loadtest";
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final int rate;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int threads;
+    private final int users;
+    private final int listSize;
+    private final File reportDirectory;
+    private final Map<Operation, Integer> mix;
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<Operation, Histogram>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<Operation, AtomicLong>(Operation.class);
+    private final AtomicLong nextNewUser = new AtomicLong();
+    private final AtomicLong nextPendingUser = new AtomicLong();
+    private final Random random = new Random();
+
+    private ringringServerApi server;
+    private Client client;
+    private volatile boolean recording;
+
+    public LoadGenerator() {
+        this.rate = Integer.getInteger("loadtest.rate", 200);
+        this.durationSeconds = Integer.getInteger("loadtest.duration", 60);
+        this.warmupSeconds = Integer.getInteger("loadtest.warmup", 10);
+        this.threads = Integer.getInteger("loadtest.threads", 64);
+        this.users = Integer.getInteger("loadtest.users", 100000);
+        this.listSize = Integer.getInteger("loadtest.listsize", 100);
+        this.reportDirectory = new File(System.getProperty("loadtest.report", "target/loadtest"));
+        this.mix = parseMix(System.getProperty("loadtest.mix", "lookup=60,list=20,register=10,activate=5,invite=5"));
+
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new ConcurrentHistogram(HIGHEST_LATENCY_MICROS, 3));
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("db.tracking.enabled") == null) {
+            System.setProperty("db.tracking.enabled", "false");
+        }
+
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        ConfigManager configManager = new PropertiesConfigManagerImpl();
+
+        // Migrate database to the latest version and start the service
+        Injector configManagerModuleInjector = Guice.createInjector(new ConfigManagerModule());
+        configManagerModuleInjector.getInstance(CreateBaseline.class).create();
+        server = configManagerModuleInjector.getInstance(ringringServerApi.class);
+        server.run();
+
+        Wiser wiser = new DiscardingWiser();
+        wiser.setHostname(configManager.getSmtpHost());
+        wiser.setPort(configManager.getSmtpPort());
+        wiser.start();
+
+        ClientConfig clientConfig = new DefaultClientConfig();
+        clientConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
+        client = Client.create(clientConfig);
+
+        UserRepository userRepository = server.getInjector().getInstance(UserRepository.class);
+        try {
+            seed(userRepository, server.getInjector().getInstance(ConnectionManager.class));
+            // The users were inserted behind the back of the Bloom filter
+            server.getInjector().getInstance(BloomFilterUserRepositoryImpl.class).rebuild();
+
+            System.out.println("Warming up for " + warmupSeconds + " s at " + rate + " requests/s");
+            generate(warmupSeconds);
+
+            for (Histogram histogram : latencies.values()) histogram.reset();
+            for (AtomicLong count : errors.values()) count.set(0);
+
+            System.out.println("Measuring for " + durationSeconds + " s at " + rate + " requests/s");
+            long start = System.nanoTime();
+            generate(durationSeconds);
+            report(System.nanoTime() - start);
+        } finally {
+            userRepository.dropUsers();
+            userRepository.dropInvites();
+            client.destroy();
+            wiser.stop();
+            server.stop();
+        }
+    }
+
+    // Sends the requests at their scheduled times, the workers record the latency from that time
+    private void generate(int seconds) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (long scheduledAt = start; scheduledAt < end; scheduledAt += interval) {
+            long wait;
+            while ((wait = scheduledAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            final Operation operation = nextOperation();
+            final int user = random.nextInt(users);
+            final long intendedStart = scheduledAt;
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean succeeded;
+                    try {
+                        succeeded = execute(operation, user);
+                    } catch (Exception e) {
+                        succeeded = false;
+                    }
+
+                    latencies.get(operation).recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStart), HIGHEST_LATENCY_MICROS));
+                    if (!succeeded) errors.get(operation).incrementAndGet();
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private boolean execute(Operation operation, int user) {
+        switch (operation) {
+            case LOOKUP: {
+                UserResult result = resource("/user/" + activatedUser(user)).get(UserResult.class);
+                return result.getStatus() == Status.OKAY;
+            }
+            case LIST: {
+                List<String> emails = new ArrayList<String>(listSize);
+                for (int i = 0; i < listSize; i++) {
+                    // Every second address is unknown, like in a real address book
+                    emails.add(i % 2 == 0 ? activatedUser((user + i) % users) : "unknown." + i + "@load.ringring.io");
+                }
+
+                HashMap<String, List<String>> request = new HashMap<String, List<String>>();
+                request.put("emails", emails);
+                UserListResult result = resource("/user/list/").post(UserListResult.class, request);
+                return result.getStatus() == Status.OKAY;
+            }
+            case REGISTER: {
+                HashMap<String, String> request = new HashMap<String, String>();
+                request.put("email", "loadtest.registered." + nextNewUser.incrementAndGet() + "@load.ringring.io");
+                UserResult result = resource("/user").post(UserResult.class, request);
+                return result.getStatus() == Status.OKAY;
+            }
+            case ACTIVATE: {
+                String email = pendingUser(nextPendingUser.incrementAndGet());
+                StatusResult result = resource("/user/" + email).put(StatusResult.class, new User(email, ACTIVATION_CODE, false, false));
+                return result.getStatus() == Status.OKAY;
+            }
+            case INVITE: {
+                String toEmail = "loadtest.invited." + nextNewUser.incrementAndGet() + "@load.ringring.io";
+                HashMap<String, String> request = new HashMap<String, String>();
+                request.put("from_email", activatedUser(user));
+                request.put("to_email", toEmail);
+                StatusResult result = resource("/user/" + toEmail + "/invite").post(StatusResult.class, request);
+                return result.getStatus() == Status.OKAY;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private WebResource.Builder resource(String path) {
+        return client.resource(server.getUrl() + path)
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE);
+    }
+
+    private Operation nextOperation() {
+        int total = 0;
+        for (int weight : mix.values()) total += weight;
+
+        int pick = random.nextInt(total);
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) return entry.getKey();
+        }
+
+        throw new IllegalStateException("Empty operation mix");
+    }
+
+    // Activated users for lookups and invites, and enough not yet activated ones for every activation
+    private void seed(UserRepository userRepository, ConnectionManager connectionManager) throws Exception {
+        userRepository.dropUsers();
+        userRepository.dropInvites();
+
+        Integer activateWeight = mix.get(Operation.ACTIVATE);
+        int total = 0;
+        for (int weight : mix.values()) total += weight;
+        long pendingUsers = activateWeight == null ? 0 : 2L * rate * (warmupSeconds + durationSeconds) * activateWeight / total + 100;
+
+        Connection connection = connectionManager.getConnection();
+        try {
+            PreparedStatement stmt = connection.prepareStatement("INSERT INTO ringring_users (email, activation_code, is_activated) SELECT 'loadtest.user.' || i || '@load.ringring.io', ?, TRUE FROM generate_series(0, ? - 1) i");
+            stmt.setString(1, ACTIVATION_CODE);
+            stmt.setInt(2, users);
+            stmt.executeUpdate();
+            stmt.close();
+
+            stmt = connection.prepareStatement("INSERT INTO ringring_users (email, activation_code, is_activated) SELECT 'loadtest.pending.' || i || '@load.ringring.io', ?, FALSE FROM generate_series(1, ?) i");
+            stmt.setString(1, ACTIVATION_CODE);
+            stmt.setLong(2, pendingUsers);
+            stmt.executeUpdate();
+            stmt.close();
+
+            stmt = connection.prepareStatement("ANALYZE ringring_users");
+            stmt.execute();
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void report(long elapsedNanos) throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        reportDirectory.mkdirs();
+
+        System.out.println(String.format("%-10s %10s %8s %10s %10s %10s %10s %10s", "operation", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        Histogram all = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        long allErrors = 0;
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latencies.get(operation);
+            if (histogram.getTotalCount() == 0) continue;
+
+            all.add(histogram);
+            allErrors += errors.get(operation).get();
+            printRow(operation.name().toLowerCase(), histogram, errors.get(operation).get(), seconds);
+            writeDistribution(operation.name().toLowerCase(), histogram);
+        }
+
+        printRow("total", all, allErrors, seconds);
+        writeDistribution("total", all);
+
+        System.out.println("Latency distributions written to " + reportDirectory.getAbsolutePath());
+    }
+
+    private static void printRow(String name, Histogram histogram, long errors, double seconds) {
+        System.out.println(String.format("%-10s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f",
+                name, histogram.getTotalCount(), errors, histogram.getTotalCount() / seconds,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0));
+    }
+
+    // Percentile distribution in milliseconds, the format of the HdrHistogram plotter
+    private void writeDistribution(String name, Histogram histogram) throws IOException {
+        PrintStream out = new PrintStream(new File(reportDirectory, name + ".hgrm"), "UTF-8");
+        try {
+            histogram.outputPercentileDistribution(out, 1000.0);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String activatedUser(int i) {
+        return "loadtest.user." + i + "@load.ringring.io";
+    }
+
+    private static String pendingUser(long i) {
+        return "loadtest.pending." + i + "@load.ringring.io";
+    }
+
+    private static Map<Operation, Integer> parseMix(String value) {
+        Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+
+        for (String part : value.split(",")) {
+            String[] weight = part.trim().split("=");
+            int parsed = Integer.parseInt(weight[1].trim());
+            if (parsed > 0) mix.put(Operation.valueOf(weight[0].trim().toUpperCase()), parsed);
+        }
+
+        if (mix.isEmpty()) throw new IllegalArgumentException("Empty operation mix: " + value);
+        return mix;
+    }
+
+    // Accepts every mail without keeping it, a long run would otherwise fill the heap
+    private static class DiscardingWiser extends Wiser {
+
+        @Override
+        public void deliver(String from, String recipient, InputStream data) throws IOException {
+            byte[] buffer = new byte[4096];
+            while (data.read(buffer) != -1) {
+                // discard
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package io.ringring.server.persistence.repositories.setup;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.util.Modules;
+import io.ringring.core.User;
+import io.ringring.server.config.setup.guice.ConfigManagerModule;
+import io.ringring.server.db.baseline.CreateBaseline;
+import io.ringring.server.metrics.Histogram;
+import io.ringring.server.persistence.ConnectionManager;
+import io.ringring.server.persistence.repositories.setup.guice.UserRepositoryModule;
+import io.ringring.server.persistence.setup.guice.PersistenceModule;
+import io.ringring.server.presence.PresenceManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Runs every statement of {@link PlainSqlUserRepositoryImpl} against a large seeded dataset and fails
+ * if the planner falls back to a sequential scan, so a missing index shows up before production.
+ *
+ * The statements are not listed here: the repository runs on a connection manager that records every
+ * prepared statement with its parameters, and each recorded statement is explained afterwards.
+ */
+public class QueryPlanTest {
+
+    private static final int SEEDED_USERS = 100000;
+
+    // Configuration tables with a handful of rows, scanning them is cheaper than any index
+    private static final Set<String> SMALL_TABLES = new HashSet<String>(Arrays.asList("directory_domains", "dialplan_context"));
+
+    private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+
+    static ConnectionManager connectionManager;
+    static RecordingConnectionManager recordingConnectionManager;
+    static StubPresenceManager presenceManager;
+    static PlainSqlUserRepositoryImpl userRepository;
+
+    @BeforeClass
+    public static void seedDatabase() throws Exception {
+
+        // Migrate database to the latest version
+        Injector configManagerModuleInjector = Guice.createInjector(new ConfigManagerModule());
+        configManagerModuleInjector.getInstance(CreateBaseline.class).create();
+
+        connectionManager = Guice.createInjector(new PersistenceModule()).getInstance(ConnectionManager.class);
+        recordingConnectionManager = new RecordingConnectionManager(connectionManager);
+        presenceManager = new StubPresenceManager();
+
+        Injector injector = Guice.createInjector(Modules.override(new UserRepositoryModule()).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ConnectionManager.class).toInstance(recordingConnectionManager);
+                bind(PresenceManager.class).toInstance(presenceManager);
+            }
+        }));
+        userRepository = injector.getInstance(PlainSqlUserRepositoryImpl.class);
+
+        cleanDatabase();
+        executeSql(
+                "INSERT INTO ringring_users (email, activation_code, is_activated) SELECT 'plan.user.' || i || '@plan.ringring.io', 'XXXXXX', i % 2 = 0 FROM generate_series(1, " + SEEDED_USERS + ") i",
+                "INSERT INTO directory (ringring_user_id, username, domain, domain_id) SELECT id, REPLACE(email, '@', '_AT_'), '', NULL FROM ringring_users WHERE is_activated",
+                "INSERT INTO directory_vars (directory_id, var_name, var_value) SELECT id, 'user_context', 'default' FROM directory UNION ALL SELECT id, 'internal_caller_id_name', username FROM directory",
+                "INSERT INTO directory_params (directory_id, param_name, param_value) SELECT id, 'password', 'XXXXXX' FROM directory UNION ALL SELECT id, 'dial-string', '' FROM directory",
+                "INSERT INTO dialplan_extension (context_id, name, continue, weight) SELECT 1, username, '', 0 FROM directory",
+                "INSERT INTO dialplan_condition (extension_id, field, expression, weight) SELECT extension_id, 'destination_number', name, 10 FROM dialplan_extension",
+                "INSERT INTO dialplan_actions (condition_id, application, data, type, weight) SELECT condition_id, application, '', 'action', 10 FROM dialplan_condition, (VALUES ('set'), ('bridge'), ('hangup')) a(application)",
+                "INSERT INTO registrations (reg_user, realm, expires, hostname) SELECT username, 'plan.ringring.io', CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) AS INTEGER) + id % 3600, 'plan' FROM directory WHERE id % 5 = 0",
+                "INSERT INTO ringring_invites (invite_from, invite_to, created_at) SELECT 'plan.user.' || (i % 1000 * 2 + 2) || '@plan.ringring.io', 'plan.invitee.' || i || '@plan.ringring.io', CURRENT_TIMESTAMP - i * INTERVAL '1 minute' FROM generate_series(1, " + SEEDED_USERS + ") i",
+                "INSERT INTO ringring_mail_outbox (mail_to, subject, body, attempts, sent_at) SELECT 'plan.invitee.' || i || '@plan.ringring.io', 'subject', 'body', 1, CURRENT_TIMESTAMP FROM generate_series(1, " + SEEDED_USERS + ") i",
+                "ANALYZE");
+    }
+
+    @AfterClass
+    public static void cleanDatabase() throws Exception {
+        executeSql(
+                "TRUNCATE TABLE ringring_users, directory, directory_vars, directory_params, dialplan_extension, dialplan_condition, dialplan_actions, ringring_invites, ringring_mail_outbox",
+                "DELETE FROM registrations WHERE hostname = 'plan'");
+    }
+
+    @Test
+    public void shouldNotScanLargeTables() throws Exception {
+        String email = "plan.new.user@plan.ringring.io";
+        List<String> addressBook = new ArrayList<String>();
+        for (int i = 1; i <= 10; i++) {
+            addressBook.add("plan.user." + i + "@plan.ringring.io");
+        }
+
+        // Run every repository statement once
+        userRepository.register(email);
+        userRepository.renewActivationCode(email);
+        User user = new User(email, userRepository.getActivationCode(email), false, false);
+        userRepository.activate(user);
+        try {
+            userRepository.activate(user);
+        } catch (Exception e) {
+            // Already activated, the SIP password has been updated
+        }
+        userRepository.update(user);
+        userRepository.invite("plan.user.2@plan.ringring.io", "plan.new.invitee@plan.ringring.io");
+
+        // Both presence lookups: the join on registrations and the presence index
+        for (boolean fresh : new boolean[] {false, true}) {
+            presenceManager.fresh = fresh;
+            userRepository.getUser(email, true);
+            userRepository.getUser("plan.user.3@plan.ringring.io", false);
+            userRepository.getUsers(addressBook, true);
+            userRepository.getUsers(addressBook, false);
+            userRepository.getChanges(addressBook, userRepository.getChanges(addressBook, null).getCursor());
+        }
+
+        Map<String, List<Binding>> statements = recordingConnectionManager.getStatements();
+        assertTrue(statements.size() >= 10);
+
+        List<String> failures = new ArrayList<String>();
+        for (Map.Entry<String, List<Binding>> statement : statements.entrySet()) {
+            String plan = explain(statement.getKey(), statement.getValue());
+            if (plan == null) continue;
+
+            Matcher matcher = SEQ_SCAN.matcher(plan);
+            while (matcher.find()) {
+                if (!SMALL_TABLES.contains(matcher.group(1))) {
+                    failures.add(statement.getKey() + "\n" + plan);
+                    break;
+                }
+            }
+        }
+
+        assertTrue("Sequential scans on large tables:\n\n" + join(failures), failures.isEmpty());
+    }
+
+    // Returns null for statements without a plan, e.g. TRUNCATE
+    private static String explain(String sql, List<Binding> bindings) throws Exception {
+        String verb = sql.trim().split("\\s+")[0].toUpperCase();
+        if (!Arrays.asList("SELECT", "INSERT", "UPDATE", "DELETE", "WITH").contains(verb)) return null;
+
+        StringBuilder plan = new StringBuilder();
+
+        Connection connection = connectionManager.getConnection();
+        try {
+            PreparedStatement explain = connection.prepareStatement("EXPLAIN " + sql);
+            for (Binding binding : bindings) {
+                binding.method.invoke(explain, binding.args);
+            }
+
+            ResultSet rs = explain.executeQuery();
+            while (rs.next()) {
+                plan.append(rs.getString(1)).append('\n');
+            }
+            rs.close();
+            explain.close();
+        } finally {
+            connection.close();
+        }
+
+        return plan.toString();
+    }
+
+    private static void executeSql(String... statements) throws Exception {
+        Connection connection = connectionManager.getConnection();
+        try {
+            for (String sql : statements) {
+                Statement stmt = connection.createStatement();
+                stmt.execute(sql);
+                stmt.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            result.append(value).append('\n');
+        }
+
+        return result.toString();
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class Binding {
+        private final Method method;
+        private final Object[] args;
+
+        Binding(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Hands out connections that remember the first execution of every prepared statement with its parameters.
+     */
+    private static class RecordingConnectionManager implements ConnectionManager {
+        private final ConnectionManager delegate;
+        private final Map<String, List<Binding>> statements = new LinkedHashMap<String, List<Binding>>();
+
+        RecordingConnectionManager(ConnectionManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override public void start() { delegate.start(); }
+        @Override public void stop() { delegate.stop(); }
+        @Override public int getLeasedConnectionCount() { return delegate.getLeasedConnectionCount(); }
+        @Override public int getFreeConnectionCount() { return delegate.getFreeConnectionCount(); }
+        @Override public long getAcquireTimeoutCount() { return delegate.getAcquireTimeoutCount(); }
+        @Override public Histogram getAcquireWaitHistogram() { return delegate.getAcquireWaitHistogram(); }
+
+        synchronized Map<String, List<Binding>> getStatements() {
+            return new LinkedHashMap<String, List<Binding>>(statements);
+        }
+
+        @Override
+        public Connection getConnection() {
+            final Connection connection = delegate.getConnection();
+
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {Connection.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    Object result = QueryPlanTest.invoke(connection, method, args);
+
+                    if (method.getName().equals("prepareStatement")) {
+                        return record((PreparedStatement) result, (String) args[0]);
+                    }
+                    return result;
+                }
+            });
+        }
+
+        private PreparedStatement record(final PreparedStatement stmt, final String sql) {
+            final Map<Integer, Binding> parameters = new TreeMap<Integer, Binding>();
+
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {PreparedStatement.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        parameters.put((Integer) args[0], new Binding(method, args));
+                    } else if (name.equals("clearParameters")) {
+                        parameters.clear();
+                    } else if (name.startsWith("execute") || name.equals("addBatch")) {
+                        synchronized (RecordingConnectionManager.this) {
+                            if (!statements.containsKey(sql)) {
+                                statements.put(sql, new ArrayList<Binding>(parameters.values()));
+                            }
+                        }
+                    }
+
+                    return QueryPlanTest.invoke(stmt, method, args);
+                }
+            });
+        }
+    }
+
+    private static class StubPresenceManager implements PresenceManager {
+        private volatile boolean fresh;
+
+        @Override public void start() { }
+        @Override public void stop() { }
+        @Override public boolean isFresh() { return fresh; }
+        @Override public boolean isOnline(String sipUser) { return false; }
+        @Override public long getLastChange(String sipUser) { return 0; }
+        @Override public long getTrackingStart() { return 0; }
+        @Override public Set<String> getChanges(long from, long to) { return new HashSet<String>(); }
+        @Override public int getOnlineCount() { return 0; }
+        @Override public long getRefreshLag() { return -1; }
+        @Override public long getLastRefreshDuration() { return 0; }
+        @Override public long getRefreshCount() { return 0; }
+        @Override public long getRefreshFailureCount() { return 0; }
+    }
+}
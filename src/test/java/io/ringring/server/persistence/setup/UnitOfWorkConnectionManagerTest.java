@@ -0,0 +1,168 @@
+package io.ringring.server.persistence.setup;
+
+import io.ringring.server.metrics.Histogram;
+import io.ringring.server.persistence.ConnectionManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+public class UnitOfWorkConnectionManagerTest {
+
+    private StubConnectionManager pool;
+    private UnitOfWorkConnectionManager connectionManager;
+
+    @Before
+    public void setUp() {
+        pool = new StubConnectionManager();
+        connectionManager = new UnitOfWorkConnectionManager(pool);
+    }
+
+    @Test
+    public void shouldShareConnectionWithNestedCalls() throws Exception {
+        Connection outer = connectionManager.getConnection();
+        Connection nested = connectionManager.getConnection();
+
+        assertEquals(1, pool.connections.size());
+        assertEquals(1, connectionManager.getReusedConnectionCount());
+
+        // Closing the nested handle keeps the connection, closing it twice changes nothing
+        nested.close();
+        nested.close();
+        assertTrue(nested.isClosed());
+        assertFalse(outer.isClosed());
+        assertFalse(pool.connections.get(0).closed);
+
+        outer.close();
+        assertTrue(pool.connections.get(0).closed);
+        assertFalse(connectionManager.isInUnitOfWork());
+
+        // The next operation takes a new connection
+        connectionManager.getConnection().close();
+        assertEquals(2, pool.connections.size());
+    }
+
+    @Test
+    public void shouldJoinTransactionOfOuterCall() throws Exception {
+        Connection outer = connectionManager.getConnection();
+        outer.setAutoCommit(false);
+
+        Connection nested = connectionManager.getConnection();
+        nested.setAutoCommit(false);
+        nested.commit();
+        nested.setAutoCommit(true);
+        nested.close();
+
+        outer.commit();
+        outer.setAutoCommit(true);
+        outer.close();
+
+        assertEquals(1, pool.connections.size());
+        assertEquals(Arrays.asList("setAutoCommit false", "commit", "setAutoCommit true", "close"),
+                pool.connections.get(0).calls);
+    }
+
+    @Test
+    public void shouldRollBackWhenNestedCallRollsBack() throws Exception {
+        Connection outer = connectionManager.getConnection();
+        outer.setAutoCommit(false);
+
+        Connection nested = connectionManager.getConnection();
+        nested.rollback();
+        nested.close();
+
+        try {
+            outer.commit();
+            fail("Rollback-only transaction has been committed");
+        } catch (SQLException e) {
+            // expected
+        }
+        outer.setAutoCommit(true);
+        outer.close();
+
+        assertEquals(Arrays.asList("setAutoCommit false", "rollback", "setAutoCommit true", "close"),
+                pool.connections.get(0).calls);
+    }
+
+    @Test
+    public void shouldNotShareConnectionsBetweenThreads() throws Exception {
+        Connection outer = connectionManager.getConnection();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connectionManager.getConnection().close();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        outer.close();
+        assertEquals(2, pool.connections.size());
+        assertEquals(0, connectionManager.getReusedConnectionCount());
+    }
+
+    // Records the calls on the connections it hands out
+    private static class StubConnection implements InvocationHandler {
+        private final List<String> calls = new ArrayList<String>();
+        private boolean autoCommit = true;
+        private boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.equals("getAutoCommit")) return autoCommit;
+            if (name.equals("isClosed")) return closed;
+            if (name.equals("setAutoCommit")) autoCommit = (Boolean) args[0];
+            if (name.equals("close")) closed = true;
+
+            calls.add(args == null ? name : name + " " + args[0]);
+            return null;
+        }
+    }
+
+    private static class StubConnectionManager implements ConnectionManager {
+        private final List<StubConnection> connections = Collections.synchronizedList(new ArrayList<StubConnection>());
+
+        @Override
+        public Connection getConnection() {
+            StubConnection connection = new StubConnection();
+            connections.add(connection);
+
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, connection);
+        }
+
+        @Override
+        public void start() { }
+
+        @Override
+        public void stop() { }
+
+        @Override
+        public int getLeasedConnectionCount() { return 0; }
+
+        @Override
+        public int getFreeConnectionCount() { return 0; }
+
+        @Override
+        public long getAcquireTimeoutCount() { return 0; }
+
+        @Override
+        public Histogram getAcquireWaitHistogram() { return new Histogram(); }
+    }
+}
@@ -0,0 +1,97 @@
+package io.ringring.server.ratelimit;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.*;
+
+public class SlidingWindowRateLimiterTest {
+
+    @Test
+    public void shouldLimitEventsInsideTheWindow() throws Exception {
+        SlidingWindowRateLimiter<String> limiter = new SlidingWindowRateLimiter<String>(2, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(limiter.tryAcquire("a") != -1);
+        assertTrue(limiter.tryAcquire("a") != -1);
+        assertEquals(-1, limiter.tryAcquire("a"));
+
+        // Other keys have their own limit
+        assertTrue(limiter.tryAcquire("b") != -1);
+
+        // Events leave the window
+        Thread.sleep(250);
+        assertTrue(limiter.tryAcquire("a") != -1);
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void shouldReleaseAndRestoreEvents() throws Exception {
+        SlidingWindowRateLimiter<String> limiter = new SlidingWindowRateLimiter<String>(1, 1, TimeUnit.MINUTES);
+
+        long stamp = limiter.tryAcquire("a");
+        assertEquals(-1, limiter.tryAcquire("a"));
+
+        limiter.release("a", stamp);
+        assertTrue(limiter.tryAcquire("a") != -1);
+
+        // Restored events count until they are older than the window
+        limiter.record("b", TimeUnit.SECONDS.toMillis(30));
+        limiter.record("c", TimeUnit.MINUTES.toMillis(2));
+        assertEquals(-1, limiter.tryAcquire("b"));
+        assertTrue(limiter.tryAcquire("c") != -1);
+    }
+
+    @Test
+    public void shouldEvictIdleKeys() throws Exception {
+        SlidingWindowRateLimiter<String> limiter = new SlidingWindowRateLimiter<String>(1, 50, TimeUnit.MILLISECONDS);
+
+        limiter.tryAcquire("a");
+        limiter.tryAcquire("b");
+        assertEquals(2, limiter.size());
+
+        Thread.sleep(100);
+        limiter.tryAcquire("c");
+        limiter.evictIdleKeys();
+        assertEquals(1, limiter.size());
+
+        // An evicted key starts over
+        assertTrue(limiter.tryAcquire("a") != -1);
+        assertEquals(-1, limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void shouldNotExceedTheLimitUnderContention() throws Exception {
+        final SlidingWindowRateLimiter<String> limiter = new SlidingWindowRateLimiter<String>(100, 1, TimeUnit.MINUTES);
+        final AtomicInteger acquired = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 1000; j++) {
+                        if (limiter.tryAcquire("a") != -1) acquired.incrementAndGet();
+                        if (j % 100 == 0) limiter.evictIdleKeys();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100, acquired.get());
+    }
+}